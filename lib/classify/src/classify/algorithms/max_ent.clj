@@ -16,7 +16,7 @@
    [classify.index :as index]
    [classify.utils :as utils])
   (:import
-   [flop LongDoubleFeatureVector]))
+   [flop DMath FeatureMatrix LongDoubleFeatureVector]))
 
 (set! *warn-on-reflection* true)
 (set! *unchecked-math* true)
@@ -29,6 +29,11 @@
   (^doubles -sums [this weight-arr i-preds])
   (^doubles -log-probs [this weight-arr i-preds])
   (^doubles -probs [this weight-arr i-preds])
+  (^doubles -row-probs [this weight-arr ^FeatureMatrix m row] "-probs for a row of a FeatureMatrix")
+  (^doubles -row-probs! [this weight-arr ^FeatureMatrix m row ^doubles out]
+    "-row-probs into out, an array of length num-labels, which is returned")
+  (^doubles -row-log-probs! [this weight-arr ^FeatureMatrix m row ^doubles out]
+    "Log of -row-probs! (without underflow), into out, which is returned")
   (dimension [this])
   (weight [this ^doubles weight-arr i-pred i-label])
   (-explain [this ^doubles weight-arr datum]))
@@ -67,7 +72,7 @@
   (-log-probs
     [this weight-arr i-preds]
     (let [sum (log-helper-score-preds weight-arr i-preds)
-          expSum (Math/exp (- sum))
+          expSum (DMath/fastExp (- sum))
           lp-true (- (Math/log (+ 1.0 expSum)))
           lp-false (- lp-true sum)]
       (double-array-pair lp-true lp-false)))
@@ -75,11 +80,32 @@
   (-probs
     [this weight-arr i-preds]
     (let [sum (log-helper-score-preds weight-arr i-preds)
-          expSum (Math/exp (- sum))
+          expSum (DMath/fastExp (- sum))
           p-true (/ 1.0 (+ 1.0 expSum))
           p-false (- 1.0 p-true)]
       (double-array-pair p-true p-false)))
 
+  (-row-probs
+    [this weight-arr m row]
+    (-row-probs! this weight-arr m row (double-array 2)))
+
+  (-row-probs!
+    [this weight-arr m row out]
+    (let [sum (.dotProduct ^FeatureMatrix m (int row) ^doubles weight-arr)
+          p-true (/ 1.0 (+ 1.0 (DMath/fastExp (- sum))))]
+      (doto ^doubles out
+        (dbl/aset 0 p-true)
+        (dbl/aset 1 (- 1.0 p-true)))))
+
+  (-row-log-probs!
+    [this weight-arr m row out]
+    (let [sum (.dotProduct ^FeatureMatrix m (int row) ^doubles weight-arr)
+          ;; -log(1 + e^-sum), without overflowing e^-sum
+          lp-true (- (+ (Math/log1p (Math/exp (- (Math/abs sum)))) (max (- sum) 0.0)))]
+      (doto ^doubles out
+        (dbl/aset 0 lp-true)
+        (dbl/aset 1 (- lp-true sum)))))
+
   (dimension [this] num-preds)
 
   (weight [this weight-arr ipred ilabel]
@@ -130,8 +156,31 @@
       (fa/log-normalize-in-place! sums)))
 
   (-probs [this weight-arr i-preds]
-    (let [log-probs (-log-probs this weight-arr i-preds)]
-      (dbl/afill! [[i v] log-probs] (Math/exp v))))
+    (fa/exp-in-place! (-log-probs this weight-arr i-preds)))
+
+  (-row-probs [this weight-arr m row]
+    (-row-probs! this weight-arr m row (double-array num-labels)))
+
+  (-row-probs! [this weight-arr m row out]
+    (fa/exp-in-place! (-row-log-probs! this weight-arr m row out)))
+
+  (-row-log-probs! [this weight-arr m row out]
+    (let [^FeatureMatrix m m
+          ^doubles weight-arr weight-arr
+          row (int row)
+          row-ptr (.rowPtr m)
+          cols (.cols m)
+          vals (.vals m)
+          ^doubles sums (doto ^doubles out (java.util.Arrays/fill 0.0))]
+      (loop [k (aget row-ptr row)]
+        (when (< k (aget row-ptr (inc row)))
+          (let [p (aget cols k)
+                v (aget vals k)]
+            (dotimes [l num-labels]
+              (dbl/ainc sums l (* v (dbl/aget weight-arr (pred-label-to-index num-labels p l))))))
+          (recur (inc k))))
+      (fa/log-normalize-in-place! sums)
+      sums))
 
   (dimension [this] (* num-preds num-labels))
 
@@ -153,9 +202,15 @@
 (defn emp-counts
   [i-data ^classify.algorithms.max_ent.ClassifierHelper helper]
   (let [counts-arr (double-array (dimension helper) 0.0)]
-    (doseq [[i-preds i-label weight] i-data
-            :let [i-label (long i-label)]]
-      (.update-emp-counts! helper ^doubles counts-arr i-preds i-label weight))
+    (if (instance? FeatureMatrix i-data)
+      (let [^FeatureMatrix m i-data]
+        (doseq [r (range (.start m) (.end m))
+                :let [r (int r)]]
+          (.update-emp-counts! helper ^doubles counts-arr (.row m r)
+                               (aget (.labels m) r) (aget (.weights m) r))))
+      (doseq [[i-preds i-label weight] i-data
+              :let [i-label (long i-label)]]
+        (.update-emp-counts! helper ^doubles counts-arr i-preds i-label weight)))
     counts-arr))
 
 (defn obj-fn-worker [^classify.algorithms.max_ent.ClassifierHelper helper weight-arr i-data]
@@ -176,25 +231,112 @@
                       i-data)]
     (list neg-log-prob grad)))
 
-(defn obj-fn
-  [i-data helper pool threads]
-  (let [emp-counts (emp-counts i-data helper)
+(defn matrix-obj-fn-worker!
+  "matrix-obj-fn-worker into caller-owned arrays: grad (of the helper's dimension) is
+   overwritten with the block's gradient, and probs (of length num-labels) is scratch.
+   Evaluating the same block repeatedly this way allocates nothing per row.
+   Returns the negative log-likelihood of the block."
+  [^classify.algorithms.max_ent.ClassifierHelper helper weight-arr ^FeatureMatrix m
+   ^doubles grad ^doubles probs]
+  (java.util.Arrays/fill grad 0.0)
+  (let [row-ptr (.rowPtr m)
+        cols (.cols m)
+        vals (.vals m)
+        labels (.labels m)
+        weights (.weights m)
+        end (.end m)]
+    (loop [r (.start m) neg-log-prob 0.0]
+      (if (>= r end)
+        neg-log-prob
+        (let [weight (dbl/aget weights r)
+              ^doubles probs (-row-probs! helper weight-arr m r probs)
+              obj-val (- (* weight (Math/log (dbl/aget probs (aget labels r)))))]
+          (fa/scale-in-place! probs weight)
+          (loop [k (aget row-ptr r)]
+            (when (< k (aget row-ptr (inc r)))
+              (.updategrad ^IFuckThisShit helper grad (aget cols k) (aget vals k) probs)
+              (recur (inc k))))
+          (recur (inc r) (+ neg-log-prob obj-val)))))))
+
+(defn matrix-obj-fn-worker
+  "obj-fn-worker over the rows of a FeatureMatrix (view)."
+  [^classify.algorithms.max_ent.ClassifierHelper helper weight-arr ^FeatureMatrix m]
+  (let [grad (double-array (dimension helper))]
+    (list (matrix-obj-fn-worker! helper weight-arr m grad (double-array (:num-labels helper)))
+          grad)))
+
+(defn tree-sum!
+  "Sum the equal-length arrays arrs into (first arrs) pairwise, in log2(n) rounds whose
+   adds run in parallel on pool-or-threads (see parallel/map-work).  Clobbers arrs."
+  ^doubles [pool-or-threads arrs]
+  (let [arrs (vec arrs)
+        n (count arrs)]
+    (loop [stride 1]
+      (when (< stride n)
+        (parallel/do-work
+         pool-or-threads
+         (fn [i] (fa/add-in-place! (arrs i) (arrs (+ i stride)) 1.0 0.0))
+         (range 0 (- n stride) (* 2 stride)))
+        (recur (* 2 stride))))
+    (first arrs)))
+
+(defn blocks-obj-fn
+  "The objective over the rows of blocks, FeatureMatrix views (e.g., of one shared matrix),
+   evaluated one block per task on pool-or-threads.  Per-block gradient and probs scratch
+   arrays are reused across evaluations, so an evaluation only allocates the returned
+   gradient.  Block gradients are combined with tree-sum!.
+
+   The returned fn may be called from several threads at once (e.g., by a parallel line
+   search): each call takes a set of scratch arrays from a pool and returns it when done,
+   so new sets are only allocated when calls overlap."
+  [blocks helper pool-or-threads]
+  (let [blocks (vec blocks)
         dim (dimension helper)
-        iter (atom 0)
-        i-data-blocks (mapv vec (partition-all (math/ceil (/ (count i-data) threads)) i-data))]
-    (log/debugf "%s Training Data [%s threads]" (count i-data) threads)
+        emp-counts (reduce (fn [acc m] (fa/add-in-place! acc (emp-counts m helper) 1.0 0.0))
+                           (double-array dim)
+                           blocks)
+        new-scratch (fn [] {:grads (vec (repeatedly (count blocks) #(double-array dim)))
+                            :probs (vec (repeatedly (count blocks)
+                                                    #(double-array (:num-labels helper))))})
+        scratch-pool (java.util.concurrent.ConcurrentLinkedQueue.)]
     (fn [weight-arr]
-      (swap! iter inc)
-      (let [grad-arr (fa/scale emp-counts -1)
-            results (parallel/map-work
-                     (or pool threads)
-                     (fn [i-data-block]
-                       (obj-fn-worker helper weight-arr i-data-block))
-                     i-data-blocks)
-            neg-log-prob (sum first results)]
-        (doseq [[_ block-grad] results]
-          (fa/add-in-place! grad-arr block-grad 1.0 0.0))
-        [neg-log-prob grad-arr]))))
+      (let [{:keys [grads probs] :as scratch} (or (.poll scratch-pool) (new-scratch))]
+        (try
+          (let [neg-log-prob (sum (parallel/map-work
+                                   pool-or-threads
+                                   (fn [i]
+                                     (matrix-obj-fn-worker!
+                                      helper weight-arr (blocks i) (grads i) (probs i)))
+                                   (range (count blocks))))
+                grad-arr (fa/scale emp-counts -1)]
+            (fa/add-in-place! grad-arr (tree-sum! pool-or-threads grads) 1.0 0.0)
+            [neg-log-prob grad-arr])
+          (finally (.offer scratch-pool scratch)))))))
+
+(defn obj-fn
+  "i-data is a seq of IndexedDatum, or a FeatureMatrix, which is split once into one
+   block per thread for blocks-obj-fn."
+  [i-data helper pool threads]
+  (let [matrix? (instance? FeatureMatrix i-data)
+        num-data (if matrix? (.numRows ^FeatureMatrix i-data) (count i-data))
+        pool-or-threads (or pool threads)]
+    (log/debugf "%s Training Data [%s threads]" num-data threads)
+    (if matrix?
+      (blocks-obj-fn (.blocks ^FeatureMatrix i-data (int threads)) helper pool-or-threads)
+      (let [emp-counts (emp-counts i-data helper)
+            i-data-blocks (mapv vec (partition-all (math/ceil (/ num-data threads)) i-data))]
+        (fn [weight-arr]
+          (let [grad-arr (fa/scale emp-counts -1)
+                results (doall
+                         (parallel/map-work
+                          pool-or-threads
+                          (fn [i-data-block]
+                            (obj-fn-worker helper weight-arr i-data-block))
+                          i-data-blocks))
+                neg-log-prob (sum first results)]
+            (when-let [block-grad (tree-sum! pool-or-threads (map second results))]
+              (fa/add-in-place! grad-arr block-grad 1.0 0.0))
+            [neg-log-prob grad-arr]))))))
 
 (defn ->weights [^doubles dense-weights p-index unpack?]
   (let [wv (index/->IndexedWeightVector (weight-vector/new-dense dense-weights) p-index)]
@@ -285,13 +427,25 @@
                (column-normalize i-data means std-devs)
                i-data)}))
 
+(defn unnormalize-columns!
+  "Rescale weight-arr (laid out as for obj-fn), trained on data indexed with
+   column-normalize?, to apply to unnormalized data: each pred's weights are divided by
+   its std-dev."
+  ^doubles [^doubles weight-arr ^doubles std-devs]
+  (let [per-pred (quot (alength weight-arr) (alength std-devs))]
+    (dotimes [i (alength weight-arr)]
+      (aset weight-arr i (/ (aget weight-arr i) (aget std-devs (quot i per-pred)))))
+    weight-arr))
+
 (defn trainer [{:as opts
                 :keys [reg-fn optimizer threads print-progress unpack? normalize? labels
-                       prior-weights sigma-sq sigma-sq-fn average? column-normalize?]
+                       prior-weights sigma-sq sigma-sq-fn average? column-normalize?
+                       feature-matrix?]
                 :or {print-progress false
                      threads 1
                      optimizer optimize/lbfgs-optimize
-                     unpack? false}}]
+                     unpack? false
+                     feature-matrix? true}}]
   (s/fn [data :- [(s/either index/LabeledDatum index/WeightedDatum)]]
     (letk [[p-index l-index i-data std-devs] (index-data (assoc opts :data data))]
       (let [helper (new-helper (count p-index) (count l-index))
@@ -300,7 +454,8 @@
                               (double-array (dimension helper) 0.0))]
         (resource/with-open [obj-fn-pool (when (> threads 1)
                                            (parallel/fixed-thread-pool threads))]
-          (let [obj-fn (obj-fn i-data helper obj-fn-pool threads)
+          (let [obj-fn (obj-fn (if feature-matrix? (index/feature-matrix i-data) i-data)
+                               helper obj-fn-pool threads)
                 reg-obj-fn (cond
                             reg-fn
                             (reg-fn obj-fn opts)
@@ -314,11 +469,19 @@
                             (utils/l2-reg-fn obj-fn (or sigma-sq 1.0)))
                 weight-arr (optimizer reg-obj-fn init-weight-arr opts)]
             (when column-normalize?
-              (fa/multiply-in-place!
-               weight-arr
-               (dbl/amap [sigma std-devs] (/ 1.0 sigma))))
+              (unnormalize-columns! weight-arr std-devs))
             (classify/->LinearClassifier (unsplat weight-arr l-index p-index unpack?) (not unpack?))))))))
 
+(defn train-indexed
+  "Fit a weight array (laid out as for obj-fn) to the rows of blocks, views of an already
+   indexed FeatureMatrix, with L2 regularization (opts :sigma-sq, default 1.0) and
+   (:optimizer opts lbfgs-optimize), which is passed opts.  Views of one matrix can be
+   trained on concurrently, e.g., for cross-validation folds."
+  ^doubles [blocks helper {:as opts :keys [optimizer sigma-sq] :or {optimizer optimize/lbfgs-optimize}} pool-or-threads]
+  (optimizer (utils/l2-reg-fn (blocks-obj-fn blocks helper pool-or-threads) (or sigma-sq 1.0))
+             (double-array (dimension helper) 0.0)
+             opts))
+
 (defn pair->datum [[^LongDoubleFeatureVector fv1 ^LongDoubleFeatureVector fv2 & [weight]]]
   (concat
    [(doto (LongDoubleFeatureVector. (+ (count fv1) (count fv2))) (.incrementAll fv1 1.0) (.incrementAll fv2 -1.0))
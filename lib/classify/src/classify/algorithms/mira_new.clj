@@ -117,4 +117,107 @@
                   [1 loss])))))
         [0 0.0])))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Averaged MIRA over IWeightVectors
+
+;; The same updates as classify.algorithms.mira, with weights in mutable IWeightVectors
+;; rather than persistent maps.  mira keeps cumulative weights sum_t (T - t) delta_t,
+;; where T is the total number of updates and delta_t the step at update t, by adding
+;; every step into them too.  Instead, we keep w = sum_t delta_t and the timestamped
+;; u = sum_t t delta_t, each touched once per step, and form T w - u once at the end.
+
+(defn- predict-order
+  "Labels in the order classify.algorithms.mira/predict considers them, whose max-key
+   breaks ties in favor of the later label."
+  [labels]
+  (let [labels (keys (into {} (for [l labels] [l {}])))]
+    (if (> (count labels) 5)
+      (keys (apply merge (for [part (partition-all 5 labels)]
+                           (reduce (fn [m l] (assoc m l nil)) {} part))))
+      labels)))
+
+(defn- inc-scaled! [^IWeightVector wv ^LongDoubleFeatureVector fv ^double scale]
+  (let [ks (.keys fv)
+        vs (.values fv)]
+    (dotimes [i (.count fv)]
+      (.inc! wv (aget ks i) (* scale (aget vs i))))))
+
+(deftype AveragedMira [labels ^objects weights ^objects sums loss-fn
+                       ^double max-alpha ^long total-updates ^:unsynchronized-mutable ^long t]
+  clojure.lang.IFn
+  ;; Update on an example, returning true if it was a mistake.
+  (invoke [this fv gold-label]
+    (let [^LongDoubleFeatureVector fv fv
+          n (alength weights)
+          guess (loop [i 1 best 0 best-score (.dot-product ^IWeightVector (aget weights 0) fv)]
+                  (if (< i n)
+                    (let [score (.dot-product ^IWeightVector (aget weights i) fv)]
+                      (if (>= score best-score)
+                        (recur (inc i) i score)
+                        (recur (inc i) best best-score)))
+                    best))
+          gold (long (.indexOf ^java.util.List labels gold-label))
+          step t]
+      (set! t (inc t))
+      (when-not (== guess gold)
+        (let [^IWeightVector gold-w (aget weights gold)
+              ^IWeightVector guess-w (aget weights guess)
+              loss (double (loss-fn gold-label (nth labels guess)))
+              gap (- (.dot-product gold-w fv) (.dot-product guess-w fv))
+              norm-sq (let [vs (.values fv)]
+                        (loop [i 0 s 0.0]
+                          (if (< i (.count fv)) (recur (inc i) (+ s (* (aget vs i) (aget vs i)))) s)))
+              alpha (min max-alpha (/ (- loss gap) (* 2 norm-sq)))]
+          (inc-scaled! gold-w fv alpha)
+          (inc-scaled! guess-w fv (- alpha))
+          (inc-scaled! (aget sums gold) fv (* step alpha))
+          (inc-scaled! (aget sums guess) fv (- (* step alpha)))
+          true)))))
+
+(defn averaged-mira
+  "An online averaged MIRA learner, matching classify.algorithms.mira/new-mira, over
+   weight vectors made by (new-weight-vector), e.g. #(weight-vector/map->sparse {})
+   (the default) or #(weight-vector/new-dense (double-array dim)).
+   Call it on [fv gold-label] for each of the total-updates updates, then get the
+   weights with averaged-weights."
+  [labels loss-fn total-updates max-alpha & [new-weight-vector]]
+  (let [labels (vec (predict-order labels))
+        new-weight-vector (or new-weight-vector #(weight-vector/map->sparse {}))]
+    (AveragedMira. labels
+                   (object-array (repeatedly (count labels) new-weight-vector))
+                   (object-array (repeatedly (count labels) new-weight-vector))
+                   loss-fn (double max-alpha) (long total-updates) 0)))
+
+(defn current-weights
+  "{label IWeightVector} of the (unaveraged) weights, shared with m."
+  [^AveragedMira m]
+  (zipmap (.labels m) (.weights m)))
+
+(defn averaged-weights
+  "{label IWeightVector} of the cumulative weights of classify.algorithms.mira (up to
+   rounding), in new sparse vectors."
+  [^AveragedMira m]
+  (let [total (double (.total-updates m))]
+    (zipmap
+     (.labels m)
+     (for [[^IWeightVector w ^IWeightVector u] (map vector (.weights m) (.sums m))]
+       (let [avg (weight-vector/map->sparse {})]
+         (.reduce w (fn [_ ^long k ^double v] (.inc! ^IWeightVector avg k (* total v))) nil)
+         (.reduce u (fn [_ ^long k ^double v] (.inc! ^IWeightVector avg k (- v))) nil)
+         avg)))))
+
+(defnk averaged-trainer
+  "Train averaged MIRA on indexed [fv label] data, in order, for num-iters passes (or
+   until a pass without mistakes), returning a LinearClassifier of the averaged weights."
+  [{max-alpha 0.15} {loss-fn (constantly 1)} {num-iters 10}]
+  (fn [i-data]
+    (let [i-data (vec i-data)
+          m (averaged-mira (distinct (map second i-data)) loss-fn (* num-iters (count i-data)) max-alpha)]
+      (loop [iter 0]
+        (let [num-errs (count (filter (fn [[fv label]] (m fv label)) i-data))]
+          (printf "averaged mira at iter %s with %s errors\n" iter num-errs)
+          (when (and (> num-errs 0) (< (inc iter) num-iters))
+            (recur (inc iter)))))
+      (classify/->LinearClassifier (averaged-weights m) false))))
+
 (set! *warn-on-reflection* false)
@@ -1,52 +1,111 @@
 (ns classify.algorithms.regression
   (:require [schema.core :as s]
             [plumbing.math :as math]
+            [plumbing.parallel :as parallel]
             [flop.optimize :as optimize]
             [flop.map :as map]
             [flop.weight-vector :as weight-vector]
             [hiphip.double :as dbl]
             [classify.index :as index]
             [classify.core :as classify])
-  (:import [flop LongDoubleFeatureVector]))
+  (:import [flop FeatureMatrix LeastSquares LongDoubleFeatureVector]))
 
 (def Datum [(s/one LongDoubleFeatureVector "feat-vec")
             (s/one double "target")
             (s/optional double "weight")])
 
 
+(defn matrix-linear-objective
+  "linear-objective over a FeatureMatrix built with targets (index/feature-matrix data true)."
+  [num-dims ^FeatureMatrix m ^doubles input-weights]
+  (let [grad (double-array (long num-dims))
+        row-ptr (.rowPtr m)
+        cols (.cols m)
+        vals (.vals m)
+        targets (.targets m)
+        weights (.weights m)
+        end (.end m)]
+    (loop [r (.start m) obj-val 0.0]
+      (if (>= r end)
+        [obj-val grad]
+        (let [weight (dbl/aget weights r)
+              diff (- (.dotProduct m (int r) input-weights) (dbl/aget targets r))]
+          (loop [k (aget row-ptr r)]
+            (when (< k (aget row-ptr (inc r)))
+              (dbl/ainc grad (aget cols k) (* weight diff (dbl/aget vals k)))
+              (recur (inc k))))
+          (recur (inc r) (+ obj-val (* 0.5 weight diff diff))))))))
+
 (s/defn linear-objective :- optimize/ValueGradientPair
   [num-dims :- long
-   data :- [Datum]
+   data :- (s/either FeatureMatrix [Datum])
    input-weights :- doubles]
-  (let [grad (double-array num-dims)
-        obj-val (math/sum-od
-                 (fn [[^LongDoubleFeatureVector fv target weight]]
-                   (let [target (double target)
-                         weight (double weight)
-                         prediction (.dotProduct fv input-weights)
-                         diff (- prediction target)]
-                     ;; Update gradient
-                     (map/do-fv [[idx val] fv]
-                                (dbl/ainc grad  idx (* weight diff val)))
-                     ;; Return Updated objective
-                     (* 0.5 weight diff diff)))
-                 data)]
-    [obj-val grad]))
+  (if (instance? FeatureMatrix data)
+    (matrix-linear-objective num-dims data input-weights)
+    (let [grad (double-array num-dims)
+          obj-val (math/sum-od
+                   (fn [[^LongDoubleFeatureVector fv target weight]]
+                     (let [target (double target)
+                           weight (double weight)
+                           prediction (.dotProduct fv input-weights)
+                           diff (- prediction target)]
+                       ;; Update gradient
+                       (map/do-fv [[idx val] fv]
+                                  (dbl/ainc grad  idx (* weight diff val)))
+                       ;; Return Updated objective
+                       (* 0.5 weight diff diff)))
+                   data)]
+      [obj-val grad])))
+
+(defn least-squares
+  "Sufficient statistics for squared loss over the rows of m, accumulated over threads
+   row blocks in parallel (each holding its own dense num-dims^2 X^T X) and merged."
+  ^LeastSquares [num-dims ^FeatureMatrix m threads]
+  (reduce (fn [^LeastSquares acc ^LeastSquares ls] (.merge acc ls))
+          (parallel/map-work
+           threads
+           (fn [^FeatureMatrix block] (.add (LeastSquares. (int num-dims)) block))
+           (.blocks m (int threads)))))
+
+(s/defn solve-least-squares :- doubles
+  "Minimize the (optionally L2-regularized, with :sigma-sq) squared loss from its
+   sufficient statistics, with :solver :cholesky (exact, num-dims^3) or :cg (conjugate
+   gradient to relative residual :cg-tol, at most :max-iters iterations)."
+  [^LeastSquares stats opts]
+  (let [sigma-sq (:sigma-sq opts 0.0)
+        ridge (if (pos? sigma-sq) (/ 1.0 sigma-sq) 0.0)]
+    (case (:solver opts)
+      :cholesky (.solveCholesky stats ridge)
+      :cg (.solveCG stats ridge (:cg-tol opts 1.0e-10) (:max-iters opts 1000)))))
 
 (s/defn optimize-linear :- doubles
+  "Fit weights for squared loss.  With :solver :lbfgs (the default), each iteration is a
+   pass over i-data; with :cholesky or :cg, X^T X and X^T y are accumulated once (on
+   :threads threads) and the solve never touches the data again, which wins when
+   num-dims^2 doubles fit comfortably in memory."
   [i-data dimension opts]
-  (let [sigma-sq (:sigma-sq opts 0.0)
-        base-obj-fn #(linear-objective dimension i-data %)]
-    (optimize/lbfgs-optimize
-     (if (pos? sigma-sq)
-       (optimize/l2-reg-fn base-obj-fn sigma-sq)
-       base-obj-fn)
-     (double-array dimension)
-     (merge {:print-progress true :max-iters 1000 :thresh 1e-6} opts))))
+  (let [sigma-sq (:sigma-sq opts 0.0)]
+    (case (:solver opts :lbfgs)
+      :lbfgs
+      (let [base-obj-fn #(linear-objective dimension i-data %)]
+        (optimize/lbfgs-optimize
+         (if (pos? sigma-sq)
+           (optimize/l2-reg-fn base-obj-fn sigma-sq)
+           base-obj-fn)
+         (double-array dimension)
+         (merge {:print-progress true :max-iters 1000 :thresh 1e-6} opts)))
+
+      (:cholesky :cg)
+      (solve-least-squares
+       (least-squares
+        dimension
+        (if (instance? FeatureMatrix i-data) i-data (index/feature-matrix i-data true))
+        (:threads opts 1))
+       opts))))
 
 (s/defn learn-linear
   [train-data :- [Datum]
    opts :- java.util.Map]
   (let [[train-data p-index] (index/convert-and-index-data train-data opts)
-        weights (optimize-linear train-data (count p-index) opts)]
+        weights (optimize-linear (index/feature-matrix train-data true) (count p-index) opts)]
     (weight-vector/->SparseWeightVector (index/unindex-dense weights p-index))))
@@ -0,0 +1,239 @@
+(ns classify.algorithms.sgd
+  "Stochastic training of the max-ent (logistic / softmax) models in
+   classify.algorithms.max-ent, by mini-batch SGD, AdaGrad, or FTRL-proximal, with L1 and
+   L2 regularization.  Indexing, helpers, and the resulting LinearClassifier are shared with
+   max-ent; on large data a few passes here typically get close to the L-BFGS loss.
+
+   With :threads > 1 the data is split into one shard per thread.  Each shard trains its own
+   copy of the model for an epoch, and the copies (and per-coordinate learning-rate state)
+   are averaged after every epoch (iterative parameter mixing), so results only depend on
+   :seed and :threads."
+  (:use plumbing.core)
+  (:require
+   [schema.core :as s]
+   [hiphip.double :as dbl]
+   [plumbing.parallel :as parallel]
+   [plumbing.resource :as resource]
+   [flop.array :as fa]
+   [classify.core :as classify]
+   [classify.index :as index]
+   [classify.algorithms.max-ent :as max-ent])
+  (:import
+   [flop FeatureMatrix]
+   [plumbing MersenneTwisterFast]
+   [classify.algorithms.max_ent IFuckThisShit]))
+
+(set! *warn-on-reflection* true)
+(set! *unchecked-math* true)
+
+(def +algorithms+ #{:sgd :adagrad :ftrl})
+
+(defrecord Shard
+    [^FeatureMatrix m
+     ^MersenneTwisterFast r
+     ^ints order       ;; rows of m, reshuffled every epoch
+     ^doubles reg      ;; share of the regularizer per occurrence of each pred
+     ^doubles w
+     ^doubles n        ;; AdaGrad / FTRL sum of squared gradients
+     ^doubles z        ;; FTRL
+     ^doubles grad     ;; batch gradient, zero between batches
+     ^doubles probs    ;; num-labels scratch
+     ^ints touched     ;; preds occurring in the current batch
+     ^ints hits])      ;; occurrences of each pred in the current batch
+
+(defn- shard
+  "reg-scale is this shard's share of the data: the regularizer is spread over occurrences
+   of each pred so that one epoch of the shard applies reg-scale of it in total."
+  [^FeatureMatrix m helper num-preds reg-scale seed]
+  (let [num-preds (long num-preds)
+        dim (max-ent/dimension helper)
+        reg (double-array num-preds)
+        cols (.cols m)]
+    (loop [k (aget (.rowPtr m) (.start m))]
+      (when (< k (aget (.rowPtr m) (.end m)))
+        (dbl/ainc reg (aget cols k) 1.0)
+        (recur (inc k))))
+    (dotimes [p num-preds]
+      (when (pos? (aget reg p))
+        (aset reg p (/ (double reg-scale) (aget reg p)))))
+    (->Shard m
+             (MersenneTwisterFast. (long seed))
+             (int-array (range (.start m) (.end m)))
+             reg
+             (double-array dim)
+             (double-array dim)
+             (double-array dim)
+             (double-array dim)
+             (double-array (:num-labels helper))
+             (int-array num-preds)
+             (int-array num-preds))))
+
+(defn- shuffle! [^MersenneTwisterFast r ^ints a]
+  (loop [i (dec (alength a))]
+    (when (pos? i)
+      (let [j (.nextInt r (int (inc i)))
+            t (aget a i)]
+        (aset a i (aget a j))
+        (aset a j t)
+        (recur (dec i))))))
+
+(defn- shrink ^double [^double x ^double t]
+  (cond (> x t) (- x t)
+        (< x (- t)) (+ x t)
+        :else 0.0))
+
+(defn- run-epoch!
+  "One shuffled pass over the shard in mini-batches.  Within a batch, every row is scored
+   with the weights from the start of the batch, and then each touched coordinate takes
+   one step on its summed gradient."
+  [helper ^Shard shard {:keys [algorithm learning-rate beta l1 l2 batch-size]} epoch]
+  (let [^FeatureMatrix m (.m shard)
+        ^ints order (.order shard)
+        ^doubles reg (.reg shard)
+        ^doubles w (.w shard)
+        ^doubles n (.n shard)
+        ^doubles z (.z shard)
+        ^doubles grad (.grad shard)
+        ^doubles probs (.probs shard)
+        ^ints touched (.touched shard)
+        ^ints hits (.hits shard)
+        row-ptr (.rowPtr m)
+        cols (.cols m)
+        vals (.vals m)
+        labels (.labels m)
+        weights (.weights m)
+        per (quot (long (max-ent/dimension helper)) (alength hits))
+        num-rows (alength order)
+        batch-size (long batch-size)
+        algo (long (case algorithm :sgd 0 :adagrad 1 :ftrl 2))
+        alpha (double learning-rate)
+        eta (/ alpha (Math/sqrt (inc (long epoch))))
+        beta (double beta)
+        l1 (double l1)
+        l2 (double l2)]
+    (shuffle! (.r shard) order)
+    (loop [start 0]
+      (when (< start num-rows)
+        (let [end (min num-rows (+ start batch-size))
+              num-touched
+              (loop [i start num-touched 0]
+                (if (>= i end)
+                  num-touched
+                  (let [r (aget order i)
+                        ^doubles probs (max-ent/-row-probs! helper w m r probs)]
+                    (dbl/ainc probs (aget labels r) -1.0)
+                    (fa/scale-in-place! probs (aget weights r))
+                    (recur
+                     (inc i)
+                     (loop [k (aget row-ptr r) num-touched num-touched]
+                       (if (>= k (aget row-ptr (inc r)))
+                         num-touched
+                         (let [p (aget cols k)
+                               h (aget hits p)]
+                           (.updategrad ^IFuckThisShit helper grad p (aget vals k) probs)
+                           (aset hits p (inc h))
+                           (if (zero? h)
+                             (do (aset touched num-touched p)
+                                 (recur (inc k) (inc num-touched)))
+                             (recur (inc k) num-touched)))))))))]
+          (dotimes [t num-touched]
+            (let [p (aget touched t)
+                  frac (* (aget hits p) (aget reg p))]
+              (aset hits p 0)
+              (dotimes [c per]
+                (let [j (+ (* p per) c)
+                      g (aget grad j)
+                      wj (aget w j)]
+                  (aset grad j 0.0)
+                  (case algo
+                    0 (let [g (+ g (* frac l2 wj))]
+                        (aset w j (shrink (- wj (* eta g)) (* eta frac l1))))
+                    1 (let [g (+ g (* frac l2 wj))
+                            nj (+ (aget n j) (* g g))]
+                        (aset n j nj)
+                        (when (> nj 0.0)
+                          (let [step (/ alpha (Math/sqrt nj))]
+                            (aset w j (shrink (- wj (* step g)) (* step frac l1))))))
+                    2 (let [nj (aget n j)
+                            new-nj (+ nj (* g g))
+                            sigma (/ (- (Math/sqrt new-nj) (Math/sqrt nj)) alpha)
+                            zj (+ (aget z j) (- g (* sigma wj)))]
+                        (aset n j new-nj)
+                        (aset z j zj)
+                        (aset w j (if (<= (Math/abs zj) l1)
+                                    0.0
+                                    (/ (- (* (Math/signum zj) l1) zj)
+                                       (+ (/ (+ beta (Math/sqrt new-nj)) alpha) l2))))))))))
+          (recur end))))))
+
+(defn- mix!
+  "Replace each of the shards' arrays (selected by k) with their average."
+  [pool-or-threads shards k]
+  (let [arrs (mapv k shards)
+        copies (count arrs)]
+    (when (> copies 1)
+      (let [^doubles avg (fa/scale-in-place! (max-ent/tree-sum! pool-or-threads arrs) (/ 1.0 copies))]
+        (doseq [^doubles a (rest arrs)]
+          (System/arraycopy avg 0 a 0 (alength avg)))))))
+
+(defn train!
+  "Fit weights for helper to FeatureMatrix m, returning the weight array (laid out as for
+   max-ent/obj-fn).  Calls (epoch-callback epoch weights) after every epoch, if provided."
+  [^FeatureMatrix m helper num-preds
+   {:as opts :keys [threads epochs seed epoch-callback]}
+   pool]
+  (let [blocks (.blocks m (int threads))
+        num-rows (max 1 (.numRows m))
+        shards (vec (for [[i ^FeatureMatrix b] (indexed blocks)]
+                      (shard b helper num-preds (/ (double (.numRows b)) num-rows) (+ (long seed) i))))
+        pool-or-threads (or pool threads)]
+    (dotimes [epoch epochs]
+      (parallel/do-work pool-or-threads #(run-epoch! helper % opts epoch) shards)
+      (doseq [k [:w :n :z]] (mix! pool-or-threads shards k))
+      (when epoch-callback
+        (epoch-callback epoch (:w (first shards)))))
+    (:w (first shards))))
+
+(defn trainer
+  "A trainer like max-ent/trainer (and taking its indexing options), but fitting by
+   stochastic optimization.  Options:
+     :algorithm      :sgd, :adagrad (default), or :ftrl
+     :learning-rate  step size (SGD, decayed as 1/sqrt(epoch)), or AdaGrad / FTRL alpha
+     :beta           FTRL beta (default 1.0)
+     :l1, :l2        regularization strengths; :l2 defaults to 1/sigma-sq as in max-ent.
+                     For :sgd and :adagrad these weight the whole objective
+                     (sum of losses + l1 |w| + l2 |w|^2 / 2), for :ftrl they are its
+                     per-coordinate lambda1 / lambda2.
+     :batch-size     rows per step (default 32)
+     :epochs         passes over the data (default 5)
+     :threads        shards trained in parallel, averaged after each epoch
+     :seed           for shuffling
+     :epoch-callback (fn [epoch weight-arr]), e.g. to track the loss"
+  [{:as opts
+    :keys [algorithm learning-rate beta l1 l2 sigma-sq batch-size epochs threads seed
+           unpack? column-normalize?]
+    :or {algorithm :adagrad
+         learning-rate 0.1
+         beta 1.0
+         l1 0.0
+         batch-size 32
+         epochs 5
+         threads 1
+         seed 0
+         unpack? false}}]
+  (assert (+algorithms+ algorithm) (str "Unknown algorithm " algorithm))
+  (let [opts (assoc opts
+               :algorithm algorithm :learning-rate learning-rate :beta beta :l1 l1
+               :l2 (or l2 (/ 1.0 (or sigma-sq 1.0))) :batch-size batch-size :epochs epochs
+               :threads threads :seed seed)]
+    (s/fn [data :- [(s/either index/LabeledDatum index/WeightedDatum)]]
+      (letk [[p-index l-index i-data std-devs] (max-ent/index-data (assoc opts :data data))]
+        (let [helper (max-ent/new-helper (count p-index) (count l-index))]
+          (resource/with-open [pool (when (> threads 1) (parallel/fixed-thread-pool threads))]
+            (let [weight-arr (train! (index/feature-matrix i-data) helper (count p-index) opts pool)]
+              (when column-normalize?
+                (max-ent/unnormalize-columns! weight-arr std-devs))
+              (classify/->LinearClassifier
+               (max-ent/unsplat weight-arr l-index p-index unpack?) (not unpack?)))))))))
+
+(set! *warn-on-reflection* false)
@@ -7,6 +7,7 @@
    [plumbing.logging :as log]
    [plumbing.math :as math]
    [plumbing.parallel :as parallel]
+   [flop.array :as fa]
    [flop.math :as flop-math]
    flop.weight-vector
    [classify.algorithms.max-ent :as max-ent]
@@ -99,6 +100,21 @@
   PClassifier
   (posteriors [this datum] (classify/probs linear-classifier datum)))
 
+(defn batch-posteriors
+  "posteriors for each datum in data, scored in batches (see classify.core/batch-scores!)
+   for maxent models."
+  [model data & [pool-or-threads]]
+  (if (instance? MaxentModel model)
+    (let [data (vec data)
+          lc (:linear-classifier model)
+          labels (classify/labels lc)
+          n-labels (count labels)
+          ^doubles out (classify/batch-probs!
+                        lc data (double-array (* (count data) n-labels)) pool-or-threads)]
+      (for [i (range (count data))]
+        (zipmap labels (for [l (range n-labels)] (aget out (+ (* i n-labels) l))))))
+    (map #(posteriors model %) data)))
+
 (defn maxent-trainer [train-opts]
   (s/fn [train-data :- [FeaturizedLabeledDatum]]
     (when (:print-progress train-opts)
@@ -191,4 +207,216 @@
              (base-trainer (concat train-data (soft-label posteriors->weights unlabeled-data posts)))
              (inc iter))))))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Naive Bayes EM over expected counts
+
+;; em-trainer retrains its base model on the labeled data plus every soft-labeled datum
+;; on each iteration.  For a multinomial naive Bayes model, the M-step only needs
+;; expected counts, so nb-em-trainer counts the labeled data once, gathers each E-step's
+;; expected counts in per-worker LongDoubleFeatureVector accumulators merged by a
+;; reduction, and can also run stepwise (online) EM over mini-batches.
+
+(defrecord ExpectedCounts
+    [^doubles label-counts    ;; expected data weight per label
+     ^objects feature-counts  ;; LongDoubleFeatureVector of expected feature counts per label
+     ^doubles feature-totals]);; sum of feature-counts per label
+
+(defn expected-counts ^ExpectedCounts [num-labels]
+  (ExpectedCounts.
+   (double-array num-labels)
+   (object-array (repeatedly num-labels #(LongDoubleFeatureVector.)))
+   (double-array num-labels)))
+
+(defn add-counts!
+  "Add fv, with weight split between labels by posteriors."
+  [^ExpectedCounts c ^LongDoubleFeatureVector fv ^doubles posteriors weight]
+  (let [weight (double weight)
+        fv-total (loop [i 0 t 0.0]
+                   (if (< i (.count fv)) (recur (inc i) (+ t (aget (.values fv) i))) t))]
+    (dotimes [l (alength posteriors)]
+      (let [w (* weight (aget posteriors l))]
+        (when (> w 0.0)
+          (aset ^doubles (.label-counts c) l (+ (aget ^doubles (.label-counts c) l) w))
+          (aset ^doubles (.feature-totals c) l (+ (aget ^doubles (.feature-totals c) l) (* w fv-total)))
+          (.incrementAll ^LongDoubleFeatureVector (aget ^objects (.feature-counts c) l) fv w))))
+    c))
+
+(defn merge-counts!
+  "Add scale * other into c."
+  ([c other] (merge-counts! c other 1.0))
+  ([^ExpectedCounts c ^ExpectedCounts other scale]
+     (let [scale (double scale)]
+       (dotimes [l (alength ^doubles (.label-counts c))]
+         (aset ^doubles (.label-counts c) l
+               (+ (aget ^doubles (.label-counts c) l) (* scale (aget ^doubles (.label-counts other) l))))
+         (aset ^doubles (.feature-totals c) l
+               (+ (aget ^doubles (.feature-totals c) l) (* scale (aget ^doubles (.feature-totals other) l))))
+         (.incrementAll ^LongDoubleFeatureVector (aget ^objects (.feature-counts c) l)
+                        ^LongDoubleFeatureVector (aget ^objects (.feature-counts other) l)
+                        scale))
+       c)))
+
+(defn scale-counts!
+  "Multiply c by scale in place."
+  [^ExpectedCounts c scale]
+  (let [scale (double scale)]
+    (dotimes [l (alength ^doubles (.label-counts c))]
+      (aset ^doubles (.label-counts c) l (* scale (aget ^doubles (.label-counts c) l)))
+      (aset ^doubles (.feature-totals c) l (* scale (aget ^doubles (.feature-totals c) l)))
+      (let [^LongDoubleFeatureVector fc (aget ^objects (.feature-counts c) l)]
+        (dotimes [i (.count fc)]
+          (aset (.values fc) i (* scale (aget (.values fc) i))))))
+    c))
+
+(defn- copy-counts ^ExpectedCounts [^ExpectedCounts c]
+  (merge-counts! (expected-counts (alength ^doubles (.label-counts c))) c))
+
+(declare posterior-array)
+
+(defrecord NaiveBayesModel
+    [labels           ;; vector, in the order of the arrays below
+     ^doubles log-priors
+     ^objects log-probs  ;; LongDoubleFeatureVector of log P(feature | label) per label
+     ^doubles log-unseen];; log P(feature | label) for features without counts
+  learn/PModel
+  (label [this datum]
+    (let [^doubles ps (posterior-array this datum)]
+      (labels (loop [l 1 best 0]
+                (cond (>= l (alength ps)) best
+                      (> (aget ps l) (aget ps best)) (recur (inc l) l)
+                      :else (recur (inc l) best))))))
+
+  PClassifier
+  (posteriors [this datum]
+    (zipmap labels (posterior-array this datum))))
+
+(defn posterior-array
+  "P(label | fv) under model, in the order of its :labels."
+  ^doubles [^NaiveBayesModel model ^LongDoubleFeatureVector fv]
+  (let [^doubles log-priors (.log-priors model)
+        ^objects log-probs (.log-probs model)
+        ^doubles log-unseen (.log-unseen model)
+        n (alength log-priors)
+        out (double-array n)
+        keys (.keys fv)
+        vals (.values fv)]
+    (dotimes [l n]
+      (let [^LongDoubleFeatureVector lp (aget log-probs l)
+            unseen (aget log-unseen l)]
+        (aset out l (double
+                     (loop [i 0 s (aget log-priors l)]
+                       (if (< i (.count fv))
+                         (let [j (.indexOf lp (aget keys i))]
+                           (recur (inc i) (+ s (* (aget vals i)
+                                                  (if (neg? j) unseen (aget ^doubles (.values lp) j))))))
+                         s))))))
+    (let [log-z (fa/log-add out)]
+      (dotimes [l n] (aset out l (Math/exp (- (aget out l) log-z)))))
+    out))
+
+(defn counts->model
+  "The naive Bayes MAP estimate from counts, with add-smoothing pseudo-counts per
+   feature over the vocabulary of features with any counts."
+  ^NaiveBayesModel [labels ^ExpectedCounts counts smoothing]
+  (let [smoothing (double smoothing)
+        n (count labels)
+        ^objects feature-counts (.feature-counts counts)
+        vocab (let [s (java.util.HashSet.)]
+                (doseq [^LongDoubleFeatureVector fc feature-counts
+                        i (range (.count fc))]
+                  (.add s (aget (.keys fc) (int i))))
+                (max 1 (.size s)))
+        label-total (+ (sum (seq ^doubles (.label-counts counts))) (* n smoothing))]
+    (NaiveBayesModel.
+     (vec labels)
+     (double-array (for [l (range n)]
+                     (Math/log (/ (+ (aget ^doubles (.label-counts counts) l) smoothing) label-total))))
+     (object-array (for [l (range n)]
+                     (let [^LongDoubleFeatureVector fc (aget feature-counts l)
+                           log-z (Math/log (+ (aget ^doubles (.feature-totals counts) l) (* vocab smoothing)))
+                           lp (LongDoubleFeatureVector. (.count fc))]
+                       (dotimes [i (.count fc)]
+                         (.put lp (aget (.keys fc) i) (- (Math/log (+ (aget (.values fc) i) smoothing)) log-z)))
+                       lp)))
+     (double-array (for [l (range n)]
+                     (- (Math/log smoothing)
+                        (Math/log (+ (aget ^doubles (.feature-totals counts) l) (* vocab smoothing)))))))))
+
+(defn e-step
+  "Expected counts of data (a seq of LongDoubleFeatureVector) under model, accumulated in
+   threads parallel blocks (each with its own ExpectedCounts) and merged."
+  ^ExpectedCounts [^NaiveBayesModel model data threads]
+  (let [n (count (.labels model))
+        block-counts (fn [block]
+                       (let [c (expected-counts n)]
+                         (doseq [fv block]
+                           (add-counts! c fv (posterior-array model fv) 1.0))
+                         c))]
+    (if (or (= threads 1) (empty? data))
+      (block-counts data)
+      (reduce merge-counts!
+              (parallel/map-work
+               threads block-counts
+               (partition-all (math/ceil (/ (count data) threads)) data))))))
+
+(s/defn nb-em-trainer
+  "A semi-supervised trainer like em-trainer, for a multinomial naive Bayes model fit by
+   EM from expected counts (soft labels) of unlabeled-data.  Options:
+     :num-iters         EM iterations (or passes over unlabeled-data, if stepwise)
+     :threads           parallel E-step workers (each holding its own counts)
+     :smoothing         add-smoothing pseudo-count per feature (default 1.0)
+     :unlabeled-weight  weight of each unlabeled datum relative to labeled ones
+     :batch-size        if set, run stepwise EM over mini-batches of this size, updating
+                        the model after each batch with step size (k+2)^(-step-decay) on
+                        the k-th batch
+     :step-decay        in (0.5, 1] (default 0.7)"
+  [unlabeled-data :- [LongDoubleFeatureVector]
+   & [em-opts]]
+  (letk [[{num-iters 3}
+          {threads 1}
+          {smoothing 1.0}
+          {unlabeled-weight 1.0}
+          {batch-size nil}
+          {step-decay 0.7}
+          {print-progress true}] em-opts]
+    (s/fn [train-data :- [FeaturizedLabeledDatum]]
+      (let [labels (vec (distinct (map second train-data)))
+            n (count labels)
+            label-index (for-map [[i l] (indexed labels)] l i)
+            labeled (reduce
+                     (fn [c [fv label weight]]
+                       (let [posteriors (double-array n)]
+                         (aset posteriors (int (label-index label)) 1.0)
+                         (add-counts! c fv posteriors (or weight 1.0))))
+                     (expected-counts n)
+                     train-data)
+            model-of (fn [^ExpectedCounts unlabeled]
+                       (counts->model labels (merge-counts! (copy-counts labeled) unlabeled unlabeled-weight)
+                                      smoothing))
+            unlabeled-data (vec unlabeled-data)
+            num-unlabeled (count unlabeled-data)]
+        (if-not batch-size
+          (loop [model (counts->model labels labeled smoothing) iter 1]
+            (let [unlabeled (e-step model unlabeled-data threads)
+                  model (model-of unlabeled)]
+              (when print-progress
+                (log/infof "On NB-EM iteration %s, unlabeled label counts %s"
+                           iter (zipmap labels (.label-counts unlabeled))))
+              (if (>= iter num-iters) model (recur model (inc iter)))))
+          (loop [model (counts->model labels labeled smoothing)
+                 stats nil
+                 k 0
+                 batches (for [_ (range num-iters)
+                               batch (partition-all batch-size unlabeled-data)]
+                           batch)]
+            (if-let [[batch & more] (seq batches)]
+              (let [eta (Math/pow (+ k 2.0) (- (double step-decay)))
+                    batch-stats (e-step model batch threads)
+                    scale (/ (double num-unlabeled) (count batch))
+                    stats (if stats
+                            (-> stats (scale-counts! (- 1.0 eta)) (merge-counts! batch-stats (* eta scale)))
+                            (scale-counts! batch-stats scale))]
+                (recur (model-of stats) stats (inc k) more))
+              model)))))))
+
 (set! *warn-on-reflection* false)
@@ -2,27 +2,148 @@
   (:use plumbing.core)
   (:require
    [plumbing.io :as io]
+   [plumbing.parallel :as parallel]
    [flop.array :as fa]
-   [flop.weight-vector :as weight-vector])
+   [flop.weight-vector :as weight-vector]
+   [classify.index :as index])
   (:import
-   [flop IObjectWeightVector IWeightVector
-    LongDoubleFeatureVector]))
+   [flop FeatureMatrix IObjectWeightVector IWeightVector
+    LongDoubleFeatureVector Scoring SortedLongDoubleFeatureVector]
+   [flop.weight_vector DenseWeightVector SparseWeightVector]
+   [classify.index IndexedWeightVector]))
 
 (set! *warn-on-reflection* true)
 
-;; preds should be LongDoubleFeatureVectors, or if you use IndexedWeightVector then they
-;; can be a seq of [pred val] pairs and the weight vector will d the indexing for you
+;; preds should be LongDoubleFeatureVectors (or frozen SortedLongDoubleFeatureVectors), or if
+;; you use IndexedWeightVector then they can be a seq of [pred val] pairs and the weight vector
+;; will d the indexing for you
 ;; WARNING: If you use LongDoubleFeatureVectors this expects taht they will already be normalized.
 (defprotocol PClassifier
   (scores [this preds])
   (probs [this preds])
   (best-guess [this preds])
   (explain [this ^clojure.lang.IFn$LO get-pred preds] "{label {pred contribution-value}}")
-  (weight [this ^long ipred label]))
+  (weight [this ^long ipred label])
+  (batch-scores! [this data ^doubles out] [this data ^doubles out pool-or-threads]
+    "Score a block of data into out, row-major with one column per label in the order of
+     (labels this): data is a seq of preds (as for scores) or a FeatureMatrix view.
+     Large batches are split over pool-or-threads (default 1)."))
 
 (defprotocol OnlineClassifier
   (update! [this ^LongDoubleFeatureVector i-preds label]))
 
+;; Batch scoring.  When every label's weights are (or can be made) dense arrays over one
+;; shared pred index, each datum is scored for all labels in a single pass over its features.
+
+(def +batch-block-size+ 1024)
+
+(defn labels
+  "The labels of a LinearClassifier, in batch-scores! column order."
+  [linear-classifier]
+  (keys (:label->weights linear-classifier)))
+
+(defn- densify
+  "Dense weights for wv, or nil.  Sparse weights are copied into an array when there are
+   enough data to pay for it and their keys are reasonably compact."
+  [wv n]
+  (cond (instance? DenseWeightVector wv)
+        (.xs ^DenseWeightVector wv)
+
+        (and (instance? SparseWeightVector wv) (>= n 64))
+        (let [ks (.keys (.ldhm ^SparseWeightVector wv))]
+          (when (every? #(<= 0 % (+ 1024 (* 4 (alength ks)))) ks)
+            (weight-vector/->doubles wv)))))
+
+(defn- dense-weights
+  "[p-index double[][]] if every weight vector is (indexed) dense, or sparse and densifiable
+   for n data, with a shared index, else nil."
+  [wvs n]
+  (let [p-index (when (instance? IndexedWeightVector (first wvs))
+                  (.p-index ^IndexedWeightVector (first wvs)))
+        unwrap (fn [wv]
+                 (if (instance? IndexedWeightVector wv)
+                   (when (identical? p-index (.p-index ^IndexedWeightVector wv))
+                     (.wv ^IndexedWeightVector wv))
+                   (when-not p-index wv)))
+        dense (map #(some-> % unwrap (densify n)) wvs)]
+    (when (every? identity dense)
+      [p-index (into-array (Class/forName "[D") dense)])))
+
+(defn- score-block!
+  "Score block (a seq of preds, or a FeatureMatrix view) into out starting at offset."
+  [wvs indexed? [p-index ^"[[D" ws] block ^doubles out ^long offset]
+  (let [n-labels (count wvs)]
+    (if (instance? FeatureMatrix block)
+      (let [^FeatureMatrix m block]
+        (if ws
+          (Scoring/score ws m out (int offset))
+          (dotimes [i (.numRows m)]
+            (let [fv (.row m (int (+ (.start m) i)))]
+              (doseq [[l wv] (map-indexed vector wvs)]
+                (aset out (+ offset (* i n-labels) l) (.dot-product ^IWeightVector wv fv)))))))
+      (doseq [[i preds] (map-indexed vector block)
+              :let [o (+ offset (* i n-labels))]]
+        (cond (and ws indexed?)
+              (if-let [fv (index/convert-preds preds p-index false)]
+                (Scoring/score ws ^LongDoubleFeatureVector fv out (int o))
+                (java.util.Arrays/fill out (int o) (int (+ o n-labels)) 0.0))
+
+              (and ws (instance? SortedLongDoubleFeatureVector preds))
+              (Scoring/score ws ^SortedLongDoubleFeatureVector preds out (int o))
+
+              (and ws (not indexed?))
+              (Scoring/score ws ^LongDoubleFeatureVector preds out (int o))
+
+              :else
+              (doseq [[l wv] (map-indexed vector wvs)]
+                (aset out (+ o l)
+                      (double
+                       (cond indexed?
+                             (.dot-product ^IObjectWeightVector wv ^java.util.Collection (seq preds))
+
+                             (instance? SortedLongDoubleFeatureVector preds)
+                             (.dot-product ^IWeightVector wv ^SortedLongDoubleFeatureVector preds)
+
+                             :else
+                             (.dot-product ^IWeightVector wv ^LongDoubleFeatureVector preds))))))))))
+
+(defn linear-batch-scores!
+  "batch-scores! for the label weight vectors wvs."
+  [wvs indexed? data ^doubles out pool-or-threads]
+  (let [wvs (vec wvs)
+        n-labels (count wvs)
+        matrix? (instance? FeatureMatrix data)
+        n (if matrix? (.numRows ^FeatureMatrix data) (count data))
+        dense (dense-weights wvs n)
+        blocks (if matrix?
+                 (let [^FeatureMatrix m data]
+                   (for [s (range (.start m) (.end m) +batch-block-size+)]
+                     (.rows m (int s) (int (min (.end m) (+ s +batch-block-size+))))))
+                 (partition-all +batch-block-size+ data))
+        offsets (map #(* % +batch-block-size+ n-labels) (range))]
+    (assert (>= (alength out) (* n n-labels)) "Output array is too small")
+    (if (or (= 1 pool-or-threads) (<= n +batch-block-size+))
+      (doseq [[o b] (map vector offsets blocks)]
+        (score-block! wvs indexed? dense b out o))
+      (dorun (parallel/map-work pool-or-threads
+                                (fn [[o b]] (score-block! wvs indexed? dense b out o))
+                                (map vector offsets blocks))))
+    out))
+
+(defn batch-probs!
+  "Like batch-scores!, but each row of out is turned into (log-linear) label probabilities."
+  [linear-classifier data ^doubles out & [pool-or-threads]]
+  (batch-scores! linear-classifier data out (or pool-or-threads 1))
+  (let [n-labels (count (labels linear-classifier))
+        row (double-array n-labels)]
+    (dotimes [i (if (instance? FeatureMatrix data) (.numRows ^FeatureMatrix data) (count data))]
+      (let [o (* i n-labels)]
+        (System/arraycopy out o row 0 n-labels)
+        (let [log-z (fa/log-add row)]
+          (dotimes [l n-labels]
+            (aset out (+ o l) (Math/exp (- (aget row l) log-z))))))))
+  out)
+
 ;; TODO : this could maybe be optimized by indexing once in scores for Object case
 ;; if we know taht all weight vectors share the same p-index.
 (defrecord LinearClassifier
@@ -32,9 +153,14 @@
   (scores [this preds]
     (map-vals
      (fn [wv]
-       (if-not indexed?
-         (.dot-product ^IWeightVector wv ^LongDoubleFeatureVector preds)
-         (.dot-product ^IObjectWeightVector wv ^java.util.Collection (seq preds))))
+       (cond indexed?
+             (.dot-product ^IObjectWeightVector wv ^java.util.Collection (seq preds))
+
+             (instance? SortedLongDoubleFeatureVector preds)
+             (.dot-product ^IWeightVector wv ^SortedLongDoubleFeatureVector preds)
+
+             :else
+             (.dot-product ^IWeightVector wv ^LongDoubleFeatureVector preds)))
      label->weights))
   (probs [this i-preds]
     ;; Assumes log-linear
@@ -48,6 +174,9 @@
   (explain [this get-pred datum] "{label {pred contribution-value}}"
     (map-vals #(weight-vector/explain % get-pred datum) label->weights))
   (weight [this ipred label] (.val-at ^IWeightVector (label->weights label) ipred))
+  (batch-scores! [this data out] (batch-scores! this data out 1))
+  (batch-scores! [this data out pool-or-threads]
+    (linear-batch-scores! (vals label->weights) indexed? data out pool-or-threads))
 
   io/PDataLiteral
   (to-data [this] [::linear-classifier (map-vals io/to-data label->weights) indexed?]))
@@ -63,4 +192,41 @@
       (weight-vector/inc-all-wv! (safe-get l-w false) -1.0))))
 
 
+;; Top-K scoring.  With many labels, an inverted index from pred to (label, weight) finds the
+;; best few labels for a datum while scoring only a fraction of them (see flop.TopKScorer).
+
+(defn top-k-scorer
+  "An inverted index over the weights of an unindexed LinearClassifier, for top-k and
+   top-k-explain on LongDoubleFeatureVector preds."
+  [linear-classifier]
+  (assert (not (:indexed? linear-classifier)) "Top-k scoring needs unpacked weight vectors")
+  (let [label->weights (:label->weights linear-classifier)
+        builder (flop.TopKScorer$Builder. (count label->weights))]
+    (doseq [[i [_ wv]] (indexed label->weights)]
+      (.reduce ^IWeightVector wv (fn [_ ^long k ^double v] (.add builder (int i) k v)) nil))
+    {:labels (vec (keys label->weights))
+     :index (.build builder)}))
+
+(defn top-k
+  "The k highest [label score] pairs for preds, best first, as (take k (sort-by (comp - second)
+   (scores classifier preds))) up to ties."
+  [scorer ^LongDoubleFeatureVector preds k]
+  (let [^flop.TopKScorer$Result r (.topK ^flop.TopKScorer (:index scorer) preds (int k))
+        labels (:labels scorer)]
+    (vec (for [i (range (alength (.labels r)))]
+           [(labels (aget (.labels r) i)) (aget (.scores r) i)]))))
+
+(defn top-k-explain
+  "top-k, with the (up to) m preds contributing most to each label's score, by absolute
+   value, as [{:label :score :preds [[pred contribution] ...]}]."
+  [scorer ^clojure.lang.IFn$LO get-pred ^LongDoubleFeatureVector preds k m]
+  (let [^flop.TopKScorer index (:index scorer)
+        label->i (for-map [[i l] (indexed (:labels scorer))] l i)]
+    (for [[label score] (top-k scorer preds k)
+          :let [[^longs ps ^doubles cs] (.contributions index preds (int (label->i label)) (int m))]]
+      {:label label
+       :score score
+       :preds (vec (for [j (range (alength ps))]
+                     [(get-pred (aget ps j)) (aget cs j)]))})))
+
 (set! *warn-on-reflection* false)
@@ -10,6 +10,7 @@
    flop.weight-vector)
   (:import
    [gnu.trove TLongArrayList TLongDoubleHashMap]
+   [plumbing MurmurHash]
    [plumbing.index Index]
    [flop LongDoubleFeatureVector]
    [flop.weight_vector SparseWeightVector]))
@@ -221,6 +222,57 @@
   (for-map [feature-fn feature-fns]
     (feature-type feature-fn) (features feature-fn global-context datum)))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Feature hashing
+
+;; The hashing trick: [type key] pairs go straight to one of 2^hash-bits buckets, so no
+;; index has to be built (or stored) before training.  Each pair also gets a sign from an
+;; independent bit of its hash, so colliding features cancel rather than bias each other
+;; on average.  The resulting LongDoubleFeatureVectors have keys in [0, 2^hash-bits) and
+;; can be dotted directly against a dense weight vector of that size, or trained on with
+;; {:hash-bits hash-bits} (see classify.index/build-pred-index).
+
+(defn- fmix ^long [^long k]
+  (let [k (unchecked-multiply (bit-xor k (unsigned-bit-shift-right k 33)) -49064778989728563)
+        k (unchecked-multiply (bit-xor k (unsigned-bit-shift-right k 33)) -4265267296055464877)]
+    (bit-xor k (unsigned-bit-shift-right k 33))))
+
+(defn- key-hash ^long [key]
+  (cond (instance? Long key) (long key)
+        (integer? key) (long key)
+        (string? key) (MurmurHash/hash64 ^String key)
+        :else (MurmurHash/hash64 (str key))))
+
+(defn feature-hash
+  "64-bit hash of key under the feature type with hash type-hash (see type-hash)."
+  ^long [^long type-hash key]
+  (fmix (bit-xor type-hash (key-hash key))))
+
+(defn type-hash ^long [type]
+  (MurmurHash/hash64 (str type)))
+
+(defn- put-hashed! [^LongDoubleFeatureVector fv ^long mask ^long h ^double v]
+  (when-not (zero? v)
+    (.increment fv (bit-and h mask) (if (neg? h) (- v) v))))
+
+(defn hashing-featurizer
+  "Return a fn of [global-context datum] that puts the features of feature-fns into
+   a LongDoubleFeatureVector with keys in [0, 2^hash-bits), with signed hashing."
+  [hash-bits feature-fns]
+  (assert (< 0 hash-bits 63))
+  (let [mask (dec (bit-shift-left 1 (long hash-bits)))
+        typed (mapv (juxt (comp type-hash feature-type) identity) feature-fns)]
+    (fn [global-context datum]
+      (let [fv (LongDoubleFeatureVector.)]
+        (doseq [[^long t feature-fn] typed
+                :let [feature-map (features feature-fn global-context datum)]]
+          (if (instance? TLongDoubleHashMap feature-map)
+            (map/do-trove [[k v] ^TLongDoubleHashMap feature-map]
+                          (put-hashed! fv mask (fmix (bit-xor t k)) v))
+            (doseq [[k v] feature-map]
+              (put-hashed! fv mask (feature-hash t k) (double v)))))
+        fv))))
+
 (s/defn ^Double nested-map-dot-product
   "Dot product of two nested maps. Iterates over m1, so pass the smaller map first for
    efficiency."
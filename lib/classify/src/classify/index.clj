@@ -10,20 +10,122 @@
    [schema.core :as s]
    [flop.weight-vector :as weight-vector])
   (:import
-   [plumbing.index Index]
+   [plumbing.index IIndexer Index]
    [gnu.trove TLongDoubleHashMap]
-   [flop IObjectWeightVector IWeightVector LongDoubleFeatureVector]))
+   [flop FeatureMatrix FeatureMatrix$Builder IObjectWeightVector IWeightVector LongIndex
+    LongDoubleFeatureVector SortedLongDoubleFeatureVector]))
 
 (set! *warn-on-reflection* true)
 
+;; A locked IIndexer over long (e.g., hashed) predicates, backed by a LongIndex that can be
+;; written to a file and memory-mapped back.  Non-long items are not supported.
+(deftype LongIndexer [^LongIndex index]
+  IIndexer
+  (index! [this item] (index/safe-get-index this item))
+  (get-index [this item] (.getIndex index (long item)))
+  (safe-get-index [this item]
+    (let [i (.getIndex index (long item))]
+      (when (< i 0)
+        (throw (RuntimeException. (format "Cannot get index for %s" item))))
+      i))
+  (item [this idx] (.item index (int idx)))
+  (contains [this item] (>= (.getIndex index (long item)) 0))
+  (reset! [this])
+  (lock! [this])
+  (unlock! [this] (throw (UnsupportedOperationException. "LongIndexer is immutable")))
+  (locked? [this] true)
+
+  clojure.lang.Seqable
+  (seq [this] (seq (.items index)))
+
+  clojure.lang.Counted
+  (count [this] (.size index))
+
+  io/PDataLiteral
+  (to-data [this]
+    (let [buf (java.nio.ByteBuffer/allocate (.encodedSize index))]
+      (.encode index buf)
+      [::long-index-buffer (.array buf)])))
+
+(defmethod io/from-data ::long-index-buffer [[_ ^bytes buf]]
+  (LongIndexer. (LongIndex/decode (java.nio.ByteBuffer/wrap buf))))
+
+(defn long-index
+  "A LongIndexer giving the distinct longs in items sequential ids."
+  ^LongIndexer [items]
+  (LongIndexer. (LongIndex/build (long-array items))))
+
+(defn write-long-index! [^LongIndexer idx ^java.io.File f]
+  (.write ^LongIndex (.index idx) f))
+
+(defn mmap-long-index
+  "Memory-map a LongIndexer written by write-long-index!."
+  ^LongIndexer [^java.io.File f]
+  (LongIndexer. (LongIndex/map f)))
+
+;; The identity IIndexer over [0, 2^hash-bits), for data that was featurized with hashing
+;; (see classify.features/hashing-featurizer): no pass over the data is needed to build it.
+(deftype HashedIndexer [^long hash-bits]
+  IIndexer
+  (index! [this item] (index/safe-get-index this item))
+  (get-index [this item]
+    (let [i (long item)]
+      (if (and (>= i 0) (< i (bit-shift-left 1 hash-bits))) i -1)))
+  (safe-get-index [this item]
+    (let [i (index/get-index this item)]
+      (when (< i 0)
+        (throw (RuntimeException. (format "%s is outside the %s-bit hash space" item hash-bits))))
+      i))
+  (item [this idx] (index/safe-get-index this idx))
+  (contains [this item] (>= (index/get-index this item) 0))
+  (reset! [this])
+  (lock! [this])
+  (unlock! [this] (throw (UnsupportedOperationException. "HashedIndexer is immutable")))
+  (locked? [this] true)
+
+  clojure.lang.Seqable
+  (seq [this] (seq (range (bit-shift-left 1 hash-bits))))
+
+  clojure.lang.Counted
+  (count [this] (int (bit-shift-left 1 hash-bits)))
+
+  io/PDataLiteral
+  (to-data [this] [::hashed-index hash-bits]))
+
+(defn hashed-indexer
+  "A HashedIndexer over [0, 2^hash-bits).  Indices are ints, so hash-bits is at most 30."
+  ^HashedIndexer [hash-bits]
+  (assert (and (integer? hash-bits) (<= 1 hash-bits 30))
+          (str "hash-bits must be in [1, 30], not " hash-bits))
+  (HashedIndexer. hash-bits))
+
+(defmethod io/from-data ::hashed-index [[_ hash-bits]]
+  (hashed-indexer hash-bits))
+
 (defn convert-preds
-  [preds ^Index p-index normalize?]
+  [preds p-index normalize?]
   (let [out (LongDoubleFeatureVector. (count preds))]
-    (doseq [[p v] (seq preds)
-            :let [ip (index/get-index p-index p)]
-            :when (>= ip 0)]
-      (assert (not (Double/isNaN (double v))))
-      (.increment out ip v))
+    (if (and (instance? LongDoubleFeatureVector preds)
+             (or (instance? LongIndexer p-index) (instance? HashedIndexer p-index)))
+      (let [^LongDoubleFeatureVector preds preds
+            ^LongIndex li (when (instance? LongIndexer p-index) (.index ^LongIndexer p-index))
+            size (count p-index)
+            ks (.keys preds)
+            vs (.values preds)]
+        (dotimes [i (.count preds)]
+          (let [k (aget ks i)
+                ip (if li
+                     (.getIndex li k)
+                     (if (and (>= k 0) (< k size)) k -1))
+                v (aget vs i)]
+            (when (>= ip 0)
+              (assert (not (Double/isNaN v)))
+              (.increment out ip v)))))
+      (doseq [[p v] (seq preds)
+              :let [ip (index/get-index p-index p)]
+              :when (>= ip 0)]
+        (assert (not (Double/isNaN (double v))))
+        (.increment out ip v)))
     (.compact out)
     (let [n (.norm out)]
       (when (> n 0.0)
@@ -51,33 +153,40 @@
 (let [+rand+ (java.util.Random. 0)]
   (defn build-pred-index
     "process-datum-fn: returns [pred-vals label] pair
-   data: seq of datums"
+   data: seq of datums
+   With :hashed? true, preds must be longs (e.g., hashed features), and the result is a
+   LongIndexer, which can be saved with write-long-index! and memory-mapped.
+   With :hash-bits b (at most 30), preds must already be hashed into [0, 2^b) (see
+   classify.features/hashing-featurizer), and the result is a HashedIndexer, built
+   without looking at the data."
     [data
-     {:keys [pred-thresh, num-threads count-prob pred-prop]
+     {:keys [pred-thresh, num-threads count-prob pred-prop hashed? hash-bits]
       :or {pred-thresh 0 num-threads 1 count-prob 1.0 pred-prop 0.0}}]
-    (let [pred-thresh (max pred-thresh (* pred-prop (count data)))
-          worker (fn [data]
-                   (let [m (java.util.HashMap.)]
-                     (doseq [[datum] data
-                             pred (->> datum
-                                       distinct-keys
-                                       (?>> (< count-prob 1.0)
-                                            (filter (fn [_] (< (.nextDouble +rand+) count-prob)))))]
-                       (map/inc-key! m pred 1.0))
-                     m))
-          blocks (if (= num-threads 1)
-                   [(worker data)]
-                   (parallel/map-work
-                    num-threads worker
-                    (partition-all (math/ceil (/ (count data) num-threads)) data)))]
-      (let [[^java.util.Map f & m] blocks]
-        (doseq [m2 m
-                [k v] (seq m2)]
-          (map/inc-key! f k v))
-        (index/static
-         (for [[pred count] f
-               :when (> count pred-thresh)]
-           pred))))))
+    (if hash-bits
+      (hashed-indexer hash-bits)
+      (let [pred-thresh (max pred-thresh (* pred-prop (count data)))
+            worker (fn [data]
+                     (let [m (java.util.HashMap.)]
+                       (doseq [[datum] data
+                               pred (->> datum
+                                         distinct-keys
+                                         (?>> (< count-prob 1.0)
+                                              (filter (fn [_] (< (.nextDouble +rand+) count-prob)))))]
+                         (map/inc-key! m pred 1.0))
+                       m))
+            blocks (if (= num-threads 1)
+                     [(worker data)]
+                     (parallel/map-work
+                      num-threads worker
+                      (partition-all (math/ceil (/ (count data) num-threads)) data)))]
+        (let [[^java.util.Map f & m] blocks]
+          (doseq [m2 m
+                  [k v] (seq m2)]
+            (map/inc-key! f k v))
+          ((if hashed? long-index index/static)
+           (for [[pred count] f
+                 :when (> count pred-thresh)]
+             pred)))))))
 
 (defn convert-and-index-data
   [data opts]
@@ -96,6 +205,20 @@
 
 
 
+(defn feature-matrix
+  "Pack indexed data, [pred-vals label-index weight] tuples (e.g., the :i-data of
+   max-ent/index-data), into a CSR FeatureMatrix.  With target? the second element of each
+   tuple is a regression target instead, as in the output of convert-and-index-data."
+  (^FeatureMatrix [i-data] (feature-matrix i-data false))
+  (^FeatureMatrix [i-data target?]
+     (let [b (FeatureMatrix$Builder.)]
+       (doseq [[^LongDoubleFeatureVector pred-vals l w] i-data]
+         (if target?
+           (.addTarget b pred-vals (double l) (double (or w 1.0)))
+           (.add b pred-vals (int l) (double (or w 1.0)))))
+       (.build b))))
+
+
 (deftype IndexedWeightVector [^IWeightVector wv p-index]
   IWeightVector
   (dimension [this] (.dimension wv))
@@ -106,6 +229,8 @@
     (.dot-product wv other))
   (^double dot-product [this ^LongDoubleFeatureVector other]
     (.dot-product wv other))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other]
+    (.dot-product wv other))
   (reduce [this ^clojure.lang.IFn$OLDO f init] (.reduce wv f init))
 
   IObjectWeightVector
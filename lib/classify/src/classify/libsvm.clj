@@ -5,11 +5,15 @@
    linear models; if we see success there, then will need to be further developed."
   (:use plumbing.core)
   (:require
+   [clojure.java.io :as java-io]
    [clojure.java.shell :as shell]
    [clojure.string :as str]
    [plumbing.math :as math]
+   [plumbing.parallel :as parallel]
    [classify.features :as features]
-   [classify.index :as index]))
+   [classify.index :as index])
+  (:import
+   [flop FeatureMatrix LibSVM LibSVM$Chunk LongDoubleFeatureVector]))
 
 
 (set! *warn-on-reflection* true)
@@ -57,6 +61,58 @@
                         (let [[t k] (features/value-of feature-set i)]
                           (.replaceAll (str (name t) "_" k) " " "_")))))}))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Reading
+
+(defn parse-libsvm-line
+  "[fv label] from a line of libsvm text, or nil for a blank or comment line.  Fine for
+   small files; see read-libsvm for large ones."
+  [^String line]
+  (let [[label & tokens] (str/split (str/trim (first (str/split line #"#" 2))) #"\s+")]
+    (when-not (str/blank? label)
+      (let [fv (LongDoubleFeatureVector.)]
+        (doseq [^String t tokens
+                :let [[i v] (str/split t #":" 2)]
+                :when (re-matches #"\d+" i)]
+          (.put fv (Long/parseLong i) (Double/parseDouble v)))
+        [fv (Double/parseDouble label)]))))
+
+(defn read-libsvm-lines
+  "[[fv label] ...] from a libsvm file, one line at a time."
+  [f]
+  (with-open [r (java-io/reader f)]
+    (vec (keep parse-libsvm-line (line-seq r)))))
+
+(defn read-libsvm
+  "A FeatureMatrix of the rows of a libsvm file (labels as regression targets, weights
+   1).  The file is split on line boundaries into ranges parsed in parallel on threads,
+   straight from memory-mapped bytes.  See flop.LibSVM."
+  ^FeatureMatrix [f & [{:keys [threads] :or {threads 1}}]]
+  (let [f (java-io/file f)]
+    (LibSVM/toMatrix
+     (into-array
+      LibSVM$Chunk
+      (parallel/map-work
+       threads
+       (fn [[from to]] (LibSVM/parse f (long from) (long to)))
+       (partition 2 1 (LibSVM/splitPoints f (int threads))))))))
+
+(defn matrix->data
+  "[[fv label] ...] for the rows of m, as read-libsvm-lines would return them."
+  [^FeatureMatrix m]
+  (let [targets (.targets m)]
+    (for [r (range (.start m) (.end m))]
+      [(.row m (int r)) (aget targets (int r))])))
+
+(defn write-libsvm-binary!
+  "Write m in a flat binary form that read-libsvm-binary loads without parsing."
+  [^FeatureMatrix m f]
+  (LibSVM/writeBinary m (java-io/file f)))
+
+(defn read-libsvm-binary ^FeatureMatrix [f]
+  (LibSVM/readBinary (java-io/file f)))
+
+
 (def +default-binary-opts+
   "Opts for binary, labels should be 0/1.  See https://github.com/dmlc/xgboost/tree/master/demo"
   {;; general params
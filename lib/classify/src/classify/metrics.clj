@@ -2,7 +2,10 @@
   (:use plumbing.core)
   (:require
    [schema.core :as s]
-   [flop.stats :as stats]))
+   [plumbing.parallel :as parallel]
+   [flop.stats :as stats])
+  (:import
+   [flop ScoreHistogram]))
 
 (defprotocol Metric
   (score-datum [this datum]
@@ -21,3 +24,96 @@
                                     (map k)
                                     (reduce stats/merge-stats)))]))
             (into {})))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Streaming binary metrics
+
+;; Fixed-size, mergeable summaries of [score label] or [score label weight] pairs, for
+;; evaluations too large to hold or sort.  See flop.ScoreHistogram.  Histograms are
+;; BufferCodable, so they can be built on separate machines, shipped with
+;; plumbing.serialize, and merged.
+
+(defn score-histogram
+  "An empty histogram over bins equal-width bins of [lo hi] (default 1000 over [0 1])."
+  (^ScoreHistogram [] (score-histogram 1000))
+  (^ScoreHistogram [bins] (score-histogram 0.0 1.0 bins))
+  (^ScoreHistogram [lo hi bins] (ScoreHistogram. (double lo) (double hi) (int bins))))
+
+(defn add-score!
+  (^ScoreHistogram [^ScoreHistogram h score positive?]
+     (add-score! h score positive? 1.0))
+  (^ScoreHistogram [^ScoreHistogram h score positive? weight]
+     (.add h (double score) (boolean positive?) (double weight))
+     h))
+
+(defn merge-histograms
+  "A new histogram summarizing the data of all of hs, which must share bins."
+  ^ScoreHistogram [hs]
+  (let [^ScoreHistogram h (first hs)]
+    (reduce (fn [^ScoreHistogram m h] (.merge m h))
+            (ScoreHistogram. (.lo h) (.hi h) (.bins h))
+            hs)))
+
+(defn- merge-blocks
+  "Merge into h the histograms of the blocks of scored, summarized on one pool, threads
+   blocks at a time."
+  ^ScoreHistogram [^ScoreHistogram h summarize threads block-size scored]
+  (let [windows (partition-all threads (partition-all block-size scored))
+        ;; ^:once clears windows when it is used, so the pool's try doesn't hold its head
+        merge-all (^:once fn* [pool]
+                    (reduce (fn [^ScoreHistogram total window]
+                              (reduce (fn [^ScoreHistogram total h] (.merge total h))
+                                      total
+                                      (parallel/map-work pool summarize window)))
+                            h
+                            windows))]
+    (parallel/with-pool [pool threads]
+      (merge-all pool))))
+
+(defn histogram
+  "Summarize a seq of [score positive?] or [score positive? weight] in one pass.
+   With :threads > 1, blocks of :block-size (default 100000) items are summarized in
+   parallel on one pool, threads blocks at a time, and merged into one running
+   histogram, so only those blocks of scored are held in memory at once."
+  [scored & [{:keys [lo hi bins threads block-size]
+              :or {lo 0.0 hi 1.0 bins 1000 threads 1 block-size 100000}}]]
+  (let [summarize (fn [block]
+                    (let [h (score-histogram lo hi bins)]
+                      (doseq [[score positive? weight] block]
+                        (add-score! h score positive? (or weight 1.0)))
+                      h))]
+    (if (= threads 1)
+      (summarize scored)
+      (merge-blocks (score-histogram lo hi bins) summarize threads block-size scored))))
+
+(defn auc
+  "{:auc estimate :lower bound :upper bound} of the area under the ROC curve.  The
+   bounds are exact; the gap is the fraction of positive/negative pairs sharing a bin."
+  [^ScoreHistogram h]
+  (let [[a l u] (.auc h)]
+    {:auc a :lower l :upper u}))
+
+(defn log-loss
+  "Weighted mean negative log-likelihood of the labels, taking scores as P(positive)."
+  [^ScoreHistogram h]
+  (.logLoss h))
+
+(defn pr-curve
+  "[{:threshold :precision :recall}] predicting positive for scores >= each bin's
+   lower edge, from high to low threshold."
+  [^ScoreHistogram h]
+  (let [[ts ps rs] (.prCurve h)]
+    (mapv (fn [t p r] {:threshold t :precision p :recall r}) ts ps rs)))
+
+(defn calibration
+  "Reliability of scores as probabilities in num-groups groups of adjacent bins:
+   {:groups [{:mean-score :positive-rate :weight}] :ece expected calibration error}.
+   Empty groups are omitted."
+  [^ScoreHistogram h num-groups]
+  (let [[means rates weights] (.calibration h (int num-groups))
+        groups (for [[m r w] (map vector means rates weights)
+                     :when (pos? w)]
+                 {:mean-score m :positive-rate r :weight w})]
+    {:groups (vec groups)
+     :ece (/ (sum #(* (:weight %) (Math/abs (double (- (:mean-score %) (:positive-rate %))))) groups)
+             (sum :weight groups))}))
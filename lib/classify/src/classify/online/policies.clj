@@ -6,11 +6,14 @@
    [plumbing.core-incubator :as pci]
    [plumbing.io :as io]
    [plumbing.new-time :as new-time]
+   [plumbing.serialize :as serialize]
    [flop.distribution :as distribution]
+   [flop.math :as flop-math]
    [flop.stats :as stats]
    [classify.online :as online])
   (:import
    [java.util Random]
+   [flop ArmStore]
    [classify.online Step]))
 
 (set! *warn-on-reflection* true)
@@ -140,6 +143,78 @@
      #(/ (double (results % 0)) (double n))
      (keys (safe-get bandit :arms)))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Many-armed bandits over an ArmStore
+
+;; For tens of thousands of arms, per-arm maps of prior records are rebuilt on every
+;; update and walked on every action.  These bandits keep arm statistics in a
+;; flop.ArmStore instead, which is updated and decayed in place (so, unlike the policies
+;; above, update-policy and decay mutate and return the same bandit; split! copies).
+
+(s/defschema ArmSelector
+  (s/either
+   {:type (s/eq :ucb) (s/optional-key :c) double}
+   {:type (s/eq :thompson-beta) (s/optional-key :alpha) double (s/optional-key :beta) double}
+   {:type (s/eq :thompson-gaussian)
+    (s/optional-key :prior-mean) double
+    (s/optional-key :prior-variance) double
+    (s/optional-key :prior-count) double}))
+
+(defn- select-arm ^long [^ArmStore store r selector]
+  (case (:type selector)
+    :ucb (.ucbBest store (double (:c selector 1.0)))
+    :thompson-beta (.thompsonBetaBest
+                    store (flop-math/bulk-source r)
+                    (double (:alpha selector 0.5)) (double (:beta selector 0.5)))
+    :thompson-gaussian (.thompsonGaussianBest
+                        store (flop-math/bulk-source r)
+                        (double (:prior-mean selector 0.0))
+                        (double (:prior-variance selector 1.0))
+                        (double (:prior-count selector 0.01)))))
+
+(s/defrecord ArmStoreBandit
+    [r
+     arms :- [distribution/Arm]
+     arm-index :- {distribution/Arm long}
+     store :- ArmStore
+     selector :- ArmSelector]
+  online/PPolicy
+  (action [this datum] (arms (select-arm store r selector)))
+  (update-policy [this step]
+    (.update ^ArmStore store (int (safe-get arm-index (.action ^Step step))) (.reward ^Step step))
+    this)
+  (split! [this] (assoc this :r (fresh-random) :store (.copy ^ArmStore store)))
+
+  PDecayablePolicy
+  (decay [this w] (.decay ^ArmStore store (double w)) this))
+
+(s/defn arm-store-bandit
+  "A bandit over arms backed by an ArmStore, choosing with selector:
+     {:type :ucb :c 1.0}                           UCB1 with exploration weight c
+     {:type :thompson-beta :alpha 0.5 :beta 0.5}   Thompson sampling for 0/1 rewards
+     {:type :thompson-gaussian :prior-mean 0.0 :prior-variance 1.0 :prior-count 0.01}
+                                                   Thompson sampling for real rewards
+   r can be a Random, MersenneTwisterFast, or SplittableRandom."
+  [r arms :- [distribution/Arm] selector :- ArmSelector]
+  (let [arms (vec arms)
+        store (ArmStore. (count arms))]
+    (dotimes [_ (count arms)] (.addArm store))
+    (ArmStoreBandit. r arms (for-map [[i a] (indexed arms)] a (long i)) store selector)))
+
+(defn snapshot-arm-store-bandit
+  "Serialize the arms, statistics, and selector of bandit (but not its RNG) to bytes."
+  ^bytes [^ArmStoreBandit bandit]
+  (serialize/serialize
+   serialize/+default+
+   {:arms (:arms bandit) :store (:store bandit) :selector (:selector bandit)}))
+
+(defn restore-arm-store-bandit
+  "A bandit from snapshot-arm-store-bandit bytes, sampling with r."
+  [r ^bytes snapshot]
+  (letk [[arms store selector] (serialize/deserialize snapshot)]
+    (ArmStoreBandit. r arms (for-map [[i a] (indexed arms)] a (long i)) store selector)))
+
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;; Simple policy adapters
 
@@ -0,0 +1,69 @@
+(ns classify.quantize
+  "Reduced-precision copies of trained linear classifiers, for serving with smaller
+   resident models.  See flop.weight-vector/quantize for the available encodings."
+  (:use plumbing.core)
+  (:require
+   [flop.weight-vector :as weight-vector]
+   [classify.core :as classify]
+   [classify.index :as index])
+  (:import
+   [flop IWeightVector]
+   [classify.index IndexedWeightVector]))
+
+(set! *warn-on-reflection* true)
+
+(def +kinds+ [:float :half :int8])
+
+(defn quantize-weights
+  "Quantize a weight vector, keeping the pred index of an IndexedWeightVector.
+   Unindexed sparse weights must have small non-negative keys (e.g., unpacked max-ent)."
+  ^IWeightVector [^IWeightVector wv kind]
+  (if (instance? IndexedWeightVector wv)
+    (let [^IndexedWeightVector wv wv]
+      (index/->IndexedWeightVector (quantize-weights (.wv wv) kind) (.p-index wv)))
+    (weight-vector/quantize wv kind)))
+
+(defn quantize
+  "A copy of linear-classifier with every weight vector quantized to kind (:float, :half,
+   or :int8)."
+  [linear-classifier kind]
+  (update-in linear-classifier [:label->weights] (partial map-vals #(quantize-weights % kind))))
+
+(defn- unindexed ^IWeightVector [^IWeightVector wv]
+  (if (instance? IndexedWeightVector wv) (.wv ^IndexedWeightVector wv) wv))
+
+(defn- weight-bytes [label->weights]
+  (sum #(weight-vector/resident-bytes (unindexed %)) (vals label->weights)))
+
+(defn- dense-bytes [label->weights]
+  (sum #(* 8 (.dimension (unindexed %))) (vals label->weights)))
+
+(defn report
+  "Accuracy-vs-memory comparison of quantized copies of linear-classifier on data, a seq of
+   preds in whatever form classify/scores accepts for this classifier.  Returns one map per
+   kind with the weight bytes, compression relative to dense doubles, the max and mean
+   absolute score error, and the fraction of datums whose best guess is unchanged."
+  ([linear-classifier data] (report linear-classifier data +kinds+))
+  ([linear-classifier data kinds]
+     (let [data (vec data)
+           exact (mapv #(classify/scores linear-classifier %) data)]
+       (for [kind kinds]
+         (let [q (quantize linear-classifier kind)
+               approx (mapv #(classify/scores q %) data)
+               errs (for [[e a] (map vector exact approx)
+                          [label s] e]
+                      (Math/abs (- (double s) (double (safe-get a label)))))
+               best #(key (apply max-key val %))
+               bytes (weight-bytes (:label->weights q))
+               full-bytes (dense-bytes (:label->weights q))]
+           {:kind kind
+            :bytes bytes
+            :compression (/ (double full-bytes) bytes)
+            :max-error (if (seq errs) (apply max errs) 0.0)
+            :mean-error (if (seq errs) (/ (sum errs) (count errs)) 0.0)
+            :agreement (if (seq data)
+                         (/ (double (count (filter true? (map #(= (best %1) (best %2)) exact approx))))
+                            (count data))
+                         1.0)})))))
+
+(set! *warn-on-reflection* false)
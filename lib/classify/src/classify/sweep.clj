@@ -0,0 +1,152 @@
+(ns classify.sweep
+  "Cross-validated hyperparameter sweeps for max-ent, which index the data once.
+
+   The data is indexed into one read-only FeatureMatrix, and each fold's train and test
+   sets are views of its rows, so (grid point, fold) jobs share it and can be trained
+   concurrently on one bounded pool.  With column-normalize?, each fold instead gets its
+   own matrix, normalized by the column statistics of its training rows only.  Without
+   pruning, every job is submitted at once; with it, folds are run in rounds, and after
+   each round grid points whose mean held-out loss is clearly worse than the best are
+   dropped."
+  (:use plumbing.core)
+  (:require
+   [plumbing.core-incubator :as pci]
+   [plumbing.logging :as log]
+   [plumbing.parallel :as parallel]
+   [plumbing.resource :as resource]
+   [classify.core :as classify]
+   [classify.index :as index]
+   [classify.algorithms.max-ent :as max-ent])
+  (:import
+   [flop FeatureMatrix]))
+
+(set! *warn-on-reflection* true)
+
+(defn- fold-bounds
+  "[from to) of the test rows of fold i of k of n rows."
+  [n k i]
+  [(int (quot (* n i) k)) (int (quot (* n (inc i)) k))])
+
+(defn- fold-views
+  "[train-blocks test-view] for fold i of k of the rows of m."
+  [^FeatureMatrix m k i]
+  (let [[from to] (fold-bounds (.numRows m) k i)]
+    [(remove #(zero? (.numRows ^FeatureMatrix %))
+             [(.rows m (.start m) from) (.rows m to (.end m))])
+     (.rows m from to)]))
+
+(defn evaluate-rows
+  "{:log-loss (weighted mean negative log-likelihood) :accuracy (weighted)} of
+   weight-arr on the rows of m."
+  [helper ^doubles weight-arr ^FeatureMatrix m]
+  (let [probs (double-array (:num-labels helper))
+        labels (.labels m)
+        weights (.weights m)]
+    (loop [r (.start m) loss 0.0 correct 0.0 total 0.0]
+      (if (>= r (.end m))
+        {:log-loss (/ loss (max total 1.0e-100))
+         :accuracy (/ correct (max total 1.0e-100))}
+        (let [^doubles log-probs (max-ent/-row-log-probs! helper weight-arr m r probs)
+              label (aget labels r)
+              w (aget weights r)
+              lp (aget log-probs label)
+              best? (loop [l 0]
+                      (cond (>= l (alength log-probs)) true
+                            (> (aget log-probs l) lp) false
+                            :else (recur (inc l))))]
+          (recur (inc r)
+                 (- loss (* w lp))
+                 (if best? (+ correct w) correct)
+                 (+ total w)))))))
+
+(defn- mean [xs] (/ (sum xs) (count xs)))
+
+(defn sweep
+  "Cross-validate max-ent over grid, a seq of option maps (e.g., [{:sigma-sq 0.1}
+   {:sigma-sq 1.0}]) each merged into opts for max-ent/train-indexed.  Options:
+     :data            labeled data, as for max-ent/trainer
+     :k-fold          folds (default 5); the data is shuffled once with :seed first
+     :threads         size of the pool that (grid point, fold) jobs share
+     :prune-margin    after each fold, drop grid points whose mean held-out log-loss so
+                      far is more than (1 + prune-margin) times the best (default nil,
+                      never prune)
+     :final-model?    also train a classifier on all the data with the best grid point
+   plus indexing options for max-ent/index-data.  Returns
+   {:results [{:params :folds [{:log-loss :accuracy} ...] :log-loss :accuracy :pruned?}]
+    :best params :model (if final-model?)}, results in grid order."
+  [grid {:as opts :keys [data k-fold threads seed prune-margin final-model? unpack? column-normalize?]
+         :or {k-fold 5 threads 1 seed 0}}]
+  (assert (>= k-fold 2))
+  (let [data (pci/shuffle-by (java.util.Random. (long seed)) data)
+        opts (dissoc opts :data)]
+    (letk [[p-index l-index i-data] (max-ent/index-data
+                                     (assoc opts :data data :column-normalize? false))]
+      (let [helper (max-ent/new-helper (count p-index) (count l-index))
+            i-data (if column-normalize? (vec i-data) i-data)
+            m (when-not column-normalize? (index/feature-matrix i-data))
+            normalized (fn [train-rows]
+                         (let [[means std-devs] (max-ent/compute-means-and-std-devs
+                                                 (count p-index) train-rows)]
+                           [(index/feature-matrix (max-ent/column-normalize i-data means std-devs))
+                            std-devs]))
+            folds (mapv (fn [i]
+                          (if column-normalize?
+                            (let [[from to] (fold-bounds (count i-data) k-fold i)]
+                              (fold-views (first (normalized (concat (subvec i-data 0 from)
+                                                                     (subvec i-data to))))
+                                          k-fold i))
+                            (fold-views m k-fold i)))
+                        (range k-fold))
+            grid (vec grid)]
+        (resource/with-open [pool (when (> threads 1) (parallel/fixed-thread-pool threads))]
+          (let [pool-or-threads (or pool 1)
+                evaluate (fn [[g fold]]
+                           (let [[train-blocks test-view] (folds fold)]
+                             (evaluate-rows
+                              helper
+                              (max-ent/train-indexed train-blocks helper (merge opts (grid g)) 1)
+                              test-view)))
+                results
+                (if-not prune-margin
+                  (->> (for [g (range (count grid)) fold (range k-fold)] [g fold])
+                       (parallel/map-work pool-or-threads evaluate)
+                       (partition k-fold)
+                       (mapv vec))
+                  (loop [fold 0 live (vec (range (count grid))) evals (vec (repeat (count grid) []))]
+                    (if (or (= fold k-fold) (empty? live))
+                      evals
+                      (let [new-evals (vec (parallel/map-work
+                                            pool-or-threads
+                                            evaluate
+                                            (for [g live] [g fold])))
+                            evals (reduce (fn [evals [g e]] (update-in evals [g] conj e))
+                                          evals
+                                          (map vector live new-evals))
+                            losses (for-map [g live] g (mean (map :log-loss (evals g))))
+                            best-loss (apply min (vals losses))
+                            live (filterv #(<= (losses %) (* (+ 1.0 prune-margin) best-loss)) live)]
+                        (log/infof "sweep: fold %s done, %s of %s grid points left"
+                                   fold (count live) (count grid))
+                        (recur (inc fold) live evals)))))
+                results (for [[g evals] (indexed results)]
+                          {:params (grid g)
+                           :folds evals
+                           :log-loss (mean (map :log-loss evals))
+                           :accuracy (mean (map :accuracy evals))
+                           :pruned? (< (count evals) k-fold)})
+                best (:params (apply min-key :log-loss (remove :pruned? results)))]
+            (assoc-when
+             {:results (vec results)
+              :best best}
+             :model (when final-model?
+                      (let [[^FeatureMatrix m std-devs] (if column-normalize? (normalized i-data) [m])
+                            weight-arr (max-ent/train-indexed
+                                        (.blocks m (int threads)) helper (merge opts best)
+                                        pool-or-threads)]
+                        (when column-normalize?
+                          (max-ent/unnormalize-columns! weight-arr std-devs))
+                        (classify/->LinearClassifier
+                         (max-ent/unsplat weight-arr l-index p-index unpack?)
+                         (not unpack?)))))))))))
+
+(set! *warn-on-reflection* false)
@@ -3,9 +3,11 @@
   (:require
    [plumbing.index :as plumbing-index]
    [plumbing.io :as io]
+   [plumbing.parallel :as parallel]
    [flop.map :as map]
    [flop.empirical-gradient :as empirical-gradient]
-   [classify.core :as classify]))
+   [classify.core :as classify]
+   [classify.index :as index]))
 
 (deftest unsplat-test
   (let [p-index (plumbing-index/static [:a :b :c])
@@ -106,4 +108,87 @@
       (doseq [[grad emp-grad] gradients]
         (is-approx-= grad emp-grad 1e-4)))))
 
+(deftest feature-matrix-obj-fn-test
+  (doseq [data [[[{0 1.0 1 1.0} 0] [{1 1.0 2 1.0} 1] [{0 1.0 2 1.0} 1 2.0]]
+                [[{0 1.0 1 1.0} 0] [{1 1.0 2 1.0} 1] [{3 1.0 4 1.0} 2] [{0 0.5 4 1.0} 2]]]
+          threads [1 2 3]]
+    (letk [[p-index l-index i-data] (index-data {:data (for [[d & more] data] (cons (map/map->fv d) more))})]
+      (let [helper (new-helper (count p-index) (count l-index))
+            weights (double-array (for [i (range (dimension helper))] (Math/sin i)))
+            [seq-val seq-grad] ((obj-fn i-data helper nil threads) weights)
+            [mat-val mat-grad] ((obj-fn (index/feature-matrix i-data) helper nil threads) weights)]
+        (is-approx-= seq-val mat-val 1e-12)
+        (is-approx-= (seq seq-grad) (seq mat-grad) 1e-12)
+        (testing "block scratch arrays are reused across evaluations"
+          (let [f (obj-fn (index/feature-matrix i-data) helper nil threads)
+                other (double-array (for [i (range (dimension helper))] (Math/cos i)))]
+            (f other)
+            (let [[val grad] (f weights)]
+              (is-approx-= mat-val val 1e-12)
+              (is-approx-= (seq mat-grad) (seq grad) 1e-12))))))))
+
+(deftest parallel-line-search-train-test
+  (let [r (java.util.Random. 0)
+        data (vec (for [i (range 500)]
+                    [(map/map->fv (for-map [p (distinct (repeatedly 5 #(.nextInt r 30)))]
+                                    p (.nextDouble r)))
+                     (rem i 3)]))
+        weights (fn [opts]
+                  (map-vals (fn->> io/to-data second (sort-by key) (map val))
+                            (:label->weights ((trainer (merge {:unpack? true :threads 2} opts)) data))))]
+    (is-approx-= (weights {}) (weights {:line-search-threads 4}) 1e-12)
+
+    (testing "concurrent evaluations of the matrix objective"
+      (letk [[p-index l-index i-data] (index-data {:data data})]
+        (let [helper (new-helper (count p-index) (count l-index))
+              f (obj-fn (index/feature-matrix i-data) helper nil 2)
+              points (for [j (range 8)]
+                       (double-array (for [i (range (dimension helper))] (Math/sin (* i (inc j))))))
+              serial (mapv (fn [w] (let [[v g] (f w)] [v (seq g)])) points)]
+          (dotimes [_ 5]
+            (is-approx-= serial
+                         (mapv deref (doall (for [w points] (future (let [[v g] (f w)] [v (seq g)])))))
+                         1e-12)))))))
+
+(deftest tree-sum-test
+  (doseq [n [1 2 3 5 8]
+          threads [1 3]]
+    (let [arrs (for [i (range n)] (double-array [i (* 2 i) 1]))]
+      (is (= (map double [(reduce + (range n)) (* 2 (reduce + (range n))) n])
+             (seq (tree-sum! threads arrs)))))))
+
+(defn- all-threads-allocated-bytes ^long []
+  (let [^com.sun.management.ThreadMXBean mx (java.lang.management.ManagementFactory/getThreadMXBean)]
+    (reduce + (remove neg? (.getThreadAllocatedBytes mx (.getAllThreadIds mx))))))
+
+(deftest ^:bench obj-fn-bench
+  (let [r (java.util.Random. 0)
+        num-preds 10000
+        n 1000000
+        threads 4]
+    (doseq [num-labels [2 5]]
+      (let [helper (new-helper num-preds num-labels)
+            m (let [b (flop.FeatureMatrix$Builder.)]
+                (dotimes [_ n]
+                  (let [fv (flop.LongDoubleFeatureVector. 20)]
+                    (dotimes [_ 20] (.increment fv (long (.nextInt r num-preds)) 1.0))
+                    (.add b fv (.nextInt r num-labels) 1.0)))
+                (.build b))
+            weights (double-array (for [i (range (dimension helper))] (* 0.01 (Math/sin i))))]
+        (doseq [[k data] {:seq (vec (for [i (range n)] [(.row ^flop.FeatureMatrix m (int i))
+                                                          (aget (.labels ^flop.FeatureMatrix m) i)
+                                                          1.0]))
+                          :matrix m}]
+          (let [pool (parallel/fixed-thread-pool threads)
+                f (obj-fn data helper pool threads)
+                iters 10]
+            (f weights)
+            (let [bytes (all-threads-allocated-bytes)
+                  start (System/nanoTime)]
+              (dotimes [_ iters] (f weights))
+              (println num-labels "labels," k ":"
+                       (/ (- (System/nanoTime) start) 1.0e6 iters) "ms and"
+                       (/ (- (all-threads-allocated-bytes) bytes) 1.0e6 iters) "MB allocated per iteration"))
+            (.shutdown ^java.util.concurrent.ExecutorService pool)))))))
+
 (use-fixtures :once validate-schemas)
@@ -0,0 +1,63 @@
+(ns classify.algorithms.mira-test
+  (:use clojure.test plumbing.core plumbing.test classify.algorithms.mira-new)
+  (:require
+   [classify.algorithms.mira :as mira])
+  (:import
+   [flop IWeightVector LongDoubleFeatureVector]))
+
+(defn- random-data
+  "[[feat val] ...] data over string features for mira, and the same as [fv label] data
+   for averaged-mira, with feature i indexed as i."
+  [seed num-labels]
+  (let [r (java.util.Random. seed)
+        data (vec (for [_ (range 300)]
+                    [(vec (for [f (distinct (repeatedly 8 #(.nextInt r 200)))]
+                            [(str "f" f) (double (inc (.nextInt r 3)))]))
+                     (keyword (str "l" (.nextInt r num-labels)))]))]
+    [data
+     (for [[d l] data]
+       [(let [fv (LongDoubleFeatureVector. (count d))]
+          (doseq [[^String k v] d] (.put fv (Long/parseLong (subs k 1)) (double v)))
+          fv)
+        l])]))
+
+(deftest averaged-mira-matches-mira-test
+  (doseq [num-labels [2 3 7]]
+    (let [[data i-data] (random-data num-labels num-labels)
+          labels (set (map second data))
+          iters 4
+          total (* iters (count data))
+          [old-mira old-mistakes] (reduce
+                                   (fn [[m mistakes] [datum label]]
+                                     (let [[m mistake?] (mira/update-mira m datum label)]
+                                       [m (conj mistakes mistake?)]))
+                                   [(mira/new-mira labels (constantly 1) total 0.15) []]
+                                   (apply concat (repeat iters data)))
+          m (averaged-mira labels (constantly 1) total 0.15)
+          mistakes (vec (for [[fv label] (apply concat (repeat iters i-data))] (boolean (m fv label))))
+          check (fn [label->map label->wv eq?]
+                  (doseq [[label weights] label->map
+                          [^String k v] weights]
+                    (is (eq? v (.val-at ^IWeightVector (label->wv label) (Long/parseLong (subs k 1)))))))]
+      (is (= old-mistakes mistakes))
+      (check (:label-weights old-mira) (current-weights m) ==)
+      (check (:cum-label-weights old-mira) (averaged-weights m) #(< (Math/abs (- %1 %2)) 1.0e-9)))))
+
+(deftest ^:bench averaged-mira-bench
+  ;; examples/sec for one pass of map-based mira vs. averaged-mira
+  (let [[data i-data] (random-data 0 5)
+        data (vec (apply concat (repeat 20 data)))
+        i-data (vec (apply concat (repeat 20 i-data)))
+        labels (set (map second data))
+        rate (fn [f]
+               (let [start (System/nanoTime)]
+                 (f)
+                 (/ (count data) (/ (- (System/nanoTime) start) 1.0e9))))]
+    (dotimes [_ 3]
+      (println "mira examples/sec:"
+               (rate #(reduce (fn [m [datum label]] (first (mira/update-mira m datum label)))
+                              (mira/new-mira labels (constantly 1) (count data) 0.15)
+                              data)))
+      (println "averaged-mira examples/sec:"
+               (rate #(let [m (averaged-mira labels (constantly 1) (count i-data) 0.15)]
+                        (doseq [[fv label] i-data] (m fv label))))))))
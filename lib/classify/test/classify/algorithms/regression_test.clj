@@ -2,7 +2,8 @@
   (:use clojure.test plumbing.core classify.algorithms.regression plumbing.test)
   (:require
    [flop.map :as map]
-   [flop.empirical-gradient :as empirical-gradient])
+   [flop.empirical-gradient :as empirical-gradient]
+   [classify.index :as index])
   (:import [flop LongDoubleFeatureVector]))
 
 (def sample-datums
@@ -31,6 +32,14 @@
                sample-datums
                (double-array [3.0 1.5 1.5]))))))))
 
+(deftest feature-matrix-objective-test
+  (let [m (index/feature-matrix sample-datums true)]
+    (doseq [weights [[0.0 0.0 0.0] [3.0 1.5 1.5] [1.0 -2.0 0.5]]]
+      (let [[v g] (linear-objective 3 sample-datums (double-array weights))
+            [mv mg] (linear-objective 3 m (double-array weights))]
+        (is (= v mv))
+        (is (= (seq g) (seq mg)))))))
+
 (deftest objective-gradient-consistency-test
   (let [num-dims 3
         f (partial linear-objective num-dims sample-datums)
@@ -46,8 +55,8 @@
     [fv (+ (.dotProduct fv mean-vec)
            (* 0.1 (.nextGaussian rand)))]))
 
-(defn learned-weights [data]
-  (-> data (learn-linear {}) .ldhm map/trove->map))
+(defn learned-weights [data & [opts]]
+  (-> data (learn-linear (or opts {})) .ldhm map/trove->map))
 
 (defn recover-params-test [^java.util.Random rand ^doubles mean-vec ^long num-examples]
   (let [rand (java.util.Random. 0)
@@ -73,3 +82,49 @@
                       [(flop.map/map->fv {0 (double i) 1 1.0}) (+ (* 2.0 i) 3.0) 1.0]))
    {0 2.0 1 3.0}
    1.0e-6))
+
+(deftest sufficient-stats-solvers-test
+  (let [rand (java.util.Random. 0)
+        mean-vec (double-array [1.0 2.0 3.0])
+        data (vec (for [_ (range 1000)] (generate-example rand mean-vec)))
+        line (for [i (range 100)]
+               [(flop.map/map->fv {0 (double i) 1 1.0}) (+ (* 2.0 i) 3.0) 1.0])]
+    (doseq [solver [:cholesky :cg]
+            threads [1 3]]
+      (testing [solver threads]
+        (is-approx-= {0 1.0 1 2.0 2 3.0}
+                     (learned-weights data {:solver solver :threads threads})
+                     0.01)
+        (is-approx-= {0 2.0 1 3.0}
+                     (learned-weights line {:solver solver :threads threads})
+                     1.0e-6)))
+    (testing "matches l-bfgs with a ridge"
+      (let [m (index/feature-matrix sample-datums true)
+            opts {:sigma-sq 0.5 :print-progress false :thresh 1.0e-10}
+            lbfgs (optimize-linear m 3 opts)]
+        (doseq [solver [:cholesky :cg]]
+          (is-approx-= (seq lbfgs) (seq (optimize-linear m 3 (assoc opts :solver solver))) 1.0e-4))))
+    (testing "objective from sufficient stats"
+      (let [m (index/feature-matrix sample-datums true)
+            w (double-array [1.0 -2.0 0.5])]
+        (is (< (Math/abs (- (first (linear-objective 3 m w))
+                            (.objective (least-squares 3 m 2) w)))
+               1.0e-12))))))
+
+(deftest ^:bench solver-bench
+  ;; seconds to fit 200k rows x 200 dims (20 nonzeros per row) by l-bfgs vs. the
+  ;; sufficient-statistics solvers
+  (let [rand (java.util.Random. 0)
+        truth (double-array (repeatedly 200 #(.nextGaussian rand)))
+        data (vec (for [_ (range 200000)]
+                    (let [fv (map/map->fv (for-map [i (distinct (repeatedly 20 #(.nextInt rand 200)))]
+                                            i (.nextDouble rand)))]
+                      [fv (+ (.dotProduct fv truth) (* 0.1 (.nextGaussian rand))) 1.0])))
+        m (index/feature-matrix data true)
+        seconds (fn [f] (let [start (System/nanoTime)] (f) (/ (- (System/nanoTime) start) 1.0e9)))]
+    (dotimes [_ 3]
+      (println "l-bfgs seconds:" (seconds #(optimize-linear m 200 {:print-progress false})))
+      (doseq [solver [:cholesky :cg]
+              threads [1 4]]
+        (println (name solver) "seconds," threads "threads:"
+                 (seconds #(optimize-linear m 200 {:solver solver :threads threads})))))))
@@ -0,0 +1,112 @@
+(ns classify.algorithms.sgd-test
+  (:use clojure.test plumbing.core plumbing.test classify.algorithms.sgd)
+  (:require
+   [plumbing.io :as io]
+   [flop.map :as map]
+   [flop.optimize :as optimize]
+   [classify.core :as classify]
+   [classify.index :as index]
+   [classify.utils :as utils]
+   [classify.algorithms.max-ent :as max-ent])
+  (:import
+   [flop LongDoubleFeatureVector]))
+
+(defn- weights [classifier]
+  (map-vals (fn->> io/to-data second (sort-by key) (map val)) (:label->weights classifier)))
+
+(def +data+
+  [[[[{0 1.0 1 1.0} 0] [{1 1.0 2 1.0} 1]]
+    {0 0.1 1 0.5 2 1.0}
+    1]
+   [[[{0 1.0 1 1.0} 0] [{1 1.0 2 1.0} 1] [{3 1.0 4 1.0} 2]]
+    {0 1.0 1 0.5 2 0.0}
+    0]])
+
+(deftest converges-to-max-ent-test
+  (doseq [[data-maps pred-map best-label] +data+
+          algorithm [:sgd :adagrad]
+          batch-size [1 2]]
+    (let [data (for [[d v] data-maps] [(map/map->fv d) v])
+          opts {:normalize? true :unpack? true :sigma-sq (count data)}
+          expected ((max-ent/trainer opts) data)
+          classifier ((trainer (assoc opts :algorithm algorithm :batch-size batch-size
+                                      :learning-rate 0.5 :epochs 3000))
+                      data)]
+      (is-approx-= (weights expected) (weights classifier) 1.0e-2)
+      (is (= best-label (classify/best-guess classifier (map/map->fv pred-map)))))))
+
+(deftest ftrl-test
+  (doseq [[data-maps pred-map best-label] +data+]
+    (let [data (for [[d v] data-maps] [(map/map->fv d) v])
+          opts {:normalize? true :unpack? true :algorithm :ftrl :epochs 100}]
+      (is (= best-label (classify/best-guess ((trainer opts) data) (map/map->fv pred-map))))
+      (testing "a large L1 penalty zeroes every weight"
+        (is (every? zero? (apply concat (vals (weights ((trainer (assoc opts :l1 100.0)) data))))))))))
+
+(deftest sharded-test
+  (let [r (java.util.Random. 0)
+        data (vec (for [i (range 400)]
+                    (let [label (.nextInt r 3)]
+                      [(map/map->fv {label 1.0 (+ 3 (.nextInt r 5)) 1.0}) label])))
+        train #((trainer {:unpack? true :threads % :epochs 20 :seed 1}) data)
+        classifier (train 4)]
+    (is (= (weights classifier) (weights (train 4))))
+    (doseq [label (range 3)]
+      (is (= label (classify/best-guess classifier (map/map->fv {label 1.0})))))))
+
+(deftest column-normalize-test
+  (let [r (java.util.Random. 0)
+        data (vec (for [i (range 400)]
+                    (let [label (.nextInt r 3)]
+                      [(map/map->fv {label 10.0 (+ 3 (.nextInt r 5)) 1.0}) label])))
+        opts {:unpack? true :column-normalize? true :epochs 20}
+        classifier ((trainer opts) data)
+        expected ((max-ent/trainer opts) data)]
+    (is (= 3 (count (:label->weights classifier))))
+    (doseq [label (range 3)
+            :let [fv (map/map->fv {label 10.0})]]
+      (is (= label (classify/best-guess classifier fv)))
+      (is (= (classify/best-guess expected fv) (classify/best-guess classifier fv))))))
+
+(deftest ^:bench convergence-bench
+  (let [r (java.util.Random. 0)
+        num-preds 1000
+        truth (double-array (repeatedly num-preds #(.nextGaussian r)))
+        data (vec (repeatedly
+                   200000
+                   #(let [fv (LongDoubleFeatureVector. 20)]
+                      (dotimes [_ 20] (.increment fv (long (.nextInt r num-preds)) 0.25))
+                      [fv (< (.nextDouble r) (/ 1.0 (+ 1.0 (Math/exp (- (.dotProduct fv truth))))))])))]
+    (letk [[p-index l-index i-data] (max-ent/index-data {:data data})]
+      (let [helper (max-ent/new-helper (count p-index) (count l-index))
+            m (index/feature-matrix i-data)
+            objective (utils/l2-reg-fn (max-ent/obj-fn m helper nil 1) 1.0)
+            trace (fn [run]
+                    (let [points (atom [])
+                          start (System/nanoTime)]
+                      (run (fn [x]
+                              (swap! points conj [(/ (- (System/nanoTime) start) 1.0e6)
+                                                  (aclone ^doubles x)])))
+                      (for [[ms x] @points] [ms (first (objective x))])))]
+        (doseq [[k points]
+                {:lbfgs (trace #(optimize/lbfgs-optimize
+                                 objective (double-array (max-ent/dimension helper))
+                                 {:max-iters 50 :iter-callback (fn [{:keys [x]}] (% x))}))
+                 :sgd (trace #(train! m helper (count p-index)
+                                      {:algorithm :sgd :learning-rate 0.5 :l1 0.0 :l2 1.0
+                                       :batch-size 32 :epochs 10 :threads 1 :seed 0
+                                       :epoch-callback (fn [_ x] (% x))}
+                                      nil))
+                 :adagrad (trace #(train! m helper (count p-index)
+                                          {:algorithm :adagrad :learning-rate 0.1 :l1 0.0 :l2 1.0
+                                           :batch-size 32 :epochs 10 :threads 1 :seed 0
+                                           :epoch-callback (fn [_ x] (% x))}
+                                          nil))
+                 :adagrad-4-threads (trace #(train! m helper (count p-index)
+                                                    {:algorithm :adagrad :learning-rate 0.1 :l1 0.0
+                                                     :l2 1.0 :batch-size 32 :epochs 10 :threads 4
+                                                     :seed 0 :epoch-callback (fn [_ x] (% x))}
+                                                    nil))}]
+          (println k "[ms objective]:" (vec points)))))))
+
+(use-fixtures :once validate-schemas)
@@ -120,4 +120,86 @@
     (is (every? #(> (weights %) 0.5) ["titlea" "transfera" "testa"]))
     (is (every? #(< (weights %) -0.5) ["titleb" "transferb" "testb"]))))
 
+(defn mixture-data
+  "A fn of n returning n [fv label] pairs from a synthetic multinomial mixture: each
+   datum draws a label uniformly, then words-per-datum features from that label's
+   distribution over num-features."
+  [^java.util.Random r num-labels num-features words-per-datum]
+  (let [thetas (vec (for [_ (range num-labels)]
+                      (let [xs (vec (for [_ (range num-features)] (Math/pow (.nextDouble r) 2)))
+                            z (sum xs)]
+                        (double-array (reductions + (map #(/ % z) xs))))))]
+    (fn [n]
+      (vec (for [_ (range n)]
+             (let [l (.nextInt r num-labels)
+                   ^doubles cdf (thetas l)
+                   fv (flop.LongDoubleFeatureVector.)]
+               (dotimes [_ words-per-datum]
+                 (let [u (.nextDouble r)]
+                   (.increment fv (long (min (dec num-features)
+                                             (count (take-while #(< % u) cdf))))
+                               1.0)))
+               [fv l]))))))
+
+(deftest nb-em-trainer-test
+  (let [gen (mixture-data (java.util.Random. 0) 3 500 6)
+        labeled (gen 9)
+        unlabeled (map first (gen 5000))
+        test (gen 2000)
+        accuracy (fn [opts]
+                   (let [model ((classify/nb-em-trainer unlabeled (assoc opts :print-progress false))
+                                labeled)]
+                     (/ (count (filter (fn [[fv l]] (= l (learn/label model fv))) test))
+                        (double (count test)))))
+        one-iter (accuracy {:num-iters 1})]
+    (is (> (accuracy {:num-iters 5}) (+ one-iter 0.1)))
+    (is (> (accuracy {:num-iters 5}) 0.85))
+    (is (= (accuracy {:num-iters 5}) (accuracy {:num-iters 5 :threads 3})))
+    (is (> (accuracy {:num-iters 1 :batch-size 100}) 0.85))
+    (testing "expected counts merge"
+      (let [model ((classify/nb-em-trainer [] {:print-progress false}) labeled)
+            data (map first (take 300 test))
+            serial (classify/e-step model data 1)
+            parallel (classify/e-step model data 4)]
+        (is-approx-= (seq (:label-counts serial)) (seq (:label-counts parallel)) 1.0e-9)
+        (is-approx-= (seq (:feature-totals serial)) (seq (:feature-totals parallel)) 1.0e-9)
+        (is (< (Math/abs (- 300 (sum (:label-counts serial)))) 1.0e-9))
+        (is (< (Math/abs (- (* 6 300) (sum (:feature-totals serial)))) 1.0e-9))))))
+
+(deftest ^:bench nb-em-bench
+  ;; wall-clock seconds and peak heap for 5 EM iterations over 50k unlabeled data:
+  ;; em-trainer retraining max-ent vs. nb-em-trainer, batch and stepwise
+  (let [gen (mixture-data (java.util.Random. 0) 5 5000 20)
+        labeled (gen 100)
+        unlabeled (map first (gen 50000))
+        test (gen 5000)
+        run (fn [trainer]
+              (System/gc)
+              (let [rt (Runtime/getRuntime)
+                    used #(- (.totalMemory rt) (.freeMemory rt))
+                    base (used)
+                    peak (atom base)
+                    done (promise)
+                    sampler (future (while (not (deref done 5 false)) (swap! peak max (used))))
+                    start (System/nanoTime)
+                    model (trainer labeled)
+                    seconds (/ (- (System/nanoTime) start) 1.0e9)]
+                (deliver done true)
+                @sampler
+                {:seconds seconds
+                 :peak-mb (/ (- @peak base) 1.0e6)
+                 :accuracy (/ (count (filter (fn [[fv l]] (= l (learn/label model fv))) test))
+                              (double (count test)))}))]
+    (println "em-trainer:"
+             (run (classify/em-trainer
+                   (classify/maxent-trainer {:pred-thresh 0 :print-progress false})
+                   unlabeled
+                   {:num-iters 5 :print-progress false})))
+    (doseq [threads [1 4]]
+      (println "nb-em-trainer," threads "threads:"
+               (run (classify/nb-em-trainer unlabeled {:num-iters 5 :threads threads :print-progress false})))
+      (println "stepwise nb-em-trainer," threads "threads:"
+               (run (classify/nb-em-trainer unlabeled {:num-iters 1 :batch-size 1000 :threads threads
+                                                       :print-progress false}))))))
+
 (use-fixtures :once validate-schemas)
@@ -1,9 +1,11 @@
 (ns classify.core-test
-  (:use clojure.test plumbing.core)
+  (:use clojure.test plumbing.core plumbing.test)
   (:require
    [plumbing.io :as io]
    [flop.map :as map]
+   [flop.weight-vector :as weight-vector]
    [classify.core :as classify]
+   [classify.index :as index]
    [classify.algorithms.max-ent :as max-ent]))
 
 (def io-roundtrip (comp io/from-data io/to-data))
@@ -31,3 +33,115 @@
       (is (= (keys (:label->weights classifier)) (keys (:label->weights rt-classifier))))
       (is (= (map-vals io/to-data (:label->weights classifier))
              (map-vals io/to-data (:label->weights rt-classifier)))))))
+
+(deftest batch-scores-test
+  (let [r (java.util.Random. 0)
+        data (for [i (range 3000)]
+               [(for-map [p (distinct (repeatedly 5 #(.nextInt r 20)))] p (.nextDouble r))
+                (rem i 3)])
+        fvs (for [[m] data] (map/map->fv m))]
+    (doseq [unpack? [true false]]
+      (let [classifier ((max-ent/trainer {:unpack? unpack? :normalize? false}) (take 200 data))
+            labels (classify/labels classifier)
+            preds (if unpack? fvs (map (comp seq first) data))
+            expected (for [p preds
+                           :let [s (classify/scores classifier p)]
+                           l labels]
+                       (s l))]
+        (doseq [threads [1 4]
+                n [10 3000]]
+          (let [out (double-array (* n 3))]
+            (classify/batch-scores! classifier (take n preds) out threads)
+            (is-approx-= (take (* n 3) expected) (seq out) 1e-9)
+            (when unpack?
+              (let [out (double-array (* n 3))]
+                (classify/batch-scores!
+                 classifier (index/feature-matrix (for [fv (take n fvs)] [fv 0 1.0])) out threads)
+                (is-approx-= (take (* n 3) expected) (seq out) 1e-9)))))
+        (let [out (classify/batch-probs! classifier (take 10 preds) (double-array 30))]
+          (is-approx-= (for [p (take 10 preds)
+                             :let [ps (classify/probs classifier p)]
+                             l labels]
+                         (ps l))
+                       (seq out)
+                       1e-9))
+        (when unpack?
+          (let [out (double-array 30)]
+            (classify/batch-scores! classifier (map map/fv->sorted (take 10 fvs)) out)
+            (is-approx-= (take 30 expected) (seq out) 1e-9)))))))
+
+(deftest batch-scores-negative-key-test
+  (let [classifier (classify/->LinearClassifier
+                    {:a (weight-vector/map->sparse {0 1.0 1 2.0})
+                     :b (weight-vector/map->sparse {1 -1.0 2 0.5})}
+                    false)
+        fvs (for [i (range 100)] (map/map->fv {-3 1.0 1 (double i) 2 1.0}))
+        expected (for [fv fvs :let [s (classify/scores classifier fv)] l [:a :b]] (s l))]
+    (doseq [preds [fvs (map map/fv->sorted fvs)]]
+      (let [out (double-array 200)]
+        (classify/batch-scores! classifier preds out)
+        (is-approx-= expected (seq out) 1e-9)))))
+
+(defn- random-linear-classifier [^java.util.Random r num-labels num-preds preds-per-label]
+  (classify/->LinearClassifier
+   (for-map [l (range num-labels)]
+     (keyword (str l))
+     (weight-vector/map->sparse
+      (for-map [p (distinct (repeatedly preds-per-label #(.nextInt r num-preds)))]
+        p (* (.nextGaussian r) (if (zero? (rem l 50)) 3.0 1.0)))))
+   false))
+
+(defn- random-fv [^java.util.Random r num-preds n]
+  (map/map->fv (for-map [p (distinct (repeatedly n #(.nextInt r num-preds)))] p (.nextGaussian r))))
+
+(deftest top-k-test
+  (let [r (java.util.Random. 0)
+        classifier (random-linear-classifier r 500 300 20)
+        scorer (classify/top-k-scorer classifier)]
+    (doseq [fv (cons (map/map->fv {}) (repeatedly 50 #(random-fv r 300 8)))
+            k [1 5 20]]
+      (let [expected (take k (sort-by (comp - second) (classify/scores classifier fv)))
+            actual (classify/top-k scorer fv k)]
+        (is (= k (count actual)))
+        (is-approx-= (map second expected) (map second actual) 1e-9)
+        (doseq [[l s] actual]
+          (is (< (Math/abs (- (double s) ((classify/scores classifier fv) l))) 1e-9)))))
+
+    (testing "scorers of different sizes share per-thread scratch space"
+      (let [small (random-linear-classifier r 3 300 20)
+            small-scorer (classify/top-k-scorer small)]
+        (doseq [fv (repeatedly 10 #(random-fv r 300 8))
+                [c sc] [[classifier scorer] [small small-scorer]]]
+          (is-approx-= (apply max (vals (classify/scores c fv)))
+                       (second (first (classify/top-k sc fv 1)))
+                       1e-9))))
+
+    (testing "explanations"
+      (let [fv (random-fv r 300 8)
+            explained (classify/top-k-explain scorer identity fv 3 2)
+            full (classify/explain classifier identity fv)]
+        (is (= (map first (classify/top-k scorer fv 3)) (map :label explained)))
+        (doseq [{:keys [label preds]} explained]
+          (is (<= (count preds) 2))
+          (is (= (take (count preds)
+                       (sort-by (comp - #(Math/abs (double %)) second)
+                                (remove (comp zero? second) (full label))))
+                 preds)))
+        (is (every? (comp empty? :preds) (classify/top-k-explain scorer identity fv 3 0)))))))
+
+(deftest ^:bench top-k-bench
+  ;; microseconds per datum to find the top 10 of 10k labels with top-k, vs. scores and sort
+  (let [r (java.util.Random. 0)
+        classifier (random-linear-classifier r 10000 5000 50)
+        scorer (classify/top-k-scorer classifier)
+        fvs (vec (repeatedly 200 #(random-fv r 5000 20)))
+        micros (fn [f] (let [start (System/nanoTime)]
+                         (doseq [fv fvs] (f fv))
+                         (/ (- (System/nanoTime) start) 1.0e3 (count fvs))))]
+    (dotimes [_ 3]
+      (println "scores and sort us:"
+               (micros #(doall (take 10 (sort-by (comp - second) (classify/scores classifier %))))))
+      (println "top-k us:" (micros #(classify/top-k scorer % 10)))
+      (println "labels scored by top-k:"
+               (/ (sum #(.numScored (.topK ^flop.TopKScorer (:index scorer) % 10)) fvs)
+                  (count fvs))))))
@@ -3,7 +3,9 @@
   (:require
    [plumbing.index :as index]
    [flop.map :as map]
-   [classify.features :as features]))
+   [classify.core :as classify]
+   [classify.features :as features]
+   [classify.algorithms.sgd :as sgd]))
 
 (def identity-feature
   (features/feature-fn :identity features/identity-index nil))
@@ -117,3 +119,54 @@
                 {:a {:a3 1 :a2 -1}
                  :b {:b3 1 :b2 6}
                  :c {:c1 2}})))))
+
+(deftest hashing-featurizer-test
+  (let [map-feature (features/feature-fn :map features/identity-index (fn [_ d] (:ids d)))
+        text-feature (features/feature-fn :text features/default-index (fn [_ d] (:words d)))
+        datum {:ids {1 1.0 2 2.0 3 0.0} :words {"a" 1.0 "b" 3.0}}
+        featurize (features/hashing-featurizer 20 [text-feature map-feature])
+        fv (featurize {} datum)]
+    (is (= (map/fv->map fv) (map/fv->map (featurize {} datum))))
+    (is (= 4 (.size fv)))
+    (is (every? #(< -1 % (bit-shift-left 1 20)) (keys (map/fv->map fv))))
+    (is (= #{1.0 2.0 3.0} (set (map #(Math/abs (double %)) (vals (map/fv->map fv))))))
+    (testing "trove and map features hash alike when their types do"
+      (is (= (map/fv->map ((features/hashing-featurizer 20 [map-feature]) {} datum))
+             (map/fv->map ((features/hashing-featurizer
+                            20 [(features/feature-fn :map features/identity-index
+                                                     (fn [_ d] (map/map->trove (:ids d))))])
+                           {} datum)))))
+    (testing "the same key under different types"
+      (is (not= (features/feature-hash (features/type-hash :trove) 1)
+                (features/feature-hash (features/type-hash :map) 1))))
+    (testing "signs are balanced"
+      (let [t (features/type-hash :x)
+            signs (frequencies (map #(neg? (features/feature-hash t %)) (range 10000)))]
+        (is (< 4500 (signs true) 5500))))))
+
+(deftest ^:bench hashing-report-bench
+  ;; For each bucket size: the fraction of distinct features sharing a bucket, and the
+  ;; test accuracy of a logistic model trained on the hashed features, vs. exact indexing.
+  (let [r (java.util.Random. 0)
+        vocab (vec (for [i (range 20000)] (str "w" i)))
+        truth (vec (repeatedly (count vocab) #(.nextGaussian r)))
+        word-feature (features/feature-fn :word features/default-index (fn [_ d] d))
+        docs (vec (for [_ (range 40000)]
+                    (let [ws (for-map [_ (range 20)] (.nextInt r (count vocab)) 1.0)]
+                      [(for-map [[w v] ws] (vocab w) v)
+                       (< (.nextDouble r) (/ 1.0 (+ 1.0 (Math/exp (- (sum (map truth (keys ws))))))))])))
+        [train test] (split-at 30000 docs)
+        accuracy (fn [featurize opts]
+                   (let [classifier ((sgd/trainer (merge {:epochs 5 :unpack? false} opts))
+                                     (for [[d l] train] [(featurize d) l]))]
+                     (/ (count (filter (fn [[d l]] (= l (classify/best-guess classifier (featurize d)))) test))
+                        (double (count test)))))]
+    (println "exact accuracy:" (accuracy seq {}))
+    (doseq [bits [8 10 12 14 16 18 20]]
+      (let [featurize (fn [d] ((features/hashing-featurizer bits [word-feature]) {} d))
+            t (features/type-hash :word)
+            buckets (frequencies (map #(bit-and (features/feature-hash t %) (dec (bit-shift-left 1 bits))) vocab))
+            collided (sum (for [[_ c] buckets :when (> c 1)] c))]
+        (println bits "bits:"
+                 "collision rate" (/ collided (double (count vocab)))
+                 "accuracy" (accuracy featurize {:hash-bits bits}))))))
@@ -1,5 +1,12 @@
 (ns classify.index-test
-  (:use clojure.test classify.index))
+  (:use clojure.test classify.index)
+  (:require
+   [plumbing.index :as index]
+   [plumbing.io :as io]
+   [plumbing.timing :as timing]
+   [flop.map :as map])
+  (:import
+   [flop LongIndex]))
 
 (deftest build-pred-index-test
   (let [p-index
@@ -15,3 +22,51 @@
            ]
          {:pred-thresh 1}) ]
     (is (= #{:p2} (set (seq p-index))))))
+
+(deftest long-index-test
+  (let [keys [7 -3 Long/MIN_VALUE Long/MAX_VALUE 0 1234567890123]
+        idx (long-index keys)
+        check (fn [idx]
+                (is (= (count keys) (count idx)))
+                (is (= keys (seq idx)))
+                (doseq [[i k] (map-indexed vector keys)]
+                  (is (= i (index/get-index idx k)))
+                  (is (= k (index/item idx i))))
+                (is (= -1 (index/get-index idx 8)))
+                (is (not (index/contains idx 8)))
+                (is (thrown? RuntimeException (index/safe-get-index idx 8))))]
+    (check idx)
+    (check (io/from-data (io/to-data idx)))
+    (is (instance? (Class/forName "[B") (second (io/to-data idx))))
+    (let [f (doto (java.io.File/createTempFile "preds" ".idx") .deleteOnExit)]
+      (write-long-index! idx f)
+      (check (mmap-long-index f)))
+    (is (thrown? IllegalArgumentException (long-index [1 2 1])))
+    (is (= [[0 2.0] [2 3.0]]
+           (sort (map/fv->map (convert-preds (map/map->fv {7 2.0 0 3.0 8 1.0}) idx false)))))))
+
+(deftest hashed-build-pred-index-test
+  (let [p-index (build-pred-index [[{1 1.0 2 1.0} :l1] [{2 1.0 3 1.0} :l2]]
+                                  {:hashed? true :pred-thresh 1})]
+    (is (instance? classify.index.LongIndexer p-index))
+    (is (= [2] (seq p-index))))
+  (is (= 1024 (count (build-pred-index [] {:hash-bits 10}))))
+  (is (thrown? AssertionError (build-pred-index [] {:hash-bits 31}))))
+
+(deftest ^:bench long-index-bench
+  (let [r (java.util.Random. 0)
+        n 1000000
+        keys (long-array (distinct (repeatedly n #(.nextLong r))))
+        probes (long-array (repeatedly n #(if (.nextBoolean r)
+                                             (aget keys (.nextInt r (alength keys)))
+                                             (.nextLong r))))
+        static (index/static keys)
+        li (LongIndex/build keys)]
+    (timing/microbenchmark
+     {:consume-output `identity}
+     (index/static keys)
+     (LongIndex/build keys))
+    (timing/microbenchmark
+     {:consume-output `identity}
+     (let [^longs probes probes] (areduce probes i s 0 (+ s (index/get-index static (aget probes i)))))
+     (let [^longs probes probes ^LongIndex li li] (areduce probes i s 0 (+ s (.getIndex li (aget probes i))))))))
@@ -52,3 +52,59 @@
     [[{"beta" 1 "gamma" 1} 1]]
     {}
     nil)))
+
+(defn- random-libsvm-file [seed n]
+  (let [r (java.util.Random. seed)
+        f (java.io.File/createTempFile "libsvm" ".txt")]
+    (.deleteOnExit f)
+    (spit f (libsvm/libsvm-data-file
+             (for [_ (range n)]
+               [(map/map->fv (for-map [k (repeatedly 10 #(.nextInt r 10000))] k (* 0.01 (.nextInt r 10000))))
+                (.nextInt r 2)])))
+    f))
+
+(defn- data->maps [data]
+  (for [[fv l] data] [(map/fv->map fv) l]))
+
+(deftest read-libsvm-test
+  (is-= [[{} 1.0] [{3 1.5} -1.0] [{2 0.5 7 100.0} 2.5]]
+        (data->maps
+         (keep libsvm/parse-libsvm-line
+               ["1" "-1 qid:2 3:1.5 # comment" "  # comment" "" "2.5\t2:0.5 7:1e2\r"])))
+  (let [f (random-libsvm-file 0 5000)
+        lines (data->maps (libsvm/read-libsvm-lines f))]
+    (is (= 5000 (count lines)))
+    (doseq [threads [1 3 16]]
+      (is-= lines (data->maps (libsvm/matrix->data (libsvm/read-libsvm f {:threads threads})))))
+    (testing "indices past Integer/MAX_VALUE are an error, not skipped"
+      (let [big (java.io.File/createTempFile "libsvm" ".txt")]
+        (.deleteOnExit big)
+        (spit big "1 qid:3 00000000002:1.0\n1 2147483648:1.0\n")
+        (is (thrown? IllegalArgumentException (libsvm/read-libsvm big)))
+        (spit big "1 qid:3 00000000002:1.0\n")
+        (is-= [[{2 1.0} 1.0]] (data->maps (libsvm/matrix->data (libsvm/read-libsvm big))))))
+    (testing "binary round-trip"
+      (let [b (java.io.File/createTempFile "libsvm" ".bin")
+            m (libsvm/read-libsvm f)]
+        (.deleteOnExit b)
+        (libsvm/write-libsvm-binary! m b)
+        (is-= lines (data->maps (libsvm/matrix->data (libsvm/read-libsvm-binary b))))
+        (libsvm/write-libsvm-binary! (.rows m 100 200) b)
+        (is-= (take 100 (drop 100 lines))
+              (data->maps (libsvm/matrix->data (libsvm/read-libsvm-binary b))))))))
+
+(deftest ^:bench read-libsvm-bench
+  ;; seconds to load 1e6 rows (~100MB of text) line by line, with the chunked parser, and
+  ;; from the binary format
+  (let [f (random-libsvm-file 0 1000000)
+        b (java.io.File/createTempFile "libsvm" ".bin")
+        seconds (fn [f] (let [start (System/nanoTime)] (f) (/ (- (System/nanoTime) start) 1.0e9)))]
+    (.deleteOnExit b)
+    (libsvm/write-libsvm-binary! (libsvm/read-libsvm f) b)
+    (println "text MB:" (/ (.length f) 1.0e6) "binary MB:" (/ (.length b) 1.0e6))
+    (dotimes [_ 3]
+      (println "read-libsvm-lines seconds:" (seconds #(libsvm/read-libsvm-lines f)))
+      (doseq [threads [1 4 8]]
+        (println "read-libsvm seconds," threads "threads:"
+                 (seconds #(libsvm/read-libsvm f {:threads threads}))))
+      (println "read-libsvm-binary seconds:" (seconds #(libsvm/read-libsvm-binary b))))))
@@ -0,0 +1,101 @@
+(ns classify.metrics-test
+  (:use clojure.test plumbing.core plumbing.test classify.metrics)
+  (:import
+   [flop ScoreHistogram]))
+
+(defn- random-scored [seed n]
+  (let [r (java.util.Random. seed)]
+    (vec (repeatedly
+          n
+          #(let [p (.nextDouble r)]
+             [p (< (.nextDouble r) p) (double (inc (.nextInt r 3)))])))))
+
+(defn- exact-auc [scored]
+  (let [pos (filter second scored)
+        neg (remove second scored)]
+    (/ (sum (for [[sp _ wp] pos
+                  [sn _ wn] neg]
+              (* wp wn (cond (> sp sn) 1.0 (= sp sn) 0.5 :else 0.0))))
+       (* (sum #(nth % 2) pos) (sum #(nth % 2) neg)))))
+
+(defn- exact-log-loss [scored]
+  (/ (sum (fn [[p l w]] (* w (- (Math/log (if l p (- 1 p)))))) scored)
+     (sum #(nth % 2) scored)))
+
+(deftest histogram-test
+  (let [scored (random-scored 0 2000)
+        h (histogram scored {:bins 100})
+        {estimate :auc :keys [lower upper]} (auc h)
+        exact (exact-auc scored)]
+    (is (<= lower exact upper))
+    (is (< (- upper lower) 0.02))
+    (is (< (Math/abs (- estimate exact)) 1.0e-3))
+    (is (< (Math/abs (- (log-loss h) (exact-log-loss scored))) 1.0e-9))
+    (is (= 2000 (.count h)))
+
+    (testing "merging is the same as one pass"
+      (let [parallel (histogram (map identity scored) {:bins 100 :threads 3 :block-size 150})]
+        (is (= 2000 (.count parallel)))
+        (is-approx-= (auc h) (auc parallel) 1.0e-12)
+        (is (< (Math/abs (- (log-loss h) (log-loss parallel))) 1.0e-12))))
+
+    (testing "coarser bins give looser bounds"
+      (let [{l :lower u :upper} (auc (histogram scored {:bins 10}))]
+        (is (<= l lower exact upper u))))
+
+    (testing "encoding round-trips"
+      (let [buf (java.nio.ByteBuffer/allocate (.encodedSize h))]
+        (.encode h buf)
+        (is (not (.hasRemaining buf)))
+        (.flip buf)
+        (let [d (ScoreHistogram/decode buf)]
+          (is (= (auc h) (auc d)))
+          (is (= (calibration h 10) (calibration d 10))))))
+
+    (testing "calibration"
+      (let [{:keys [groups ece]} (calibration h 10)]
+        (is (= 10 (count groups)))
+        (is (== (sum #(nth % 2) scored) (sum :weight groups)))
+        (doseq [{:keys [mean-score positive-rate]} groups]
+          (is (< (Math/abs (- mean-score positive-rate)) 0.15)))
+        (is (< ece 0.05))))
+
+    (testing "pr curve"
+      (let [curve (pr-curve h)]
+        (is (= 100 (count curve)))
+        (is (apply >= (map :threshold curve)))
+        (is (apply <= (map :recall curve)))
+        (is (== 1.0 (:recall (last curve))))))))
+
+(deftest degenerate-histogram-test
+  (let [h (histogram [[0.3 true] [0.3 false] [2.0 true] [-1.0 false]] {:bins 4})]
+    (is (= {:auc 0.875 :lower 0.75 :upper 1.0} (auc h)))
+    (is (thrown? IllegalArgumentException
+                 (merge-histograms [h (score-histogram 8)])))))
+
+(deftest ^:bench histogram-bench
+  ;; seconds to summarize 1e7 scores into a histogram, with 1 and 4 threads, vs.
+  ;; the exact AUC by sorting
+  (let [r (java.util.Random. 0)
+        n 10000000
+        scores (double-array n)
+        labels (boolean-array n)
+        scored (vec (for [i (range n)]
+                      (let [p (.nextDouble r)]
+                        (aset scores i p)
+                        (aset labels i (< (.nextDouble r) p))
+                        [p (aget labels i)])))
+        seconds (fn [f] (let [start (System/nanoTime)] (f) (/ (- (System/nanoTime) start) 1.0e9)))]
+    (dotimes [_ 3]
+      (println "sorted AUC seconds:"
+               (seconds #(let [order (sort-by (fn [i] (aget scores (int i))) (range n))]
+                           (loop [order order rank 1 rank-sum 0.0 num-pos 0]
+                             (if-let [[i & more] (seq order)]
+                               (if (aget labels (int i))
+                                 (recur more (inc rank) (+ rank-sum rank) (inc num-pos))
+                                 (recur more (inc rank) rank-sum num-pos))
+                               (/ (- rank-sum (/ (* num-pos (inc num-pos)) 2.0))
+                                  (* num-pos (- n num-pos))))))))
+      (doseq [threads [1 4]]
+        (println "histogram seconds," threads "threads:"
+                 (seconds #(auc (histogram scored {:threads threads}))))))))
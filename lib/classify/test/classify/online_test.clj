@@ -73,3 +73,60 @@
              (range 0 2.0 0.2)
              (distribution/unknown-variance-gaussian 0.0)))
            14.0))))
+
+(deftest arm-store-bandit-test
+  (let [[env] (test-setup 50000)]
+    (doseq [selector [{:type :ucb :c 2.0}
+                      {:type :thompson-gaussian}]]
+      (testing selector
+        (let [stats (->> (online/all-epoch-stats
+                          env
+                          (online/replicate-policy
+                           4 (policies/arm-store-bandit (plumbing.MersenneTwister. 1) [:a :b :c] selector))
+                          online/discrete-action-stats-fn 1000)
+                         vals
+                         (apply map vector)
+                         (map (fn->> (apply pci/merge-all-with #(math/mean %&) 0.0))))]
+          (is (<= 0.9 (safe-get (last stats) :b) 1.0))))))
+
+  (testing "thompson-beta on 0/1 rewards, and snapshots"
+    (let [r (java.util.Random. 0)
+          p (vec (for [i (range 50)] (if (= i 17) 0.6 0.3)))
+          bandit (policies/arm-store-bandit (java.util.SplittableRandom. 0) (range 50) {:type :thompson-beta})
+          pull! (fn [bandit]
+                  (let [a (online/action bandit nil)]
+                    (online/update-policy
+                     bandit (online/->Step nil a nil (if (< (.nextDouble r) (p a)) 1.0 0.0)))
+                    a))]
+      (dotimes [_ 5000] (pull! bandit))
+      (is (<= 0.9 (/ (count (filter #{17} (repeatedly 1000 #(pull! bandit)))) 1000.0)))
+      (let [^flop.ArmStore store (:store bandit)
+            restored (policies/restore-arm-store-bandit
+                      (java.util.SplittableRandom. 0) (policies/snapshot-arm-store-bandit bandit))
+            ^flop.ArmStore restored-store (:store restored)]
+        (is (= (:arms bandit) (:arms restored)))
+        (is (= (:selector bandit) (:selector restored)))
+        (is (= 6000.0 (sum #(.count store (int %)) (range 50))))
+        (doseq [i (range 50)]
+          (is (= [(.count store i) (.sum store i) (.sumSq store i)]
+                 [(.count restored-store i) (.sum restored-store i) (.sumSq restored-store i)])))))))
+
+(deftest ^:bench arm-store-bandit-bench
+  ;; selections/sec at 1e5 arms: map-based thompson-bandit vs. arm-store-bandit
+  (let [n 100000
+        r (java.util.SplittableRandom. 0)
+        ;; two observations per arm, so the map-based posteriors are proper
+        steps (for [i (concat (range n) (range n))]
+                (online/->Step nil i nil (if (< (.nextDouble r) 0.3) 1.0 0.0)))
+        trained (fn [bandit] (reduce online/update-policy bandit steps))
+        rate (fn [bandit reps]
+               (let [start (System/nanoTime)]
+                 (dotimes [_ reps] (online/action bandit nil))
+                 (/ reps (/ (- (System/nanoTime) start) 1.0e9))))
+        map-bandit (trained (policies/thompson-bandit
+                             (java.util.Random. 0) (range n) (distribution/known-variance-gaussian 0.0 1.0)))]
+    (dotimes [_ 3]
+      (println "thompson-bandit selections/sec:" (rate map-bandit 20))
+      (doseq [selector [{:type :ucb} {:type :thompson-beta} {:type :thompson-gaussian}]]
+        (println (:type selector) "arm-store-bandit selections/sec:"
+                 (rate (trained (policies/arm-store-bandit r (range n) selector)) 200))))))
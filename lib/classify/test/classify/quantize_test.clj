@@ -0,0 +1,27 @@
+(ns classify.quantize-test
+  (:use clojure.test plumbing.core)
+  (:require
+   [plumbing.io :as io]
+   [classify.core :as classify]
+   [classify.quantize :as quantize]
+   [classify.algorithms.max-ent :as max-ent]))
+
+(def data
+  [[[[:0 1.0] [:1 1.0]] :0]
+   [[[:1 1.0] [:2 1.0]] :1]
+   [[[:2 1.0] [:3 1.0]] :2]])
+
+(deftest quantize-test
+  (let [classifier ((max-ent/trainer {:normalize? true}) data)]
+    (doseq [kind quantize/+kinds+]
+      (let [q (quantize/quantize classifier kind)
+            rt (io/from-data (io/to-data q))]
+        (doseq [[preds label] data]
+          (is (= label (classify/best-guess q preds)))
+          (is (= label (classify/best-guess rt preds))))))
+
+    (let [report (quantize/report classifier (map first data))]
+      (is (= quantize/+kinds+ (map :kind report)))
+      (is (every? #(= 1.0 (:agreement %)) report))
+      (is (= [2.0 4.0] (map :compression (take 2 report))))
+      (is (every? #(< (:max-error %) 0.1) report)))))
@@ -0,0 +1,96 @@
+(ns classify.sweep-test
+  (:use clojure.test plumbing.core plumbing.test classify.sweep)
+  (:require
+   [plumbing.core-incubator :as pci]
+   [flop.map :as map]
+   [classify.core :as classify]
+   [classify.index :as index]
+   [classify.algorithms.max-ent :as max-ent]))
+
+(defn- random-data [seed n num-preds]
+  (let [r (java.util.Random. seed)
+        truth (vec (repeatedly num-preds #(* 2 (.nextGaussian r))))]
+    (vec (repeatedly
+          n
+          #(let [preds (distinct (repeatedly 5 (fn [] (.nextInt r num-preds))))]
+             [(map/map->fv (for-map [p preds] p 1.0))
+              (< (.nextDouble r) (/ 1.0 (+ 1.0 (Math/exp (- (sum truth preds))))))])))))
+
+(def +grid+ [{:sigma-sq 1.0e-6} {:sigma-sq 1.0} {:sigma-sq 10.0}])
+
+(deftest sweep-test
+  (let [data (random-data 0 600 20)
+        serial (sweep +grid+ {:data data :k-fold 3})
+        parallel (sweep +grid+ {:data data :k-fold 3 :threads 3})]
+    (is (= serial parallel))
+    (is (= +grid+ (map :params (:results serial))))
+    (is (every? #(= 3 (count (:folds %))) (:results serial)))
+    (is (not-any? :pruned? (:results serial)))
+    (is (= (:best serial) (:params (apply min-key :log-loss (:results serial)))))
+    (is (not= {:sigma-sq 1.0e-6} (:best serial)))
+    (testing "pruning"
+      (let [pruned (sweep +grid+ {:data data :k-fold 3 :threads 2 :prune-margin 0.2
+                                  :final-model? true})]
+        (is (= [true false false] (map :pruned? (:results pruned))))
+        (is (= 1 (count (:folds (first (:results pruned))))))
+        (is (= (:best serial) (:best pruned)))
+        (is (= (map :folds (rest (:results serial))) (map :folds (rest (:results pruned)))))
+        (is (#{true false} (classify/best-guess (:model pruned) (first (first data)))))))))
+
+(deftest column-normalized-final-model-test
+  (let [data (random-data 1 300 10)
+        opts {:column-normalize? true :unpack? true}
+        model (:model (sweep [{:sigma-sq 1.0}] (assoc opts :data data :k-fold 2 :final-model? true)))
+        expected ((max-ent/trainer (assoc opts :sigma-sq 1.0))
+                  (pci/shuffle-by (java.util.Random. 0) data))]
+    (doseq [[fv] (take 20 data)]
+      (is-approx-= (classify/scores expected fv) (classify/scores model fv) 1e-6))))
+
+(deftest evaluate-rows-test
+  (testing "confidently wrong rows have finite log-loss"
+    (let [m (index/feature-matrix [[(map/map->fv {0 1.0}) 0 1.0] [(map/map->fv {0 1.0}) 1 1.0]])]
+      (is-approx-= {:log-loss 25.0 :accuracy 0.5}
+                   (evaluate-rows (max-ent/new-helper 1 2) (double-array [50.0]) m)
+                   1e-9)
+      (is-approx-= {:log-loss 400.0 :accuracy 0.5}
+                   (evaluate-rows (max-ent/new-helper 1 3) (double-array [800.0 0.0 0.0]) m)
+                   1e-9))))
+
+(deftest column-normalized-folds-test
+  ;; each fold is normalized by the statistics of its training rows alone
+  (let [data (random-data 2 200 10)
+        swept (sweep [{:sigma-sq 1.0}] {:data data :k-fold 2 :column-normalize? true})]
+    (letk [[p-index l-index i-data] (max-ent/index-data
+                                     {:data (pci/shuffle-by (java.util.Random. 0) data)})]
+      (let [i-data (vec i-data)
+            n (count i-data)
+            half (quot n 2)
+            [means std-devs] (max-ent/compute-means-and-std-devs (count p-index) (subvec i-data half))
+            ^flop.FeatureMatrix m (index/feature-matrix (max-ent/column-normalize i-data means std-devs))
+            helper (max-ent/new-helper (count p-index) (count l-index))
+            weight-arr (max-ent/train-indexed [(.rows m half n)] helper {:sigma-sq 1.0} 1)]
+        (is-approx-= (evaluate-rows helper weight-arr (.rows m 0 half))
+                     (first (:folds (first (:results swept))))
+                     1e-9)))))
+
+(deftest ^:bench sweep-bench
+  ;; a 5-fold sweep over 6 sigma-sq values: re-indexing and training every (grid point, fold)
+  ;; one after another, vs. sweep with and without threads
+  (let [data (random-data 0 50000 2000)
+        grid (for [s [0.01 0.1 1.0 10.0 100.0 1000.0]] {:sigma-sq s})
+        seconds (fn [f] (let [start (System/nanoTime)] (f) (/ (- (System/nanoTime) start) 1.0e9)))]
+    (println "sequential seconds:"
+             (seconds #(doall
+                        (for [params grid
+                              i (range 5)
+                              :let [test (take-nth 5 (drop i data))
+                                    train (keep-indexed (fn [j d] (when-not (= (mod j 5) i) d)) data)
+                                    classifier ((max-ent/trainer params) train)]]
+                          (count (filter (fn [[fv l]] (= l (classify/best-guess classifier fv))) test))))))
+    (doseq [threads [1 4 8]]
+      (println "sweep seconds," threads "threads:"
+               (seconds #(sweep grid {:data data :threads threads})))
+      (println "sweep seconds with pruning," threads "threads:"
+               (seconds #(sweep grid {:data data :threads threads :prune-margin 0.02}))))))
+
+(use-fixtures :once validate-schemas)
@@ -3,14 +3,15 @@
    [hiphip.double :as dbl]
    [flop.math :as fm])
   (:import
-   [flop DArray]
+   [flop AliasSampler DArray DMath SumTreeSampler]
    [java.util Random]))
 
 (set! *warn-on-reflection* true)
 (set! *unchecked-math* true)
 
 (defn scale-in-place! [^doubles a ^double scale]
-  (dbl/afill! [x a] (* x scale)))
+  (DArray/scaleInPlace a scale)
+  a)
 
 (defn scale [^doubles a scale]
   (scale-in-place! (dbl/aclone a) scale))
@@ -30,7 +31,7 @@
 ;;; Utilities.
 
 (defn normalize! [^doubles d]
-  (let [t (double (dbl/asum d))]
+  (let [t (DArray/sum d)]
     (if (= t (double 0.0))
       d
       (scale-in-place! d (/ (double 1.0) t)))))
@@ -45,9 +46,33 @@
 (definline sample-discrete [^Random r ^doubles dist]
   `(DArray/sampleDiscrete ~r ~dist))
 
+(defn alias-sampler
+  "An O(1)-per-draw sampler over indices of (unnormalized) weights, for repeated draws
+   from a fixed distribution.  Sample with (.sample s r)."
+  ^AliasSampler [^doubles weights]
+  (AliasSampler. weights))
+
+(defn sum-tree-sampler
+  "An O(log K)-per-draw sampler over indices of (unnormalized) weights, which can be
+   changed in O(log K) with (.set s i w).  Sample with (.sample s r)."
+  ^SumTreeSampler [^doubles weights]
+  (SumTreeSampler. weights))
+
 (definline log-add [^doubles logV]
   `(DArray/logAdd ~logV))
 
+(defn exp-in-place!
+  "Replace each x with (exp x), using DMath/fastExp."
+  [^doubles a]
+  (DMath/expInPlace a)
+  a)
+
+(defn log-in-place!
+  "Replace each x with (log x)."
+  [^doubles a]
+  (DMath/logInPlace a)
+  a)
+
 (defn log-normalize-in-place! [^doubles logV]
   (let [log-sum (log-add logV)]
     (dbl/afill! [v logV] (- v log-sum))))
@@ -218,19 +218,43 @@
 
 (deftype KV [k ^double v])
 
+(defn- beta-bernoulli-sample-best
+  "thompson-sample-best for arms that are all BetaBernoulli, drawing every arm's sample
+   in one bulk pass."
+  [r arms]
+  (let [arms (vec arms)
+        n (count arms)
+        alphas (double-array n)
+        betas (double-array n)
+        samples (double-array n)]
+    (dotimes [i n]
+      (let [^BetaBernoulli arm (val (nth arms i))]
+        (aset alphas i (+ (.prior-alpha arm) (.n-pos arm)))
+        (aset betas i (+ (.prior-beta arm) (.n-neg arm)))))
+    (math/fill-beta! r alphas betas samples)
+    (loop [i 0 best nil best-val Double/NEGATIVE_INFINITY]
+      (if (< i n)
+        (let [v (aget samples i)]
+          (if (>= v best-val)
+            (recur (inc i) (key (nth arms i)) v)
+            (recur (inc i) best best-val)))
+        best))))
+
 (s/defn thompson-sample-best :- Arm
   "Use Thompson sampling to choose from arms according to posterior mean distribution."
   [r :- Random
    arms :- Arms]
-  (.k
-   ^KV (reduce-kv
-        (fn [^KV kv k arm]
-          (let [arm-val (sample (posterior-mean-distribution arm) r)]
-            (if (>= arm-val (.v kv))
-              (KV. k arm-val)
-              kv)))
-        (KV. nil Double/NEGATIVE_INFINITY)
-        arms)))
+  (if (every? #(instance? BetaBernoulli (val %)) arms)
+    (beta-bernoulli-sample-best r arms)
+    (.k
+     ^KV (reduce-kv
+          (fn [^KV kv k arm]
+            (let [arm-val (sample (posterior-mean-distribution arm) r)]
+              (if (>= arm-val (.v kv))
+                (KV. k arm-val)
+                kv)))
+          (KV. nil Double/NEGATIVE_INFINITY)
+          arms))))
 
 (s/defn thompson-best-distribution :- {s/Any double}
   "Return posterior probabilities that each arm is best."
@@ -5,7 +5,7 @@
   (:import
    [gnu.trove TLongDoubleHashMap TLongLongHashMap
     TLongObjectHashMap TObjectDoubleHashMap TDoubleFunction]
-   [flop LongDoubleFeatureVector]))
+   [flop LongDoubleFeatureVector SortedLongDoubleFeatureVector]))
 
 
 (set! *warn-on-reflection* true)
@@ -232,6 +232,12 @@
 (defn ^java.util.Map fv->map [^LongDoubleFeatureVector f] (into {} f))
 (defn ^TLongDoubleHashMap fv->trove [^LongDoubleFeatureVector f] (.asTrove f))
 
+;; Frozen, sorted copies without a hash index, for vectors that are only used for
+;; dot products and iteration after construction.
+(defn ^SortedLongDoubleFeatureVector fv->sorted [^LongDoubleFeatureVector f]
+  (SortedLongDoubleFeatureVector. f))
+(defn ^LongDoubleFeatureVector sorted->fv [^SortedLongDoubleFeatureVector f] (.toFeatureVector f))
+
 (defmacro do-fv [bind & body]
   (let [kv (first bind)]
     (assert (= (count bind) 2))
@@ -1,10 +1,12 @@
 (ns flop.math
   (:require
    [schema.core :as s]
-   [plumbing.core :as plumbing])
+   [plumbing.core :as plumbing]
+   [plumbing.parallel :as parallel])
   (:import
-   [flop DMath DArray Sample]
-   [java.util Map Random]))
+   [flop BulkSample BulkSample$Source DMath DArray Sample]
+   [java.util Map Random SplittableRandom]
+   [plumbing MersenneTwisterFast]))
 
 (definline sample-boolean [^Random r p]
   `(< (.nextDouble ~r) (double ~p)))
@@ -38,9 +40,70 @@
 (definline sloppy-exp-negative [x]
   `(DMath/sloppyExpNegative (double ~x)))
 
+(definline fast-exp
+  "Table-driven exp, relative error below 1e-15.  See DMath/fastExp."
+  [x]
+  `(DMath/fastExp (double ~x)))
+
+(definline fast-log
+  "Table-driven log, absolute error below 2e-15.  Slower than Math/log where the JVM
+   has a log intrinsic; see DMath/fastLog."
+  [x]
+  `(DMath/fastLog (double ~x)))
+
 (definline sample-beta [^Random r alpha beta]
   `(Sample/sampleBeta ~r (double ~alpha) (double ~beta)))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Bulk sampling into double arrays.  See flop.BulkSample.
+
+(defn bulk-source
+  "A BulkSample$Source over r, a MersenneTwisterFast, SplittableRandom, or Random."
+  ^BulkSample$Source [r]
+  (cond (instance? BulkSample$Source r) r
+        (instance? MersenneTwisterFast r) (BulkSample/source ^MersenneTwisterFast r)
+        (instance? SplittableRandom r) (BulkSample/source ^SplittableRandom r)
+        :else (BulkSample/source ^Random r)))
+
+(defn fill-uniform! [r ^doubles out]
+  (BulkSample/fillUniform (bulk-source r) out)
+  out)
+
+(defn fill-gaussian! [r ^doubles out]
+  (BulkSample/fillGaussian (bulk-source r) out)
+  out)
+
+(defn fill-gamma! [r a rate ^doubles out]
+  (BulkSample/fillGamma (bulk-source r) (double a) (double rate) out)
+  out)
+
+(defn fill-beta!
+  "Fill out with one Beta(alphas[i], betas[i]) sample per index."
+  [r ^doubles alphas ^doubles betas ^doubles out]
+  (BulkSample/fillBeta (bulk-source r) alphas betas out)
+  out)
+
+(defn fill-student-t! [r dof ^doubles out]
+  (BulkSample/fillStudentT (bulk-source r) (long dof) out)
+  out)
+
+(defn parallel-fill!
+  "Fill out in blocks of block-size on pool-or-threads (see parallel/map-work), calling
+   (fill! src out from to) with a BulkSample$Source over block i's own stream split from
+   seed, so the result depends only on seed and block-size and not on the number of
+   threads.  e.g., (parallel-fill! #(BulkSample/fillGaussian %1 %2 %3 %4) 42 4096 8 out)"
+  [fill! seed block-size pool-or-threads ^doubles out]
+  (let [n (alength out)
+        block-size (long block-size)
+        num-blocks (long (quot (+ n block-size -1) block-size))
+        ^objects streams (BulkSample/streams (long seed) num-blocks)]
+    (parallel/do-work
+     pool-or-threads
+     (fn [^long i]
+       (fill! (bulk-source (aget streams i)) out (* i block-size) (min n (* (inc i) block-size))))
+     (range num-blocks))
+    out))
+
 (defn logistic ^double [^double score]
   (/ 1.0 (+ 1.0 (Math/exp (- score)))))
 
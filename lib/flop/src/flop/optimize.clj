@@ -4,8 +4,12 @@
    [schema.core :as s]
    [hiphip.double :as d]
    [plumbing.logging :as log]
+   [plumbing.parallel :as parallel]
    [flop.array :as fa]
-   [flop.math :as fm]))
+   [flop.math :as fm])
+  (:import
+   [java.util.concurrent Future]
+   [flop LBFGSHistory]))
 
 (set! *warn-on-reflection* true)
 
@@ -84,47 +88,75 @@
            step-size
            (recur (* step-size-multiplier step-size)))))))
 
+(defn parallel-line-search
+  "backtracking-line-search, but when init-step-size is rejected (it is tried first, on
+   the calling thread, since quasi-Newton steps usually accept it), evaluating f at
+   batches of the next batch-size step sizes concurrently on pool-or-threads, and taking
+   the largest one that satisfies the sufficient decrease condition.  Once a step is
+   accepted, candidates that haven't started are cancelled.  Batches stop at
+   step-size-underflow.  Returns the same step-size (or underflow error) as
+   backtracking-line-search with the same opts, in about 1/batch-size of the wall time
+   when f is expensive and several candidates are rejected.  f must be safe to call
+   from several threads at once."
+  [f x0 step-dir pool-or-threads batch-size
+   {:as opts
+    :keys [suff-decrease, init-step-size, step-size-multiplier, step-size-underflow]
+    :or {suff-decrease 0.001 init-step-size 1.0 step-size-multiplier 0.5 step-size-underflow 1e-20}}]
+  (let [[val grad] (f x0)
+        step-fn (step-fn f x0 step-dir)
+        directional-deriv (d/dot-product step-dir grad)
+        target-val (fn [step-size] (+ val (* suff-decrease step-size directional-deriv)))
+        accept? (fn [step-size] (<= (-> step-size step-fn first) (target-val step-size)))
+        check-underflow! (fn [step-size]
+                           (when (< step-size step-size-underflow)
+                             (throw (RuntimeException. (str "Line search: Stepsize underflow. Probably a gradient computation error " (target-val step-size))))))]
+    (check-underflow! init-step-size)
+    (if (accept? init-step-size)
+      init-step-size
+      (parallel/with-pool [pool pool-or-threads]
+        (loop [step-size (* step-size-multiplier init-step-size)]
+          (check-underflow! step-size)
+          (let [step-sizes (->> (iterate #(* step-size-multiplier %) step-size)
+                                (take-while #(>= % step-size-underflow))
+                                (take batch-size)
+                                vec)
+                futs (mapv (fn [step-size] (parallel/submit! pool #(accept? step-size))) step-sizes)
+                accepted (try (first (filter #(.get ^Future (futs %)) (range (count futs))))
+                              ;; Don't interrupt evaluations in flight: f may be
+                              ;; mid-way through its own parallel work.
+                              (finally (doseq [fut futs] (.cancel ^Future fut false))))]
+            (if accepted
+              (step-sizes accepted)
+              (recur (* step-size-multiplier (peek step-sizes))))))))))
+
 (defprotocol QuasiNewtonApproximation
-  (inv-hessian-times [this ^doubles z] "Implicitly multiply H^-1 z for quasi-newton search direction")
+  (inv-hessian-times [this ^doubles z]
+    "Implicitly multiply H^-1 z for quasi-newton search direction.  The result may be
+     overwritten by the next call.")
   (update-approx [this ^doubles x-delta ^doubles grad-delta]
-    "Update approximation after new x and grad points. Should return a new QuasiNewtonApproximation"))
+    "Update approximation after new x and grad points, returning the updated
+     QuasiNewtonApproximation (which may be this one, mutated).  The caller may reuse
+     x-delta and grad-delta afterwards."))
 
-(deftype LBFGSApproximation [^int max-history-size x-deltas grad-deltas gamma]
+;; See http://en.wikipedia.org/wiki/L-BFGS.  The history is a ring of preallocated arrays,
+;; created on the first update when the dimension is known, so memory stays flat at
+;; 2 * max-history-size * n doubles and an iteration allocates nothing here.
+(deftype LBFGSApproximation [^int max-history-size ^:unsynchronized-mutable ^LBFGSHistory history]
 
   QuasiNewtonApproximation
-                                        ; See http://en.wikipedia.org/wiki/L-BFGS
-  (inv-hessian-times
-    [this z]
-    (let [result (d/aclone z)
-          alphas (vec (for [[x-delta grad-delta] (map (fn [a b] [a b]) x-deltas grad-deltas)]
-                        (let [curvature (d/dot-product x-delta grad-delta)
-                              _ (when (< curvature 0)
-                                  (throw (RuntimeException.  (format "Non-positive curvature: %.5f %s %s" curvature (seq x-delta) (seq grad-delta)))))
-                              alpha (* (/ (d/dot-product x-delta result) curvature))]
-                          (fa/add-in-place! result grad-delta (- alpha) 0.0)
-                          alpha)))]
-      (fa/scale-in-place! result gamma)
-      (doseq [[alpha x-delta grad-delta] (reverse (map (fn [a b c] [a b c]) alphas x-deltas grad-deltas))]
-        (let [rho (/ (d/dot-product grad-delta result)
-                     (d/dot-product x-delta grad-delta))]
-          (fa/add-in-place! result x-delta (- alpha rho) 0.0)))
-      result))
+  (inv-hessian-times [this z]
+    (if history
+      (.times history z)
+      (d/aclone z)))
 
   (update-approx [this x-delta grad-delta]
-    (let [curvature (d/dot-product x-delta grad-delta)
-          den (d/dot-product grad-delta grad-delta)
-          gamma (/ curvature den)]
-      (comment (println (str "curvature: " curvature))
-               (println (str "grad-delta-norm: " den))
-               (println (str "gamma: " gamma)))
-      (LBFGSApproximation.
-       max-history-size
-       (take max-history-size (conj x-deltas x-delta))
-       (take max-history-size (conj grad-deltas grad-delta))
-       gamma))))
+    (when-not history
+      (set! history (LBFGSHistory. max-history-size (alength ^doubles x-delta))))
+    (.update history ^doubles x-delta ^doubles grad-delta)
+    this))
 
 (defn new-lbfgs-approx [max-history-size]
-  (LBFGSApproximation. max-history-size '() '() 1.0))
+  (LBFGSApproximation. max-history-size nil))
 
 (defn quasi-newton-iter
   "A single iteration of quasi-newton optimization. Takes same options as quasi-newton-optimize.
@@ -139,7 +171,9 @@
      (let [grad  (second (f x0))
            step-dir (inv-hessian-times qn-approx grad)
            _ (fa/scale-in-place! step-dir -1.0)
-           step-size (backtracking-line-search f x0 step-dir opts)]
+           step-size (if-let [pool (:line-search-pool opts)]
+                       (parallel-line-search f x0 step-dir pool (:line-search-batch-size opts 4) opts)
+                       (backtracking-line-search f x0 step-dir opts))]
        (fa/interpolate x0 1.0 step-dir step-size))))
 
 (defn quasi-newton-optimize
@@ -155,7 +189,9 @@
    step-size-multiplier: Step-size-multiplier for inner line search
    init-step-size-multiplier: Step-size multiplier for first iter (default 0.5).
    For many convex functions, the first line search should be more careful to get
-   scale of problems. Definitely true for conditional likelihood objectives. "
+   scale of problems. Definitely true for conditional likelihood objectives.
+   line-search-pool: pool or thread count; if set, uses parallel-line-search with
+   line-search-batch-size (default 4) candidates at a time.  f must be thread-safe. "
   ([f ^doubles x0 qn-approx
     {:as opts
      :keys [max-iters, init-step-size,
@@ -164,38 +200,48 @@
      (log/debugf "opts: %s" (pr-str opts))
      (when print-progress
        (log/infof "\nConfig: %s\n%s Parameters\n" (pr-str opts)  (count x0)))
-     (loop [iter 0 x x0 qn-approx qn-approx improvements '()]
-       (when iter-callback
-         (iter-callback {:iter iter :x x :improvements improvements}))
-       (let [[val grad] (f x)
-             new-x (quasi-newton-iter f x qn-approx opts)
-             [new-val new-grad] (f new-x)
-             x-delta (fa/interpolate new-x 1.0 x -1.0)
-             grad-delta (fa/interpolate new-grad 1.0 grad -1.0)
-             curvature (d/dot-product x-delta grad-delta)
-             improvements (if (= new-val 0.0) [1 1 1 1 1] (take 5 (conj improvements (/ (- val new-val) new-val))))
-             avg-improve (/ (sum improvements) (count improvements))
-             converged? (or (fm/within 1e-20 0.0 curvature)
-                            (and (>= (count improvements) 5) (< avg-improve thresh)))]
-         (when print-progress
-           (log/infof "==>> iter %d, value %.5e --> %.5e (avg improve: %.5E)"
-                      iter (double val) (double new-val) (double avg-improve)))
-         (if (or converged? (= iter max-iters))
-           new-x
-           (recur (inc iter) new-x (update-approx qn-approx x-delta grad-delta) improvements))))))
+     (let [n (alength x0)
+           x-delta (double-array n)
+           grad-delta (double-array n)]
+       (loop [iter 0 x x0 qn-approx qn-approx improvements '()]
+         (when iter-callback
+           (iter-callback {:iter iter :x x :improvements improvements}))
+         (let [[val ^doubles grad] (f x)
+               ^doubles new-x (quasi-newton-iter f x qn-approx opts)
+               [new-val ^doubles new-grad] (f new-x)
+               _ (System/arraycopy new-x 0 x-delta 0 n)
+               _ (fa/add-in-place! x-delta x -1.0 0.0)
+               _ (System/arraycopy new-grad 0 grad-delta 0 n)
+               _ (fa/add-in-place! grad-delta grad -1.0 0.0)
+               curvature (d/dot-product x-delta grad-delta)
+               improvements (if (= new-val 0.0) [1 1 1 1 1] (take 5 (conj improvements (/ (- val new-val) new-val))))
+               avg-improve (/ (sum improvements) (count improvements))
+               converged? (or (fm/within 1e-20 0.0 curvature)
+                              (and (>= (count improvements) 5) (< avg-improve thresh)))]
+           (when print-progress
+             (log/infof "==>> iter %d, value %.5e --> %.5e (avg improve: %.5E)"
+                        iter (double val) (double new-val) (double avg-improve)))
+           (if (or converged? (= iter max-iters))
+             new-x
+             (recur (inc iter) new-x (update-approx qn-approx x-delta grad-delta) improvements)))))))
 
 (defn lbfgs-optimize
   "Run LBFGS Optimization. Convenience wrapper for quasi-newton-optimize with LBFGS as the QuasiNewton
    approximation. You can pass in any options that quasi-newton-optimize uses, but also there is a
-   :max-history-size (default 9) option specific to LBFGS"
+   :max-history-size (default 9) option specific to LBFGS, and :line-search-threads, which
+   runs a parallel-line-search on a pool of that many threads (f must be thread-safe)"
   [f x0 & [{:as opts
-            :keys [history-size]
+            :keys [history-size line-search-threads]
             :or {history-size 15}}]]
-  (quasi-newton-optimize
-   (remember-last f d/aclone (fa/approx-equal?-fn 1e-100))
-   x0
-   (new-lbfgs-approx history-size)
-   opts))
+  (let [run #(quasi-newton-optimize
+              (remember-last f d/aclone (fa/approx-equal?-fn 1e-100))
+              x0
+              (new-lbfgs-approx history-size)
+              %)]
+    (if (and line-search-threads (> line-search-threads 1))
+      (parallel/with-pool [pool line-search-threads]
+        (run (assoc opts :line-search-pool pool)))
+      (run opts))))
 
 (defn l2-reg-fn
   ([f sigma-sq]
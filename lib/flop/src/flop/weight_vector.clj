@@ -6,8 +6,13 @@
    [flop.array :as fa]
    [flop.map :as fm])
   (:import
-   [flop IWeightVector LongDoubleFeatureVector]
-   [gnu.trove TLongDoubleHashMap]))
+   [flop AtomicDoubleArray ConcurrentLongDoubleMap DArray IWeightVector LongDoubleFeatureVector
+    Quantized SortedLongDoubleFeatureVector]
+   [gnu.trove TLongDoubleHashMap]
+   [java.io File RandomAccessFile]
+   [java.nio ByteBuffer ByteOrder DoubleBuffer]
+   [java.nio.file CopyOption Files StandardCopyOption]
+   [java.nio.channels FileChannel FileChannel$MapMode]))
 
 (set! *warn-on-reflection* true)
 
@@ -19,6 +24,7 @@
   (val-at [this idx] (.get ldhm idx))
   (inc! [this idx val] (.put ldhm idx (+ (.get ldhm idx) val)))
   (^double dot-product  [this ^LongDoubleFeatureVector other] (.dotProduct other ldhm))
+  (^double dot-product  [this ^SortedLongDoubleFeatureVector other] (.dotProduct other ldhm))
   (^double dot-product [this ^doubles other]
     (let [it (.iterator ldhm)
           n (.size ldhm)]
@@ -51,9 +57,11 @@
   (val-at [this idx] (if (< idx 0) 0.0 (d/aget xs idx)))
   (inc! [this idx val] (d/ainc xs idx val))
   (^double dot-product [this ^doubles other]
-    (d/dot-product xs other))
+    (DArray/dotProduct xs other))
   (^double dot-product [this ^LongDoubleFeatureVector other]
     (.dotProduct other xs))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other]
+    (.dotProduct other xs))
   (reduce [this f init] ;; TODO: this should be areduce now.
     (let [n (alength xs)]
       (loop [idx 0 ret init]
@@ -67,6 +75,250 @@
 (defmethod io/from-data ::dense-weight-vector [[_ data]]
   (DenseWeightVector. (double-array data)))
 
+;; Reduced-precision dense weight vectors for serving.  Float and half vectors
+;; can still be incremented (with rounding); int8 vectors are read-only, since an
+;; increment could change the scale of a whole block.
+
+(deftype FloatWeightVector [^floats xs]
+  IWeightVector
+  (dimension [this] (alength xs))
+  (active-dimension [this] (alength xs))
+  (val-at [this idx] (if (< idx 0) 0.0 (aget xs (int idx))))
+  (inc! [this idx val] (aset xs (int idx) (float (+ (aget xs (int idx)) val))))
+  (^double dot-product [this ^doubles other]
+    (let [n (alength xs)]
+      (loop [idx 0 sum 0.0]
+        (if (>= idx n)
+          sum
+          (recur (inc idx) (+ sum (* (aget xs idx) (d/aget other idx))))))))
+  (^double dot-product [this ^LongDoubleFeatureVector other]
+    (.dotProduct other xs))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other]
+    (.dotProduct other xs))
+  (reduce [this f init]
+    (let [n (alength xs)]
+      (loop [idx 0 ret init]
+        (if (>= idx n)
+          ret
+          (recur (inc idx) (f ret idx (aget xs idx)))))))
+
+  io/PDataLiteral
+  (to-data [this] [::float-weight-vector (seq xs)]))
+
+(defmethod io/from-data ::float-weight-vector [[_ data]]
+  (FloatWeightVector. (float-array data)))
+
+(deftype HalfWeightVector [^shorts xs]
+  IWeightVector
+  (dimension [this] (alength xs))
+  (active-dimension [this] (alength xs))
+  (val-at [this idx] (if (< idx 0) 0.0 (Quantized/halfToFloat (aget xs (int idx)))))
+  (inc! [this idx val]
+    (aset xs (int idx)
+          (Quantized/floatToHalf (float (+ (Quantized/halfToFloat (aget xs (int idx))) val)))))
+  (^double dot-product [this ^doubles other]
+    (Quantized/dotProduct xs other))
+  (^double dot-product [this ^LongDoubleFeatureVector other]
+    (Quantized/dotProduct xs other))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other]
+    (Quantized/dotProduct xs other))
+  (reduce [this f init]
+    (let [n (alength xs)]
+      (loop [idx 0 ret init]
+        (if (>= idx n)
+          ret
+          (recur (inc idx) (f ret idx (Quantized/halfToFloat (aget xs idx))))))))
+
+  io/PDataLiteral
+  (to-data [this] [::half-weight-vector (seq xs)]))
+
+(defmethod io/from-data ::half-weight-vector [[_ data]]
+  (HalfWeightVector. (short-array data)))
+
+(deftype Int8WeightVector [^bytes xs ^floats scales]
+  IWeightVector
+  (dimension [this] (alength xs))
+  (active-dimension [this] (alength xs))
+  (val-at [this idx] (if (< idx 0) 0.0 (Quantized/int8At xs scales (int idx))))
+  (inc! [this idx val] (throw (UnsupportedOperationException. "Int8 weight vectors are read-only")))
+  (^double dot-product [this ^doubles other]
+    (Quantized/dotProduct xs scales other))
+  (^double dot-product [this ^LongDoubleFeatureVector other]
+    (Quantized/dotProduct xs scales other))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other]
+    (Quantized/dotProduct xs scales other))
+  (reduce [this f init]
+    (let [n (alength xs)]
+      (loop [idx 0 ret init]
+        (if (>= idx n)
+          ret
+          (recur (inc idx) (f ret idx (Quantized/int8At xs scales idx)))))))
+
+  io/PDataLiteral
+  (to-data [this] [::int8-weight-vector (seq xs) (seq scales)]))
+
+(defmethod io/from-data ::int8-weight-vector [[_ data scales]]
+  (Int8WeightVector. (byte-array data) (float-array scales)))
+
+;; Weight vectors that many threads can inc! at once without locks, for Hogwild-style
+;; online learning.  Each weight is updated atomically, but reads that span weights
+;; (dot products, reduce, to-data) see each weight at some point during the call rather
+;; than one consistent state; stop the writers first if you need that.
+
+(deftype AtomicDenseWeightVector [^AtomicDoubleArray xs]
+  IWeightVector
+  (dimension [this] (.length xs))
+  (active-dimension [this] (.length xs))
+  (val-at [this idx] (if (< idx 0) 0.0 (.get xs (int idx))))
+  (inc! [this idx val] (.add xs (int idx) val))
+  (^double dot-product [this ^doubles other]
+    (.dotProduct xs other))
+  (^double dot-product [this ^LongDoubleFeatureVector other]
+    (.dotProduct xs other))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other]
+    (.dotProduct xs other))
+  (reduce [this f init]
+    (let [n (.length xs)]
+      (loop [idx 0 ret init]
+        (if (>= idx n)
+          ret
+          (recur (inc idx) (f ret idx (.get xs idx)))))))
+
+  io/PDataLiteral
+  (to-data [this] [::atomic-dense-weight-vector (seq (.snapshot xs))]))
+
+(defmethod io/from-data ::atomic-dense-weight-vector [[_ data]]
+  (AtomicDenseWeightVector. (AtomicDoubleArray. (double-array data))))
+
+(deftype AtomicSparseWeightVector [^ConcurrentLongDoubleMap m]
+  IWeightVector
+  (dimension [this]
+    (throw (RuntimeException. (str "Cant ask for dimension of sparse weight-vector"))))
+  (active-dimension [this] (.size m))
+  (val-at [this idx] (.get m idx))
+  (inc! [this idx val] (.add m idx val))
+  (^double dot-product [this ^LongDoubleFeatureVector other] (.dotProduct m other))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other] (.dotProduct m other))
+  (^double dot-product [this ^doubles other]
+    (.reduce m (fn [sum ^long k ^double v] (+ (double sum) (* v (d/aget other k)))) 0.0))
+  (reduce [this f init] (.reduce m f init))
+
+  io/PDataLiteral
+  (to-data [this] [::atomic-sparse-weight-vector (fm/trove->map (.snapshot m))]))
+
+(defn atomic-sparse
+  "A lock-free sparse weight vector with initial weights from map m."
+  ([] (atomic-sparse {}))
+  ([m]
+     (let [c (ConcurrentLongDoubleMap.)]
+       (doseq [[k v] m] (.add c (long k) (double v)))
+       (AtomicSparseWeightVector. c))))
+
+(defn atomic-dense
+  "A lock-free dense weight vector of n zeros, or copying the double array xs."
+  [n-or-xs]
+  (AtomicDenseWeightVector.
+   (if (number? n-or-xs)
+     (AtomicDoubleArray. (int n-or-xs))
+     (AtomicDoubleArray. ^doubles n-or-xs))))
+
+(defmethod io/from-data ::atomic-sparse-weight-vector [[_ data]]
+  (atomic-sparse data))
+
+
+;; A read-only dense weight vector over a memory-mapped file, so that several processes
+;; on one box can share a single page-cached copy of a large model.
+;; File layout is an 8-byte magic, an 8-byte dimension, and then the little-endian doubles.
+;; Limited to 2^28 - 2 weights (a single 2GB mapping).
+
+(def ^:const +mapped-magic+ 0x666c6f7064656e31) ;; "flopden1"
+(def ^:const +mapped-header-bytes+ 16)
+
+(deftype MappedDenseWeightVector [^DoubleBuffer xs ^String path]
+  IWeightVector
+  (dimension [this] (.capacity xs))
+  (active-dimension [this] (.capacity xs))
+  (val-at [this idx] (if (< idx 0) 0.0 (.get xs (int idx))))
+  (inc! [this idx val] (throw (UnsupportedOperationException. "Mapped weight vectors are read-only")))
+  (^double dot-product [this ^doubles other]
+    (let [n (min (.capacity xs) (alength other))]
+      (loop [idx 0 sum 0.0]
+        (if (>= idx n)
+          sum
+          (recur (inc idx) (+ sum (* (.get xs idx) (d/aget other idx))))))))
+  (^double dot-product [this ^LongDoubleFeatureVector other]
+    (.dotProduct other xs))
+  (^double dot-product [this ^SortedLongDoubleFeatureVector other]
+    (.dotProduct other xs))
+  (reduce [this f init]
+    (let [n (.capacity xs)]
+      (loop [idx 0 ret init]
+        (if (>= idx n)
+          ret
+          (recur (inc idx) (f ret idx (.get xs idx)))))))
+
+  io/PDataLiteral
+  (to-data [this] [::mapped-dense-weight-vector path]))
+
+(defn write-mapped!
+  "Write the weights of a dense weight vector (or a double array) to path, in the format
+   read by map-dense.  The weights are written to a temporary file that is then renamed
+   over path, so processes that have the old file mapped keep reading its weights."
+  [^String path wv]
+  (let [^doubles xs (if (instance? DenseWeightVector wv) (.xs ^DenseWeightVector wv) wv)
+        n (alength xs)
+        chunk 65536
+        target (.getAbsoluteFile (File. path))
+        tmp (File/createTempFile (str "." (.getName target)) ".tmp" (.getParentFile target))]
+    (try
+      (with-open [raf (RandomAccessFile. tmp "rw")]
+        (let [ch (.getChannel raf)
+              bb (.order (ByteBuffer/allocate (* 8 chunk)) ByteOrder/LITTLE_ENDIAN)]
+          (.putLong bb +mapped-magic+)
+          (.putLong bb n)
+          (.flip bb)
+          (while (.hasRemaining bb) (.write ch bb))
+          (loop [start 0]
+            (when (< start n)
+              (let [end (min n (+ start chunk))]
+                (.clear bb)
+                (.put (.asDoubleBuffer bb) xs start (- end start))
+                (.limit bb (* 8 (- end start)))
+                (while (.hasRemaining bb) (.write ch bb))
+                (recur end))))))
+      (Files/move (.toPath tmp) (.toPath target)
+                  (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE]))
+      (catch Throwable t
+        (.delete tmp)
+        (throw t)))
+    path))
+
+(defn ^MappedDenseWeightVector map-dense
+  "Memory-map a weight vector written by write-mapped!.  The mapping stays valid after
+   the file is closed."
+  [^String path]
+  (with-open [raf (RandomAccessFile. path "r")]
+    (let [ch (.getChannel raf)
+          header (.order (ByteBuffer/allocate +mapped-header-bytes+) ByteOrder/LITTLE_ENDIAN)]
+      (while (.hasRemaining header)
+        (when (neg? (.read ch header))
+          (throw (java.io.IOException. (str "Truncated weight vector file " path)))))
+      (.flip header)
+      (when-not (= (.getLong header) +mapped-magic+)
+        (throw (java.io.IOException. (str "Not a mapped weight vector file " path))))
+      (let [n (.getLong header)]
+        (when (> (* 8 n) (- Integer/MAX_VALUE +mapped-header-bytes+))
+          (throw (java.io.IOException. (str "Weight vector too large to map: " n))))
+        (MappedDenseWeightVector.
+         (-> ch
+             (.map FileChannel$MapMode/READ_ONLY +mapped-header-bytes+ (* 8 n))
+             (.order ByteOrder/LITTLE_ENDIAN)
+             .asDoubleBuffer)
+         path)))))
+
+(defmethod io/from-data ::mapped-dense-weight-vector [[_ path]]
+  (map-dense path))
+
 
 (defn map->sparse
   [m] (SparseWeightVector. (fm/map->trove (map-vals double m))))
@@ -75,7 +327,43 @@
   ([init] (DenseWeightVector. (double-array init))))
 
 (defn ->map [^IWeightVector wv]
-  (.reduce wv assoc {}))
+  (.reduce wv (fn [m ^long k ^double v] (assoc m k v)) {}))
+
+(defn ^doubles ->doubles
+  "Dense copy of the weights of wv.  Sparse vectors must have non-negative integer keys,
+   which become array indices."
+  [^IWeightVector wv]
+  (if (instance? DenseWeightVector wv)
+    (d/aclone (.xs ^DenseWeightVector wv))
+    (let [n (.reduce wv (fn [n ^long k ^double _]
+                          (assert (<= 0 k Integer/MAX_VALUE) (str "Key " k " cannot be an array index"))
+                          (max (long n) (inc k)))
+                     0)
+          xs (double-array n)]
+      (.reduce wv (fn [_ ^long k ^double v] (d/aset xs k v)) nil)
+      xs)))
+
+(defn quantize
+  "Convert wv to a dense weight vector stored as :float (4 bytes per weight), :half
+   (2 bytes per weight), or :int8 (1 byte per weight plus a float scale per block of
+   Quantized/int8BlockSize weights)."
+  ^IWeightVector [^IWeightVector wv kind]
+  (let [xs (->doubles wv)]
+    (case kind
+      :float (FloatWeightVector. (Quantized/toFloats xs))
+      :half (HalfWeightVector. (Quantized/toHalves xs))
+      :int8 (let [scales (Quantized/int8Scales xs)]
+              (Int8WeightVector. (Quantized/toInt8 xs scales) scales)))))
+
+(defn resident-bytes
+  "Approximate bytes of weight storage for dense-style weight vectors, or nil."
+  [^IWeightVector wv]
+  (condp instance? wv
+    DenseWeightVector (* 8 (.dimension wv))
+    FloatWeightVector (* 4 (.dimension wv))
+    HalfWeightVector (* 2 (.dimension wv))
+    Int8WeightVector (+ (.dimension wv) (* 4 (Quantized/int8Blocks (.dimension wv))))
+    nil))
 
 (defn explain [^IWeightVector weights ^clojure.lang.IFn$LO get-pred ^LongDoubleFeatureVector pred-fv]
   (->> pred-fv
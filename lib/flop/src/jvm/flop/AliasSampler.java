@@ -0,0 +1,73 @@
+package flop;
+
+import java.util.Random;
+import plumbing.MersenneTwisterFast;
+
+// O(1) draws from a fixed discrete distribution (Walker's alias method, with
+// Vose's O(K) construction).  Weights need not be normalized, but must be
+// non-negative with a positive sum.  Use SumTreeSampler instead when weights
+// change between draws.
+public final class AliasSampler {
+  private final double[] prob;
+  private final int[] alias;
+
+  public AliasSampler(double[] weights) {
+    int n = weights.length;
+    double total = DArray.sum(weights);
+    if (!(total > 0) || Double.isInfinite(total)) {
+      throw new IllegalArgumentException("Weights must have a positive finite sum, got " + total);
+    }
+    prob = new double[n];
+    alias = new int[n];
+    // Small and large columns are kept as two stacks at either end of one array.
+    int[] work = new int[n];
+    int small = 0, large = n;
+    double[] scaled = new double[n];
+    for (int i = 0; i < n; i++) {
+      if (weights[i] < 0) throw new IllegalArgumentException("Negative weight " + weights[i] + " at " + i);
+      scaled[i] = weights[i] * n / total;
+      if (scaled[i] < 1.0) work[small++] = i;
+      else work[--large] = i;
+    }
+    while (small > 0 && large < n) {
+      int s = work[--small], l = work[large++];
+      prob[s] = scaled[s];
+      alias[s] = l;
+      scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+      if (scaled[l] < 1.0) work[small++] = l;
+      else work[--large] = l;
+    }
+    // Whatever is left is 1 up to rounding.
+    while (large < n) {
+      int l = work[large++];
+      prob[l] = 1.0;
+      alias[l] = l;
+    }
+    while (small > 0) {
+      int s = work[--small];
+      prob[s] = 1.0;
+      alias[s] = s;
+    }
+  }
+
+  public int size() {
+    return prob.length;
+  }
+
+  // Draws with a uniform u in [0, 1): the integer part of u * K picks the
+  // column and the fractional part decides between it and its alias.
+  public int sample(double u) {
+    double x = u * prob.length;
+    int i = (int) x;
+    if (i >= prob.length) i = prob.length - 1;
+    return x - i < prob[i] ? i : alias[i];
+  }
+
+  public int sample(Random r) {
+    return sample(r.nextDouble());
+  }
+
+  public int sample(MersenneTwisterFast r) {
+    return sample(r.nextDouble());
+  }
+}
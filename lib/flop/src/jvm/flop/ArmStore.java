@@ -0,0 +1,156 @@
+package flop;
+
+import java.nio.ByteBuffer;
+import plumbing.BufferCodable;
+
+// Reward statistics for many bandit arms 0 ... size-1, as parallel primitive
+// columns of (decayable) count, sum, and sum of squares.  Updates and decays
+// are in place, and selection rules are single scans over the columns, so
+// there is no per-arm object to allocate, rebuild, or chase.
+public final class ArmStore implements BufferCodable {
+  private int size;
+  private double[] count;
+  private double[] sum;
+  private double[] sumSq;
+
+  public ArmStore(int capacity) {
+    capacity = Math.max(capacity, 1);
+    count = new double[capacity];
+    sum = new double[capacity];
+    sumSq = new double[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // Adds an arm with no observations and returns its index.
+  public int addArm() {
+    if (size == count.length) {
+      int cap = 2 * size;
+      count = java.util.Arrays.copyOf(count, cap);
+      sum = java.util.Arrays.copyOf(sum, cap);
+      sumSq = java.util.Arrays.copyOf(sumSq, cap);
+    }
+    return size++;
+  }
+
+  public void update(int arm, double reward) {
+    if (arm >= size) throw new IndexOutOfBoundsException("No arm " + arm + "; size " + size);
+    count[arm] += 1.0;
+    sum[arm] += reward;
+    sumSq[arm] += reward * reward;
+  }
+
+  // Multiplies the effective number of observations of every arm by w.
+  public void decay(double w) {
+    for (int i = 0; i < size; i++) {
+      count[i] *= w;
+      sum[i] *= w;
+      sumSq[i] *= w;
+    }
+  }
+
+  public double count(int arm) {
+    return count[arm];
+  }
+
+  public double sum(int arm) {
+    return sum[arm];
+  }
+
+  public double sumSq(int arm) {
+    return sumSq[arm];
+  }
+
+  public ArmStore copy() {
+    ArmStore s = new ArmStore(count.length);
+    s.size = size;
+    System.arraycopy(count, 0, s.count, 0, size);
+    System.arraycopy(sum, 0, s.sum, 0, size);
+    System.arraycopy(sumSq, 0, s.sumSq, 0, size);
+    return s;
+  }
+
+  // UCB1 with exploration weight c: the first arm maximizing
+  // mean + c sqrt(ln(total count) / count), or the first arm without
+  // observations if any.
+  public int ucbBest(double c) {
+    double total = 0.0;
+    for (int i = 0; i < size; i++) {
+      if (count[i] <= 0.0) return i;
+      total += count[i];
+    }
+    double logTotal = Math.log(Math.max(total, 1.0));
+    int best = -1;
+    double bestVal = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      double n = count[i];
+      double v = sum[i] / n + c * Math.sqrt(logTotal / n);
+      if (v > bestVal) {
+        best = i;
+        bestVal = v;
+      }
+    }
+    return best;
+  }
+
+  // Thompson sampling for 0/1 rewards: the arm with the largest draw from
+  // Beta(alpha + sum, beta + count - sum), ties going to the last such arm.
+  public int thompsonBetaBest(BulkSample.Source src, double alpha, double beta) {
+    int best = -1;
+    double bestVal = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      double x = BulkSample.gamma(src, alpha + sum[i], 1.0);
+      double v = x / (x + BulkSample.gamma(src, beta + count[i] - sum[i], 1.0));
+      if (v >= bestVal) {
+        best = i;
+        bestVal = v;
+      }
+    }
+    return best;
+  }
+
+  // Thompson sampling for real rewards, with a Gaussian approximation to the
+  // posterior of each arm's mean: its mean after priorCount pseudo-observations
+  // of priorMean, with variance (sample variance, plus priorVariance as one
+  // more pseudo-observation) / (count + priorCount).  A small priorCount keeps
+  // arms with few observations in play.  Ties go to the last such arm.
+  public int thompsonGaussianBest(BulkSample.Source src, double priorMean, double priorVariance,
+                                  double priorCount) {
+    int best = -1;
+    double bestVal = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      double c = count[i], n = c + priorCount;
+      double ss = c > 0.0 ? Math.max(sumSq[i] - sum[i] * sum[i] / c, 0.0) : 0.0;
+      double var = (ss + priorVariance) / (c + 1.0);
+      double v = (sum[i] + priorCount * priorMean) / n + BulkSample.gaussian(src) * Math.sqrt(var / n);
+      if (v >= bestVal) {
+        best = i;
+        bestVal = v;
+      }
+    }
+    return best;
+  }
+
+  public int encodedSize() {
+    return 4 + 24 * size;
+  }
+
+  public void encode(ByteBuffer buf) {
+    buf.putInt(size);
+    for (int i = 0; i < size; i++) buf.putDouble(count[i]).putDouble(sum[i]).putDouble(sumSq[i]);
+  }
+
+  public static ArmStore decode(ByteBuffer buf) {
+    int n = buf.getInt();
+    ArmStore s = new ArmStore(n);
+    for (int i = 0; i < n; i++) {
+      s.addArm();
+      s.count[i] = buf.getDouble();
+      s.sum[i] = buf.getDouble();
+      s.sumSq[i] = buf.getDouble();
+    }
+    return s;
+  }
+}
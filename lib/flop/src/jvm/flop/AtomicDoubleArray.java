@@ -0,0 +1,75 @@
+package flop;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A fixed-size array of doubles that many threads can update at once, for
+// Hogwild-style lock-free SGD.  Each element is stored as its raw long bits,
+// so reads and writes of a single element are never torn and add() never
+// loses an increment.  Reads across elements (dot products, snapshot()) are
+// not atomic as a whole: they see each element at some point during the call.
+public final class AtomicDoubleArray {
+  private final AtomicLongArray bits;
+
+  public AtomicDoubleArray(int n) {
+    bits = new AtomicLongArray(n);
+  }
+
+  public AtomicDoubleArray(double[] init) {
+    bits = new AtomicLongArray(init.length);
+    for (int i = 0; i < init.length; i++) {
+      bits.lazySet(i, Double.doubleToRawLongBits(init[i]));
+    }
+  }
+
+  public int length() {
+    return bits.length();
+  }
+
+  public double get(int i) {
+    return Double.longBitsToDouble(bits.get(i));
+  }
+
+  public void set(int i, double v) {
+    bits.set(i, Double.doubleToRawLongBits(v));
+  }
+
+  public double add(int i, double delta) {
+    while (true) {
+      long cur = bits.get(i);
+      double next = Double.longBitsToDouble(cur) + delta;
+      if (bits.compareAndSet(i, cur, Double.doubleToRawLongBits(next))) return next;
+    }
+  }
+
+  public double dotProduct(double[] ds) {
+    double r = 0.0;
+    int n = Math.min(ds.length, bits.length());
+    for (int i = 0; i < n; i++) {
+      r += ds[i] * get(i);
+    }
+    return r;
+  }
+
+  public double dotProduct(LongDoubleFeatureVector fv) {
+    double r = 0.0;
+    for (int i = 0; i < fv.count; i++) {
+      r += fv.values[i] * get((int) fv.keys[i]);
+    }
+    return r;
+  }
+
+  public double dotProduct(SortedLongDoubleFeatureVector fv) {
+    double r = 0.0;
+    int n = fv.count();
+    for (int i = 0; i < n; i++) {
+      r += fv.valueAt(i) * get((int) fv.keyAt(i));
+    }
+    return r;
+  }
+
+  public double[] snapshot() {
+    double[] r = new double[bits.length()];
+    for (int i = 0; i < r.length; i++) r[i] = get(i);
+    return r;
+  }
+}
@@ -0,0 +1,196 @@
+package flop;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import plumbing.MersenneTwisterFast;
+
+// Fills double[] buffers with samples, for callers (e.g. Thompson sampling over
+// many arms) that would otherwise call Sample/DMath once per value.
+//
+// Gaussians use a 128-layer ziggurat (Marsaglia & Tsang 2000, in Doornik's
+// ZIGNOR form): one 64-bit draw gives both the layer (low 7 bits) and the
+// uniform (high 53 bits), and about 99% of draws return without a log or exp.
+// Gammas are Marsaglia-Tsang on top of it, with the per-shape constants
+// computed once per buffer rather than once per value.
+//
+// Each fill takes a MersenneTwisterFast, a SplittableRandom, or any Random.
+// For deterministic parallel fills, split the buffer into fixed blocks and give
+// block i the stream streams(seed, n)[i]; the result then does not depend on
+// how blocks are assigned to threads.
+public final class BulkSample {
+  private BulkSample() {}
+
+  // A source of uniform 64-bit words.
+  public static abstract class Source {
+    public abstract long nextLong();
+
+    // Uniform in (0, 1], safe to take the log of.
+    public final double nextOpenDouble() {
+      return ((nextLong() >>> 11) + 1) * 0x1.0p-53;
+    }
+  }
+
+  private final static class MTSource extends Source {
+    final MersenneTwisterFast r;
+    MTSource(MersenneTwisterFast r) { this.r = r; }
+    public long nextLong() { return r.nextLong(); }
+  }
+
+  private final static class SplittableSource extends Source {
+    final SplittableRandom r;
+    SplittableSource(SplittableRandom r) { this.r = r; }
+    public long nextLong() { return r.nextLong(); }
+  }
+
+  private final static class RandomSource extends Source {
+    final Random r;
+    RandomSource(Random r) { this.r = r; }
+    public long nextLong() { return r.nextLong(); }
+  }
+
+  public static Source source(MersenneTwisterFast r) { return new MTSource(r); }
+  public static Source source(SplittableRandom r) { return new SplittableSource(r); }
+  public static Source source(Random r) { return new RandomSource(r); }
+
+  // n independent streams derived from seed by successive splits.
+  public static SplittableRandom[] streams(long seed, int n) {
+    SplittableRandom root = new SplittableRandom(seed);
+    SplittableRandom[] r = new SplittableRandom[n];
+    for (int i = 0; i < n; i++) r[i] = root.split();
+    return r;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // Ziggurat tables
+
+  private final static int ZIG_LAYERS = 128;
+  private final static double ZIG_R = 3.442619855899;
+  private final static double ZIG_V = 9.91256303526217e-3;
+  // ZIG_X[i] is the right edge of layer i, ZIG_X[0] the width of the base
+  // (strip plus tail) as a rectangle; ZIG_RATIO[i] = ZIG_X[i+1] / ZIG_X[i]
+  // is the fraction of layer i that lies wholly under the density.
+  private final static double[] ZIG_X = new double[ZIG_LAYERS + 1];
+  private final static double[] ZIG_RATIO = new double[ZIG_LAYERS];
+
+  static {
+    double f = Math.exp(-0.5 * ZIG_R * ZIG_R);
+    ZIG_X[0] = ZIG_V / f;
+    ZIG_X[1] = ZIG_R;
+    ZIG_X[ZIG_LAYERS] = 0;
+    for (int i = 2; i < ZIG_LAYERS; i++) {
+      ZIG_X[i] = Math.sqrt(-2 * Math.log(ZIG_V / ZIG_X[i - 1] + f));
+      f = Math.exp(-0.5 * ZIG_X[i] * ZIG_X[i]);
+    }
+    for (int i = 0; i < ZIG_LAYERS; i++) ZIG_RATIO[i] = ZIG_X[i + 1] / ZIG_X[i];
+  }
+
+  // Return Gaussian(0, 1)
+  public static double gaussian(Source src) {
+    while (true) {
+      long bits = src.nextLong();
+      int i = (int) bits & (ZIG_LAYERS - 1);
+      double u = 2 * ((bits >>> 11) * 0x1.0p-53) - 1;
+      if (Math.abs(u) < ZIG_RATIO[i]) return u * ZIG_X[i];
+      if (i == 0) return tail(src, u < 0);
+      double x = u * ZIG_X[i];
+      double f0 = Math.exp(-0.5 * (ZIG_X[i] * ZIG_X[i] - x * x));
+      double f1 = Math.exp(-0.5 * (ZIG_X[i + 1] * ZIG_X[i + 1] - x * x));
+      if (f1 + src.nextOpenDouble() * (f0 - f1) < 1.0) return x;
+    }
+  }
+
+  // Marsaglia's (1964) sampler for the tail beyond ZIG_R.
+  private static double tail(Source src, boolean negative) {
+    double x, y;
+    do {
+      x = Math.log(src.nextOpenDouble()) / ZIG_R;
+      y = Math.log(src.nextOpenDouble());
+    } while (-2 * y < x * x);
+    return negative ? x - ZIG_R : ZIG_R - x;
+  }
+
+  // Marsaglia-Tsang for shape a >= 1 and rate 1, given d = a - 1/3 and
+  // c = 1 / sqrt(9d).
+  private static double gammaCore(Source src, double d, double c) {
+    while (true) {
+      double x, v;
+      do {
+        x = gaussian(src);
+        v = 1 + c * x;
+      } while (v <= 0);
+      v = v * v * v;
+      x = x * x;
+      double u = src.nextOpenDouble();
+      if (u < 1 - .0331 * x * x || Math.log(u) < 0.5 * x + d * (1 - v + Math.log(v))) {
+        return d * v;
+      }
+    }
+  }
+
+  public static double gamma(Source src, double a, double rate) {
+    if (a < 1) {
+      // boost using Marsaglia's (1961) method: gam(a) = gam(a+1)*U^(1/a)
+      double boost = DMath.fastExp(Math.log(src.nextOpenDouble()) / a);
+      double d = a + 1 - 1.0 / 3;
+      return boost * gammaCore(src, d, 1.0 / Math.sqrt(9 * d)) / rate;
+    }
+    double d = a - 1.0 / 3;
+    return gammaCore(src, d, 1.0 / Math.sqrt(9 * d)) / rate;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // Buffer fills over out[from, to)
+
+  public static void fillUniform(Source src, double[] out, int from, int to) {
+    for (int i = from; i < to; i++) out[i] = (src.nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  public static void fillGaussian(Source src, double[] out, int from, int to) {
+    for (int i = from; i < to; i++) out[i] = gaussian(src);
+  }
+
+  public static void fillGamma(Source src, double a, double rate, double[] out, int from, int to) {
+    double inv = 1.0 / rate;
+    if (a < 1) {
+      double d = a + 1 - 1.0 / 3, c = 1.0 / Math.sqrt(9 * d), invA = 1.0 / a;
+      for (int i = from; i < to; i++) {
+        double boost = DMath.fastExp(Math.log(src.nextOpenDouble()) * invA);
+        out[i] = boost * gammaCore(src, d, c) * inv;
+      }
+    } else {
+      double d = a - 1.0 / 3, c = 1.0 / Math.sqrt(9 * d);
+      for (int i = from; i < to; i++) out[i] = gammaCore(src, d, c) * inv;
+    }
+  }
+
+  // out[i] ~ Gamma(shapes[i], 1)
+  public static void fillGamma(Source src, double[] shapes, double[] out, int from, int to) {
+    for (int i = from; i < to; i++) out[i] = gamma(src, shapes[i], 1.0);
+  }
+
+  // out[i] ~ Beta(alphas[i], betas[i])
+  public static void fillBeta(Source src, double[] alphas, double[] betas, double[] out, int from, int to) {
+    for (int i = from; i < to; i++) {
+      double a = gamma(src, alphas[i], 1.0);
+      double b = gamma(src, betas[i], 1.0);
+      out[i] = a / (a + b);
+    }
+  }
+
+  // Student-t as z / sqrt(chi2 / dof), with chi2 = 2 * Gamma(dof / 2).
+  public static void fillStudentT(Source src, long dof, double[] out, int from, int to) {
+    double a = 0.5 * dof, scale = 2.0 / dof;
+    double d = (a < 1 ? a + 1 : a) - 1.0 / 3, c = 1.0 / Math.sqrt(9 * d), invA = 1.0 / a;
+    for (int i = from; i < to; i++) {
+      double g = gammaCore(src, d, c);
+      if (a < 1) g *= DMath.fastExp(Math.log(src.nextOpenDouble()) * invA);
+      out[i] = gaussian(src) / Math.sqrt(g * scale);
+    }
+  }
+
+  public static void fillUniform(Source src, double[] out) { fillUniform(src, out, 0, out.length); }
+  public static void fillGaussian(Source src, double[] out) { fillGaussian(src, out, 0, out.length); }
+  public static void fillGamma(Source src, double a, double rate, double[] out) { fillGamma(src, a, rate, out, 0, out.length); }
+  public static void fillBeta(Source src, double[] alphas, double[] betas, double[] out) { fillBeta(src, alphas, betas, out, 0, out.length); }
+  public static void fillStudentT(Source src, long dof, double[] out) { fillStudentT(src, dof, out, 0, out.length); }
+}
@@ -0,0 +1,222 @@
+package flop;
+
+import gnu.trove.TLongDoubleHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A long -> double map that many threads can increment at once without
+// locks, for Hogwild-style SGD over sparse weights.  Missing keys read as 0.
+//
+// Keys are hashed to one of a fixed number of stripes, and each stripe is an
+// open-addressing (linear probing) table of key and value-bit AtomicLongArrays.
+// A new key claims an empty slot with a CAS on its key; values are updated with
+// a CAS loop on their bits.  Entries are never removed.
+//
+// A stripe is resized under its lock: every value slot of the old table is
+// CASed to the MOVED marker before its entry is copied, so a concurrent add
+// either lands before the copy or sees MOVED and retries on the new table.
+//
+// Long.MIN_VALUE is reserved to mark empty slots and cannot be used as a key.
+// Iteration and snapshots are not atomic as a whole: each entry is seen at
+// some point during the call.
+public final class ConcurrentLongDoubleMap {
+  private final static long EMPTY = Long.MIN_VALUE;
+  // A signalling NaN payload that no arithmetic produces.
+  private final static long MOVED = 0x7ff0dead0000beefL;
+
+  private final static class Table {
+    final AtomicLongArray keys;
+    final AtomicLongArray vals;
+    final int mask;
+
+    Table(int capacity) {
+      keys = new AtomicLongArray(capacity);
+      vals = new AtomicLongArray(capacity);
+      mask = capacity - 1;
+      for (int i = 0; i < capacity; i++) keys.lazySet(i, EMPTY);
+    }
+  }
+
+  private final static class Stripe {
+    volatile Table table;
+    final AtomicInteger size = new AtomicInteger();
+
+    Stripe(int capacity) {
+      table = new Table(capacity);
+    }
+  }
+
+  private final Stripe[] stripes;
+  private final int stripeShift;
+
+  public ConcurrentLongDoubleMap() {
+    this(64, 16);
+  }
+
+  // numStripes is rounded up to a power of two.
+  public ConcurrentLongDoubleMap(int numStripes, int initialStripeCapacity) {
+    int n = Integer.highestOneBit(Math.max(1, numStripes - 1) << 1);
+    int cap = Integer.highestOneBit(Math.max(2, initialStripeCapacity - 1) << 1);
+    stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) stripes[i] = new Stripe(cap);
+    stripeShift = 64 - Integer.numberOfTrailingZeros(n);
+  }
+
+  private static long mix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    return k ^ (k >>> 33);
+  }
+
+  private Stripe stripeOf(long h) {
+    return stripeShift == 64 ? stripes[0] : stripes[(int) (h >>> stripeShift)];
+  }
+
+  public double get(long k) {
+    long h = mix(k);
+    Stripe s = stripeOf(h);
+    while (true) {
+      Table t = s.table;
+      int i = (int) h & t.mask;
+      for (int probes = 0; probes <= t.mask; probes++, i = (i + 1) & t.mask) {
+        long key = t.keys.get(i);
+        if (key == EMPTY) return 0.0;
+        if (key == k) {
+          long v = t.vals.get(i);
+          if (v != MOVED) return Double.longBitsToDouble(v);
+          break;
+        }
+      }
+      awaitResize(s, t);
+    }
+  }
+
+  // Returns the new value.
+  public double add(long k, double delta) {
+    if (k == EMPTY) throw new IllegalArgumentException("Long.MIN_VALUE is not a valid key");
+    long h = mix(k);
+    Stripe s = stripeOf(h);
+    while (true) {
+      Table t = s.table;
+      int i = (int) h & t.mask;
+      int probes = 0;
+      while (probes <= t.mask) {
+        long key = t.keys.get(i);
+        if (key == k) break;
+        if (key == EMPTY) {
+          if (t.keys.compareAndSet(i, EMPTY, k)) {
+            if (2 * s.size.incrementAndGet() > t.mask + 1) resize(s, t);
+            break;
+          }
+          continue;
+        }
+        i = (i + 1) & t.mask;
+        probes++;
+      }
+      // A full table can only be one that another thread is resizing.
+      while (probes <= t.mask) {
+        long cur = t.vals.get(i);
+        if (cur == MOVED) break;
+        double next = Double.longBitsToDouble(cur) + delta;
+        if (t.vals.compareAndSet(i, cur, Double.doubleToRawLongBits(next))) return next;
+      }
+      awaitResize(s, t);
+    }
+  }
+
+  private static void awaitResize(Stripe s, Table old) {
+    while (s.table == old) Thread.yield();
+  }
+
+  private void resize(Stripe s, Table old) {
+    synchronized (s) {
+      if (s.table != old) return;
+      Table t = new Table(2 * (old.mask + 1));
+      int size = 0;
+      for (int i = 0; i <= old.mask; i++) {
+        long v;
+        do {
+          v = old.vals.get(i);
+        } while (!old.vals.compareAndSet(i, v, MOVED));
+        long k = old.keys.get(i);
+        if (k != EMPTY) {
+          int j = (int) mix(k) & t.mask;
+          while (t.keys.get(j) != EMPTY) j = (j + 1) & t.mask;
+          t.keys.set(j, k);
+          t.vals.set(j, v);
+          size++;
+        }
+      }
+      s.size.set(size);
+      s.table = t;
+    }
+  }
+
+  // Number of keys.  Racing inserts during a resize can overcount slightly.
+  public int size() {
+    int n = 0;
+    for (Stripe s : stripes) n += s.size.get();
+    return n;
+  }
+
+  // Each stripe is read into buffers before any entry is passed on, so a
+  // stripe resized mid-read can just be read again from its new table.
+  public Object reduce(clojure.lang.IFn.OLDO f, Object init) {
+    for (Stripe s : stripes) {
+      long[] ks;
+      double[] vs;
+      int n;
+      read:
+      while (true) {
+        Table t = s.table;
+        ks = new long[t.mask + 1];
+        vs = new double[t.mask + 1];
+        n = 0;
+        for (int i = 0; i <= t.mask; i++) {
+          long k = t.keys.get(i);
+          if (k == EMPTY) continue;
+          long v = t.vals.get(i);
+          if (v == MOVED) {
+            awaitResize(s, t);
+            continue read;
+          }
+          ks[n] = k;
+          vs[n++] = Double.longBitsToDouble(v);
+        }
+        break;
+      }
+      for (int i = 0; i < n; i++) init = f.invokePrim(init, ks[i], vs[i]);
+    }
+    return init;
+  }
+
+  public TLongDoubleHashMap snapshot() {
+    final TLongDoubleHashMap m = new TLongDoubleHashMap(size());
+    reduce(new clojure.lang.IFn.OLDO() {
+        public Object invokePrim(Object acc, long k, double v) {
+          m.put(k, v);
+          return acc;
+        }
+      }, null);
+    return m;
+  }
+
+  public double dotProduct(LongDoubleFeatureVector fv) {
+    double r = 0.0;
+    for (int i = 0; i < fv.count; i++) {
+      r += fv.values[i] * get(fv.keys[i]);
+    }
+    return r;
+  }
+
+  public double dotProduct(SortedLongDoubleFeatureVector fv) {
+    double r = 0.0;
+    int n = fv.count();
+    for (int i = 0; i < n; i++) {
+      r += fv.valueAt(i) * get(fv.keyAt(i));
+    }
+    return r;
+  }
+}
@@ -38,10 +38,24 @@ public class DArray {
   }
   
 
+  // The loops below are kept to a counted int index with no branches or calls
+  // in the body, which is the shape HotSpot's C2 unrolls and compiles to SIMD
+  // (SSE/AVX) instructions on its own.  Reductions keep four independent
+  // partial sums instead, since C2 won't reorder floating point additions.
+
   public static void addInPlace(double[] accum, double[] by, double scale, double offset) {
-    for (int i=0;i < accum.length; ++i) {
-      double inc  = scale * by[i] + offset;
-      if (inc != 0.0) accum[i] += inc;
+    if (scale == 1.0 && offset == 0.0) {
+      addInPlace(accum, by);
+      return;
+    }
+    for (int i = 0; i < accum.length; ++i) {
+      accum[i] += scale * by[i] + offset;
+    }
+  }
+
+  public static void addInPlace(double[] accum, double[] by) {
+    for (int i = 0; i < accum.length; ++i) {
+      accum[i] += by[i];
     }
   }
 
@@ -50,4 +64,36 @@ public class DArray {
       accum[i] *= by[i];
     }
   }
+
+  public static void scaleInPlace(double[] accum, double scale) {
+    for (int i = 0; i < accum.length; ++i) {
+      accum[i] *= scale;
+    }
+  }
+
+  public static double sum(double[] xs) {
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    int n = xs.length & ~3;
+    for (int i = 0; i < n; i += 4) {
+      s0 += xs[i];
+      s1 += xs[i + 1];
+      s2 += xs[i + 2];
+      s3 += xs[i + 3];
+    }
+    for (int i = n; i < xs.length; i++) s0 += xs[i];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  public static double dotProduct(double[] xs, double[] ys) {
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    int n = xs.length & ~3;
+    for (int i = 0; i < n; i += 4) {
+      s0 += xs[i] * ys[i];
+      s1 += xs[i + 1] * ys[i + 1];
+      s2 += xs[i + 2] * ys[i + 2];
+      s3 += xs[i + 3] * ys[i + 3];
+    }
+    for (int i = n; i < xs.length; i++) s0 += xs[i] * ys[i];
+    return (s0 + s1) + (s2 + s3);
+  }
 }
@@ -102,34 +102,88 @@ public class DMath {
     // if x is very near one, use the linear approximation
     if (x < -LOGTOLERANCE) return 0.0;
     if (Math.abs(x) < 0.001) return 1 + x;
-    return Math.exp(x);
+    return fastExp(x);
   }
-  
-  private static double[] sloppyExpCache;
-  private final static int sloppyExpBins = 100000;
-  private final static double invBinSize = sloppyExpBins / LOGTOLERANCE;
+
   public static double sloppyExpNegative(double x) {
     assert (x <= 0);
-    if (sloppyExpCache == null) {
-      sloppyExpCache = new double [sloppyExpBins + 1];
-      double halfbin = LOGTOLERANCE/(sloppyExpBins*2);
-      for(int i = 0; i < sloppyExpBins; i++) {
-	sloppyExpCache[i] = Math.exp((i * LOGTOLERANCE / sloppyExpBins) - LOGTOLERANCE + halfbin);
-      }
-      sloppyExpCache[sloppyExpBins] = 1.0;
-    }
     if (x <= -LOGTOLERANCE) return 0.0;
-    double i = ((x + LOGTOLERANCE) * invBinSize);
-    return sloppyExpCache[(int) i];    
+    return fastExp(x);
   }
 
-  public static double[] cachedLogs;
-  public static double MIN_LOG = -LOGTOLERANCE;
-  public static double MAX_LOG = 600;
-  public static int NUM_APPROX = 20000;
-
   public static double sloppyLog(double x) {
     return Math.log(x);
   }
 
+  //////////////////////////////////////////////////////////////////////////////
+  // Table-driven exp and log.
+  //
+  // Both reduce the argument with a 256-entry table and finish with a short
+  // polynomial, so they touch 2-4KB of tables that stay in L1.  The tables are
+  // built in the static initializer, so there is no lazy initialization to race
+  // on.  Arguments outside the fast range (NaN, infinities, zero, negatives,
+  // subnormal results or inputs) go to Math.exp / Math.log.
+  //
+  // Error bounds (checked against Math.exp / Math.log over random arguments):
+  //   fastExp: relative error below 1e-15 for x in (-708, 709)
+  //   fastLog: absolute error below 2e-15 for normal positive x, and relative
+  //            error below 1e-15 for x >= 1
+  //
+  // On JDK 17, fastExp takes about 7ns vs. 9ns for Math.exp, but fastLog about
+  // 21ns vs. 14ns for the Math.log intrinsic, so library code uses Math.log;
+  // fastLog is for JVMs without that intrinsic.
+
+  private final static int TABLE_BITS = 8;
+  private final static int TABLE_SIZE = 1 << TABLE_BITS;
+
+  // 2^(j/256)
+  private final static double[] EXP_TABLE = new double[TABLE_SIZE];
+  // log(1 + j/256) and 1/(1 + j/256)
+  private final static double[] LOG_TABLE = new double[TABLE_SIZE];
+  private final static double[] LOG_INV = new double[TABLE_SIZE];
+
+  static {
+    for (int j = 0; j < TABLE_SIZE; j++) {
+      EXP_TABLE[j] = Math.pow(2.0, j / (double) TABLE_SIZE);
+      LOG_TABLE[j] = Math.log1p(j / (double) TABLE_SIZE);
+      LOG_INV[j] = 1.0 / (1.0 + j / (double) TABLE_SIZE);
+    }
+  }
+
+  // ln 2 split so that k * LN2_HI is exact (from fdlibm).
+  private final static double LN2_HI = 6.93147180369123816490e-01;
+  private final static double LN2_LO = 1.90821492927058770002e-10;
+  private final static double INV_LN2_N = TABLE_SIZE / 0.6931471805599453;
+
+  public static double fastExp(double x) {
+    if (!(x > -708.0 && x < 709.0)) return Math.exp(x);
+    // x = (256 e + j) ln2 / 256 + r, with |r| <= ln2 / 512
+    double kf = Math.rint(x * INV_LN2_N);
+    long k = (long) kf;
+    double r = (x - kf * (LN2_HI / TABLE_SIZE)) - kf * (LN2_LO / TABLE_SIZE);
+    double p = 1.0 + r * (1.0 + r * (0.5 + r * (1.0 / 6 + r * (1.0 / 24))));
+    double scale = Double.longBitsToDouble(((k >> TABLE_BITS) + 1023) << 52);
+    return scale * EXP_TABLE[(int) (k & (TABLE_SIZE - 1))] * p;
+  }
+
+  public static double fastLog(double x) {
+    if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY)) return Math.log(x);
+    // x = 2^e m, m in [1, 2), m = (1 + j/256)(1 + t) with t in [0, 1/256)
+    long bits = Double.doubleToRawLongBits(x);
+    int e = (int) (bits >>> 52) - 1023;
+    int j = (int) (bits >>> (52 - TABLE_BITS)) & (TABLE_SIZE - 1);
+    double m = Double.longBitsToDouble((bits & 0x000fffffffffffffL) | 0x3ff0000000000000L);
+    double t = (m - (1.0 + j * (1.0 / TABLE_SIZE))) * LOG_INV[j];
+    double p = t * (1.0 - t * (0.5 - t * (1.0 / 3 - t * (0.25 - t * (0.2 - t * (1.0 / 6))))));
+    return e * LN2_HI + (LOG_TABLE[j] + (p + e * LN2_LO));
+  }
+
+  public static void expInPlace(double[] xs) {
+    for (int i = 0; i < xs.length; i++) xs[i] = fastExp(xs[i]);
+  }
+
+  public static void logInPlace(double[] xs) {
+    for (int i = 0; i < xs.length; i++) xs[i] = Math.log(xs[i]);
+  }
+
 }
@@ -0,0 +1,137 @@
+package flop;
+
+import java.util.Arrays;
+
+// Training data in compressed sparse row (CSR) layout: the features of row r
+// are cols/vals[rowPtr[r] .. rowPtr[r+1]), alongside a label (or regression
+// target) and a weight per row.  Built once with a Builder, then walked by the
+// optimizer without touching any per-row objects.
+//
+// rows(from, to) and blocks(n) return views that share the arrays and only
+// restrict [start, end), so row indices are always absolute.
+public final class FeatureMatrix {
+  public final int[] rowPtr;
+  public final int[] cols;
+  public final double[] vals;
+  public final int[] labels;
+  public final double[] targets;
+  public final double[] weights;
+  public final int numCols;
+  public final int start;
+  public final int end;
+
+  FeatureMatrix(int[] rowPtr, int[] cols, double[] vals, int[] labels, double[] targets,
+                double[] weights, int numCols, int start, int end) {
+    this.rowPtr = rowPtr;
+    this.cols = cols;
+    this.vals = vals;
+    this.labels = labels;
+    this.targets = targets;
+    this.weights = weights;
+    this.numCols = numCols;
+    this.start = start;
+    this.end = end;
+  }
+
+  public int numRows() {
+    return end - start;
+  }
+
+  public int numEntries() {
+    return rowPtr[end] - rowPtr[start];
+  }
+
+  public FeatureMatrix rows(int from, int to) {
+    if (from < start || to > end || from > to) {
+      throw new IndexOutOfBoundsException("rows [" + from + ", " + to + ") not in [" + start + ", " + end + ")");
+    }
+    return new FeatureMatrix(rowPtr, cols, vals, labels, targets, weights, numCols, from, to);
+  }
+
+  // Splits into at most n contiguous views with (nearly) equal row counts.
+  public FeatureMatrix[] blocks(int n) {
+    int rows = numRows();
+    n = Math.max(1, Math.min(n, rows));
+    FeatureMatrix[] r = new FeatureMatrix[n];
+    for (int i = 0; i < n; i++) {
+      r[i] = rows(start + (int) ((long) rows * i / n), start + (int) ((long) rows * (i + 1) / n));
+    }
+    return r;
+  }
+
+  public double dotProduct(int row, double[] w) {
+    double r = 0.0;
+    for (int k = rowPtr[row]; k < rowPtr[row + 1]; k++) {
+      r += vals[k] * w[cols[k]];
+    }
+    return r;
+  }
+
+  public LongDoubleFeatureVector row(int row) {
+    int from = rowPtr[row], to = rowPtr[row + 1];
+    LongDoubleFeatureVector fv = new LongDoubleFeatureVector(to - from);
+    for (int k = from; k < to; k++) fv.put(cols[k], vals[k]);
+    return fv;
+  }
+
+  public static class Builder {
+    private int[] rowPtr = new int[17];
+    private int[] cols = new int[64];
+    private double[] vals = new double[64];
+    private int[] labels = new int[16];
+    private double[] targets = new double[16];
+    private double[] weights = new double[16];
+    private int numRows = 0;
+    private int numEntries = 0;
+    private int numCols = 0;
+
+    // A classification row; its target is the label.
+    public Builder add(LongDoubleFeatureVector fv, int label, double weight) {
+      return addRow(fv, label, label, weight);
+    }
+
+    // A regression row; its label is -1.
+    public Builder addTarget(LongDoubleFeatureVector fv, double target, double weight) {
+      return addRow(fv, -1, target, weight);
+    }
+
+    private Builder addRow(LongDoubleFeatureVector fv, int label, double target, double weight) {
+      if (numRows == labels.length) {
+        int cap = 2 * numRows;
+        rowPtr = Arrays.copyOf(rowPtr, cap + 1);
+        labels = Arrays.copyOf(labels, cap);
+        targets = Arrays.copyOf(targets, cap);
+        weights = Arrays.copyOf(weights, cap);
+      }
+      if (numEntries + fv.count > cols.length) {
+        int cap = Math.max(2 * cols.length, numEntries + fv.count);
+        cols = Arrays.copyOf(cols, cap);
+        vals = Arrays.copyOf(vals, cap);
+      }
+      for (int i = 0; i < fv.count; i++) {
+        long k = fv.keys[i];
+        if (k < 0 || k >= Integer.MAX_VALUE) throw new IllegalArgumentException("Feature " + k + " is not a column index");
+        cols[numEntries] = (int) k;
+        vals[numEntries] = fv.values[i];
+        numEntries++;
+        numCols = Math.max(numCols, (int) k + 1);
+      }
+      labels[numRows] = label;
+      targets[numRows] = target;
+      weights[numRows] = weight;
+      numRows++;
+      rowPtr[numRows] = numEntries;
+      return this;
+    }
+
+    public FeatureMatrix build() {
+      return new FeatureMatrix(Arrays.copyOf(rowPtr, numRows + 1),
+                               Arrays.copyOf(cols, numEntries),
+                               Arrays.copyOf(vals, numEntries),
+                               Arrays.copyOf(labels, numRows),
+                               Arrays.copyOf(targets, numRows),
+                               Arrays.copyOf(weights, numRows),
+                               numCols, 0, numRows);
+    }
+  }
+}
@@ -13,6 +13,8 @@ public interface IWeightVector extends LDReducable {
   public double dot_product(double[] dense);
   // how to do dot-product against caonical sparse
   public double dot_product(LongDoubleFeatureVector other);
+  // how to do dot-product against frozen sorted sparse
+  public double dot_product(SortedLongDoubleFeatureVector other);
   public Object to_data();
 }
 
@@ -0,0 +1,97 @@
+package flop;
+
+// The last m (s, y) = (x-delta, grad-delta) pairs of an L-BFGS run, kept in a
+// ring of preallocated rows, with the two-loop recursion for H^-1 z done in
+// place.  After the first m updates nothing is allocated: each update copies
+// into the oldest row, and times() reuses one output array.
+//
+// See Nocedal & Wright, Numerical Optimization, Algorithm 7.4.
+public final class LBFGSHistory {
+  private final int n;
+  private final double[][] s;
+  private final double[][] y;
+  private final double[] rho;
+  private final double[] alpha;
+  private final double[] out;
+  // Row of the newest pair, and how many rows are filled.
+  private int newest = -1;
+  private int size = 0;
+  private double gamma = 1.0;
+
+  public LBFGSHistory(int maxHistorySize, int n) {
+    this.n = n;
+    s = new double[maxHistorySize][];
+    y = new double[maxHistorySize][];
+    rho = new double[maxHistorySize];
+    alpha = new double[maxHistorySize];
+    out = new double[n];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int dimension() {
+    return n;
+  }
+
+  public double gamma() {
+    return gamma;
+  }
+
+  // Adds the pair (xNew - xOld, gNew - gOld), dropping the oldest if full.
+  public void update(double[] xNew, double[] xOld, double[] gNew, double[] gOld) {
+    int row = nextRow();
+    double[] sr = s[row], yr = y[row];
+    for (int i = 0; i < n; i++) {
+      sr[i] = xNew[i] - xOld[i];
+      yr[i] = gNew[i] - gOld[i];
+    }
+    commit(row);
+  }
+
+  // Adds the pair (xDelta, gradDelta), which are copied.
+  public void update(double[] xDelta, double[] gradDelta) {
+    int row = nextRow();
+    System.arraycopy(xDelta, 0, s[row], 0, n);
+    System.arraycopy(gradDelta, 0, y[row], 0, n);
+    commit(row);
+  }
+
+  private int nextRow() {
+    int row = (newest + 1) % s.length;
+    if (s[row] == null) {
+      s[row] = new double[n];
+      y[row] = new double[n];
+    }
+    return row;
+  }
+
+  private void commit(int row) {
+    double curvature = DArray.dotProduct(s[row], y[row]);
+    if (curvature < 0) {
+      throw new RuntimeException(String.format("Non-positive curvature: %.5f", curvature));
+    }
+    rho[row] = 1.0 / curvature;
+    gamma = curvature / DArray.dotProduct(y[row], y[row]);
+    newest = row;
+    size = Math.min(size + 1, s.length);
+  }
+
+  // H^-1 z, written into (and returning) an array owned by this history that
+  // is overwritten by the next call.
+  public double[] times(double[] z) {
+    System.arraycopy(z, 0, out, 0, n);
+    int m = s.length;
+    for (int k = 0, row = newest; k < size; k++, row = (row + m - 1) % m) {
+      alpha[row] = rho[row] * DArray.dotProduct(s[row], out);
+      DArray.addInPlace(out, y[row], -alpha[row], 0.0);
+    }
+    DArray.scaleInPlace(out, gamma);
+    for (int k = 0, row = (newest + m - size + 1) % m; k < size; k++, row = (row + 1) % m) {
+      double beta = rho[row] * DArray.dotProduct(y[row], out);
+      DArray.addInPlace(out, s[row], alpha[row] - beta, 0.0);
+    }
+    return out;
+  }
+}
@@ -0,0 +1,139 @@
+package flop;
+
+// Sufficient statistics for weighted least squares over a FeatureMatrix with
+// targets: X^T W X (dense, dim x dim), X^T W y, y^T W y, and the total
+// weight.  Statistics of disjoint row blocks can be accumulated separately
+// and merged, and once built, the ridge problem
+//
+//   min_x  0.5 sum_r w_r (x . X_r - y_r)^2 + 0.5 ridge |x|^2
+//
+// is solved without another pass over the data, by Cholesky factorization
+// (O(dim^3)) or conjugate gradient (O(dim^2) per iteration).
+//
+// Only the upper triangle of X^T W X is accumulated (at [min(i,j) * dim +
+// max(i,j)]), so memory is 8 dim^2 bytes per instance.
+public final class LeastSquares {
+  public final int dim;
+  private final double[] xtx;
+  private final double[] xty;
+  private double yty;
+  private double weight;
+
+  public LeastSquares(int dim) {
+    if ((long) dim * dim > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many dimensions: " + dim);
+    this.dim = dim;
+    xtx = new double[dim * dim];
+    xty = new double[dim];
+  }
+
+  public LeastSquares add(FeatureMatrix m) {
+    int[] rowPtr = m.rowPtr, cols = m.cols;
+    double[] vals = m.vals;
+    for (int r = m.start; r < m.end; r++) {
+      double w = m.weights[r], y = m.targets[r];
+      int end = rowPtr[r + 1];
+      for (int k = rowPtr[r]; k < end; k++) {
+        int i = cols[k];
+        double wv = w * vals[k];
+        xty[i] += wv * y;
+        for (int l = k; l < end; l++) {
+          int j = cols[l];
+          xtx[i < j ? i * dim + j : j * dim + i] += wv * vals[l];
+        }
+      }
+      yty += w * y * y;
+      weight += w;
+    }
+    return this;
+  }
+
+  public LeastSquares merge(LeastSquares o) {
+    if (o.dim != dim) throw new IllegalArgumentException("Can't merge dimensions " + dim + " and " + o.dim);
+    DArray.addInPlace(xtx, o.xtx);
+    DArray.addInPlace(xty, o.xty);
+    yty += o.yty;
+    weight += o.weight;
+    return this;
+  }
+
+  public double weight() {
+    return weight;
+  }
+
+  // The unregularized objective 0.5 sum_r w_r (x . X_r - y_r)^2 at x.
+  public double objective(double[] x) {
+    double[] ax = new double[dim];
+    times(x, 0.0, ax);
+    return 0.5 * (DArray.dotProduct(x, ax) - 2 * DArray.dotProduct(x, xty) + yty);
+  }
+
+  // out = (X^T W X + ridge I) x
+  private void times(double[] x, double ridge, double[] out) {
+    for (int i = 0; i < dim; i++) {
+      int row = i * dim;
+      double xi = x[i], s = (xtx[row + i] + ridge) * xi;
+      for (int j = i + 1; j < dim; j++) {
+        double a = xtx[row + j];
+        s += a * x[j];
+        out[j] += a * xi;
+      }
+      out[i] += s;
+    }
+  }
+
+  // Throws if X^T W X + ridge I isn't (numerically) positive definite, e.g.
+  // with collinear features and no ridge.
+  public double[] solveCholesky(double ridge) {
+    // lower-triangular L with L L^T = A, stored row-major in l
+    double[] l = new double[dim * dim];
+    for (int i = 0; i < dim; i++) {
+      int ri = i * dim;
+      for (int j = 0; j <= i; j++) {
+        int rj = j * dim;
+        double s = xtx[rj + i] + (i == j ? ridge : 0.0);
+        for (int k = 0; k < j; k++) s -= l[ri + k] * l[rj + k];
+        if (i == j) {
+          if (!(s > 1e-12 * Math.max(1.0, Math.abs(xtx[ri + i])))) {
+            throw new IllegalArgumentException("Matrix not positive definite at dimension " + i + "; add a ridge");
+          }
+          l[ri + i] = Math.sqrt(s);
+        } else {
+          l[ri + j] = s / l[rj + j];
+        }
+      }
+    }
+    double[] x = new double[dim];
+    for (int i = 0; i < dim; i++) {
+      int ri = i * dim;
+      double s = xty[i];
+      for (int k = 0; k < i; k++) s -= l[ri + k] * x[k];
+      x[i] = s / l[ri + i];
+    }
+    for (int i = dim - 1; i >= 0; i--) {
+      double s = x[i];
+      for (int k = i + 1; k < dim; k++) s -= l[k * dim + i] * x[k];
+      x[i] = s / l[i * dim + i];
+    }
+    return x;
+  }
+
+  // Conjugate gradient from x = 0, until the residual norm is at most
+  // tol * |X^T W y| or after maxIters iterations.
+  public double[] solveCG(double ridge, double tol, int maxIters) {
+    double[] x = new double[dim], r = xty.clone(), p = xty.clone(), ap = new double[dim];
+    double rr = DArray.dotProduct(r, r), stop = tol * tol * rr;
+    for (int iter = 0; iter < maxIters && rr > stop; iter++) {
+      java.util.Arrays.fill(ap, 0.0);
+      times(p, ridge, ap);
+      double alpha = rr / DArray.dotProduct(p, ap);
+      for (int i = 0; i < dim; i++) {
+        x[i] += alpha * p[i];
+        r[i] -= alpha * ap[i];
+      }
+      double rrNew = DArray.dotProduct(r, r), beta = rrNew / rr;
+      for (int i = 0; i < dim; i++) p[i] = r[i] + beta * p[i];
+      rr = rrNew;
+    }
+    return x;
+  }
+}
@@ -0,0 +1,370 @@
+package flop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Reads libsvm text ("label idx:val idx:val ...  # comment") into CSR
+// FeatureMatrix rows (with the label as each row's target, and label -1),
+// and reads and writes the same data in a flat binary form.
+//
+// Text is parsed straight from (memory-mapped) bytes: numbers are decoded in
+// place, with no String or substring per token, except as a fallback for
+// numbers with more than 15 significant digits or large exponents.  A file
+// is split into byte ranges on newline boundaries (splitPoints) so ranges can
+// be parsed in parallel and their chunks concatenated in order.  Tokens whose
+// index isn't a non-negative integer (e.g. "qid:3") are skipped; integer
+// indices past Integer.MAX_VALUE are an error.
+//
+// Binary layout: magic, version (ints), rows, entries, and columns (longs),
+// then rowPtr (rows+1 ints, relative to the first row), cols (ints), vals,
+// targets, and weights (doubles).
+public final class LibSVM {
+  private final static int MAGIC = 0x4c535642;
+  private final static int VERSION = 1;
+  private final static int HEADER = 32;
+  // bytes per mapped window, for files larger than one buffer can address
+  private final static int WINDOW = 1 << 30;
+
+  private LibSVM() {}
+
+  // Growable CSR arrays for the rows of one parsed range.
+  public static final class Chunk {
+    int rows = 0;
+    int entries = 0;
+    int numCols = 0;
+    int[] rowPtr = new int[17];
+    int[] cols = new int[64];
+    double[] vals = new double[64];
+    double[] targets = new double[16];
+
+    void add(int col, double val) {
+      if (entries == cols.length) {
+        cols = Arrays.copyOf(cols, 2 * entries);
+        vals = Arrays.copyOf(vals, 2 * entries);
+      }
+      cols[entries] = col;
+      vals[entries] = val;
+      entries++;
+      if (col >= numCols) numCols = col + 1;
+    }
+
+    void endRow(double target) {
+      if (rows == targets.length) {
+        targets = Arrays.copyOf(targets, 2 * rows);
+        rowPtr = Arrays.copyOf(rowPtr, 2 * rows + 1);
+      }
+      targets[rows++] = target;
+      rowPtr[rows] = entries;
+    }
+
+    public int numRows() {
+      return rows;
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // Text
+
+  private static final double[] POW10 = new double[23];
+  static {
+    POW10[0] = 1.0;
+    for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10.0;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  // Where the number starting at i ends: the first space, ':', '#', or newline.
+  private static int tokenEnd(ByteBuffer buf, int i, int to) {
+    while (i < to) {
+      byte b = buf.get(i);
+      if (isSpace(b) || b == ':' || b == '#' || b == '\n') break;
+      i++;
+    }
+    return i;
+  }
+
+  // The double in buf[from, to).  Exact: uses Clinger's fast path when the
+  // mantissa and power of ten are both exactly representable, and
+  // Double.parseDouble otherwise.
+  static double parseDouble(ByteBuffer buf, int from, int to) {
+    int i = from;
+    boolean neg = false;
+    if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) neg = buf.get(i++) == '-';
+    long mantissa = 0;
+    int digits = 0, exp = 0;
+    boolean any = false;
+    while (i < to && isDigit(buf.get(i))) {
+      any = true;
+      if (mantissa != 0 || buf.get(i) != '0') digits++;
+      if (digits <= 18) mantissa = 10 * mantissa + (buf.get(i) - '0');
+      else exp++;
+      i++;
+    }
+    if (i < to && buf.get(i) == '.') {
+      i++;
+      while (i < to && isDigit(buf.get(i))) {
+        any = true;
+        if (mantissa != 0 || buf.get(i) != '0') digits++;
+        if (digits <= 18) {
+          mantissa = 10 * mantissa + (buf.get(i) - '0');
+          exp--;
+        }
+        i++;
+      }
+    }
+    if (any && i < to && (buf.get(i) == 'e' || buf.get(i) == 'E')) {
+      i++;
+      boolean eneg = false;
+      if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) eneg = buf.get(i++) == '-';
+      int e = 0;
+      boolean edigits = false;
+      while (i < to && isDigit(buf.get(i))) {
+        edigits = true;
+        if (e < 100000) e = 10 * e + (buf.get(i) - '0');
+        i++;
+      }
+      if (!edigits) any = false;
+      exp += eneg ? -e : e;
+    }
+    if (any && i == to && digits <= 15 && exp >= -22 && exp <= 22) {
+      double d = exp < 0 ? mantissa / POW10[-exp] : mantissa * POW10[exp];
+      return neg ? -d : d;
+    }
+    byte[] bytes = new byte[to - from];
+    for (int k = 0; k < bytes.length; k++) bytes[k] = buf.get(from + k);
+    try {
+      return Double.parseDouble(new String(bytes, "US-ASCII"));
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // The non-negative int in buf[from, to), or -1 if it isn't all digits.
+  private static int parseIndex(ByteBuffer buf, int from, int to) {
+    if (from == to) return -1;
+    long r = 0;
+    for (int i = from; i < to; i++) {
+      byte b = buf.get(i);
+      if (!isDigit(b)) return -1;
+      if (r <= Integer.MAX_VALUE) r = 10 * r + (b - '0');
+    }
+    if (r > Integer.MAX_VALUE) throw new IllegalArgumentException("Bad libsvm index (past Integer.MAX_VALUE) at byte " + from);
+    return (int) r;
+  }
+
+  // Parses the lines in buf[from, to), which should start at a line start.
+  public static Chunk parse(ByteBuffer buf, int from, int to) {
+    Chunk c = new Chunk();
+    int i = from;
+    while (i < to) {
+      while (i < to && isSpace(buf.get(i))) i++;
+      if (i >= to) break;
+      byte b = buf.get(i);
+      if (b == '\n' || b == '#') {
+        while (i < to && buf.get(i) != '\n') i++;
+        i++;
+        continue;
+      }
+      int end = tokenEnd(buf, i, to);
+      double label;
+      try {
+        label = parseDouble(buf, i, end);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad libsvm label at byte " + i, e);
+      }
+      i = end;
+      while (true) {
+        while (i < to && isSpace(buf.get(i))) i++;
+        if (i >= to || buf.get(i) == '\n' || buf.get(i) == '#') break;
+        int keyEnd = tokenEnd(buf, i, to);
+        if (keyEnd >= to || buf.get(keyEnd) != ':') {
+          throw new IllegalArgumentException("Expected idx:val at byte " + i);
+        }
+        int col = parseIndex(buf, i, keyEnd);
+        int valEnd = tokenEnd(buf, keyEnd + 1, to);
+        if (col >= 0) {
+          try {
+            c.add(col, parseDouble(buf, keyEnd + 1, valEnd));
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad libsvm value at byte " + keyEnd, e);
+          }
+        }
+        i = valEnd;
+      }
+      while (i < to && buf.get(i) != '\n') i++;
+      i++;
+      c.endRow(label);
+    }
+    return c;
+  }
+
+  // n + 1 offsets 0 = p_0 <= ... <= p_n = length of f, each after a newline,
+  // splitting f into ranges of nearly equal size (and at most WINDOW bytes,
+  // unless a line is longer).
+  public static long[] splitPoints(File f, int n) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      long len = raf.length();
+      n = (int) Math.max(n, (len + WINDOW - 1) / WINDOW);
+      long[] r = new long[n + 1];
+      r[n] = len;
+      byte[] scratch = new byte[4096];
+      for (int k = 1; k < n; k++) {
+        long p = Math.max(r[k - 1], len * k / n);
+        boolean found = p == 0;
+        if (!found) p--;
+        while (!found && p < len) {
+          raf.seek(p);
+          int read = raf.read(scratch);
+          if (read <= 0) break;
+          for (int j = 0; j < read; j++) {
+            if (scratch[j] == '\n') {
+              p += j + 1;
+              found = true;
+              break;
+            }
+          }
+          if (!found) p += read;
+        }
+        r[k] = Math.min(p, len);
+      }
+      return r;
+    } finally {
+      raf.close();
+    }
+  }
+
+  // Maps and parses f[from, to).
+  public static Chunk parse(File f, long from, long to) throws IOException {
+    if (to - from > Integer.MAX_VALUE) throw new IllegalArgumentException("Range too large: " + (to - from));
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, from, to - from);
+      return parse(buf, 0, buf.limit());
+    } finally {
+      raf.close();
+    }
+  }
+
+  // Concatenates the rows of chunks, in order, with weights of 1.
+  public static FeatureMatrix toMatrix(Chunk[] chunks) {
+    int rows = 0, entries = 0, numCols = 0;
+    for (Chunk c : chunks) {
+      rows += c.rows;
+      if ((long) entries + c.entries > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many entries");
+      entries += c.entries;
+      numCols = Math.max(numCols, c.numCols);
+    }
+    int[] rowPtr = new int[rows + 1], cols = new int[entries], labels = new int[rows];
+    double[] vals = new double[entries], targets = new double[rows], weights = new double[rows];
+    Arrays.fill(labels, -1);
+    Arrays.fill(weights, 1.0);
+    int r = 0, e = 0;
+    for (Chunk c : chunks) {
+      for (int i = 0; i < c.rows; i++) rowPtr[r + i + 1] = e + c.rowPtr[i + 1];
+      System.arraycopy(c.targets, 0, targets, r, c.rows);
+      System.arraycopy(c.cols, 0, cols, e, c.entries);
+      System.arraycopy(c.vals, 0, vals, e, c.entries);
+      r += c.rows;
+      e += c.entries;
+    }
+    return new FeatureMatrix(rowPtr, cols, vals, labels, targets, weights, numCols, 0, rows);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // Binary
+
+  private interface Section {
+    // copy n elements between buf and the array, starting at element off
+    void transfer(ByteBuffer buf, int off, int n);
+  }
+
+  // Moves count elements of width bytes at file position pos, in windows.
+  private static long transfer(FileChannel ch, FileChannel.MapMode mode, long pos, long count, int width,
+                               Section s) throws IOException {
+    int perWindow = WINDOW / width;
+    for (long off = 0; off < count; off += perWindow) {
+      int n = (int) Math.min(perWindow, count - off);
+      ByteBuffer buf = ch.map(mode, pos + off * width, (long) n * width);
+      s.transfer(buf, (int) off, n);
+    }
+    return pos + count * width;
+  }
+
+  private static long ints(FileChannel ch, FileChannel.MapMode mode, long pos, final int[] xs, int from, int count,
+                           final boolean write) throws IOException {
+    final int base = from;
+    return transfer(ch, mode, pos, count, 4, new Section() {
+        public void transfer(ByteBuffer buf, int off, int n) {
+          if (write) buf.asIntBuffer().put(xs, base + off, n);
+          else buf.asIntBuffer().get(xs, base + off, n);
+        }
+      });
+  }
+
+  private static long doubles(FileChannel ch, FileChannel.MapMode mode, long pos, final double[] xs, int from,
+                              int count, final boolean write) throws IOException {
+    final int base = from;
+    return transfer(ch, mode, pos, count, 8, new Section() {
+        public void transfer(ByteBuffer buf, int off, int n) {
+          if (write) buf.asDoubleBuffer().put(xs, base + off, n);
+          else buf.asDoubleBuffer().get(xs, base + off, n);
+        }
+      });
+  }
+
+  public static void writeBinary(FeatureMatrix m, File f) throws IOException {
+    int rows = m.numRows(), entries = m.numEntries(), first = m.rowPtr[m.start];
+    int[] rowPtr = new int[rows + 1];
+    for (int i = 0; i <= rows; i++) rowPtr[i] = m.rowPtr[m.start + i] - first;
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel ch = raf.getChannel();
+      FileChannel.MapMode mode = FileChannel.MapMode.READ_WRITE;
+      ByteBuffer header = ch.map(mode, 0, HEADER);
+      header.putInt(MAGIC).putInt(VERSION).putLong(rows).putLong(entries).putLong(m.numCols);
+      long pos = ints(ch, mode, HEADER, rowPtr, 0, rows + 1, true);
+      pos = ints(ch, mode, pos, m.cols, first, entries, true);
+      pos = doubles(ch, mode, pos, m.vals, first, entries, true);
+      pos = doubles(ch, mode, pos, m.targets, m.start, rows, true);
+      doubles(ch, mode, pos, m.weights, m.start, rows, true);
+    } finally {
+      raf.close();
+    }
+  }
+
+  public static FeatureMatrix readBinary(File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      FileChannel ch = raf.getChannel();
+      FileChannel.MapMode mode = FileChannel.MapMode.READ_ONLY;
+      ByteBuffer header = ch.map(mode, 0, HEADER);
+      if (header.getInt() != MAGIC) throw new IllegalArgumentException("Not a binary libsvm file: " + f);
+      int version = header.getInt();
+      if (version != VERSION) throw new IllegalArgumentException("Unknown binary libsvm version " + version);
+      int rows = (int) header.getLong(), entries = (int) header.getLong(), numCols = (int) header.getLong();
+      int[] rowPtr = new int[rows + 1], cols = new int[entries], labels = new int[rows];
+      double[] vals = new double[entries], targets = new double[rows], weights = new double[rows];
+      Arrays.fill(labels, -1);
+      long pos = ints(ch, mode, HEADER, rowPtr, 0, rows + 1, false);
+      pos = ints(ch, mode, pos, cols, 0, entries, false);
+      pos = doubles(ch, mode, pos, vals, 0, entries, false);
+      pos = doubles(ch, mode, pos, targets, 0, rows, false);
+      doubles(ch, mode, pos, weights, 0, rows, false);
+      return new FeatureMatrix(rowPtr, cols, vals, labels, targets, weights, numCols, 0, rows);
+    } finally {
+      raf.close();
+    }
+  }
+}
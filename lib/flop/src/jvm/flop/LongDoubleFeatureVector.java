@@ -2,24 +2,32 @@ package flop;
 
 import clojure.lang.Counted;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import gnu.trove.TLongDoubleHashMap;
 import gnu.trove.TLongDoubleProcedure;
-import gnu.trove.TLongIntHashMap;
+import plumbing.BufferCodable;
 
-public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entry<Long, Double> >, Externalizable, Cloneable, LDReducable {
+public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entry<Long, Double> >, Externalizable, Cloneable, LDReducable, BufferCodable {
   public final static long serialVersionUID = 7600069475578538731L;
   public final static double growthRate = 1.5;
   public long keys[];
   public double values[];
   public int count;    
-  public TLongIntHashMap keyIndex;
+
+  // Vectors with at most this many entries find keys by scanning keys[] directly,
+  // and carry no index at all.
+  public final static int maxScanCount = 8;
+
+  // Open-addressing (linear probing) index into keys[]/values[], or null for
+  // small vectors.  Each slot holds (position + 1), or 0 if empty.  The table is
+  // a power of two, sized to keep the load factor between 1/8 and 1/2 of count.
+  private int[] slots;
 
   public LongDoubleFeatureVector(int initialCapacity) {
     count = 0;
     keys = new long[initialCapacity];
     values = new double[initialCapacity];
-    keyIndex = new TLongIntHashMap();
   }
   
   public long[] keys() {
@@ -49,27 +57,82 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
     return new LongDoubleFeatureVector(this);
   }
 
+  // Version 2 writes the encode() bytes in one block; version 1 stores the
+  // arrays as objects.  Readers older than version 2 throw on it, so version 1
+  // is written until -Dflop.LongDoubleFeatureVector.writeVersion2=true (or
+  // this field) is set, once every reader is upgraded.
+  public static volatile boolean writeVersion2 = Boolean.getBoolean("flop.LongDoubleFeatureVector.writeVersion2");
+
   public void writeExternal(ObjectOutput out) throws IOException {
-    compact();
-    out.writeByte(1);
-    out.writeInt(count);
-    out.writeObject(keys);
-    out.writeObject(values);
+    if (!writeVersion2) {
+      out.writeByte(1);
+      out.writeInt(count);
+      out.writeObject(Arrays.copyOf(keys, count));
+      out.writeObject(Arrays.copyOf(values, count));
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.allocate(encodedSize());
+    encode(buf);
+    out.writeByte(2);
+    out.writeInt(buf.capacity());
+    out.write(buf.array());
   }
 
   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-    if (in.readByte() != 1) throw new IOException("Unknown object version");
-    count = in.readInt();
-    keys = (long []) in.readObject();
-    values = (double []) in.readObject();
-    for(int i = 0; i < count; i++) keyIndex.put(keys[i], i);
+    byte version = in.readByte();
+    if (version == 1) {
+      count = in.readInt();
+      keys = (long []) in.readObject();
+      values = (double []) in.readObject();
+    } else if (version == 2) {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      ByteBuffer buf = ByteBuffer.wrap(bytes);
+      count = buf.getInt();
+      keys = new long[count];
+      values = new double[count];
+      readArrays(buf);
+    } else {
+      throw new IOException("Unknown object version");
+    }
+    reindex();
+  }
+
+  // Binary layout: count as an int, then count keys, then count values, all
+  // big-endian (ByteBuffer's default order).
+  public int encodedSize() {
+    return 4 + 16 * count;
+  }
+
+  public void encode(ByteBuffer buf) {
+    buf.putInt(count);
+    buf.asLongBuffer().put(keys, 0, count);
+    buf.position(buf.position() + 8 * count);
+    buf.asDoubleBuffer().put(values, 0, count);
+    buf.position(buf.position() + 8 * count);
+  }
+
+  public static LongDoubleFeatureVector decode(ByteBuffer buf) {
+    int n = buf.getInt();
+    LongDoubleFeatureVector fv = new LongDoubleFeatureVector(n);
+    fv.count = n;
+    fv.readArrays(buf);
+    fv.reindex();
+    return fv;
+  }
+
+  private void readArrays(ByteBuffer buf) {
+    buf.asLongBuffer().get(keys, 0, count);
+    buf.position(buf.position() + 8 * count);
+    buf.asDoubleBuffer().get(values, 0, count);
+    buf.position(buf.position() + 8 * count);
   }
 
   public void clear() {
     count = 0;
     keys = new long[4];
     values = new double[4];
-    keyIndex = new TLongIntHashMap();    
+    slots = null;
   }
 
   public int capacity() { 
@@ -84,11 +147,79 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
     return count;
   }
 
+  private static int slotOf(long k, int mask) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    return (int) k & mask;
+  }
+
+  // Rebuild the index from scratch for the current count.
+  private void reindex() {
+    if (count <= maxScanCount) {
+      slots = null;
+      return;
+    }
+    int n = 16;
+    while (n < 2 * count) n <<= 1;
+    slots = new int[n];
+    for (int i = 0; i < count; i++) insertSlot(i);
+  }
+
+  private void insertSlot(int i) {
+    int mask = slots.length - 1;
+    int s = slotOf(keys[i], mask);
+    while (slots[s] != 0) s = (s + 1) & mask;
+    slots[s] = i + 1;
+  }
+
+  private int findSlot(long k, int i) {
+    int mask = slots.length - 1;
+    int s = slotOf(k, mask);
+    while (slots[s] != i + 1) s = (s + 1) & mask;
+    return s;
+  }
+
+  // Backward-shift deletion, so that probe sequences never need tombstones.
+  private void deleteSlot(int s) {
+    int mask = slots.length - 1;
+    int j = s;
+    while (true) {
+      j = (j + 1) & mask;
+      int e = slots[j];
+      if (e == 0) break;
+      int ideal = slotOf(keys[e - 1], mask);
+      if (((j - ideal) & mask) >= ((j - s) & mask)) {
+        slots[s] = e;
+        s = j;
+      }
+    }
+    slots[s] = 0;
+  }
+
+  // Called after appending a new entry at position count - 1.
+  private void indexAppended() {
+    if (slots != null) {
+      if (2 * count > slots.length) reindex();
+      else insertSlot(count - 1);
+    } else if (count > maxScanCount) {
+      reindex();
+    }
+  }
+
   public int indexOf(long k) {
-    int i = keyIndex.get(k);
-    if (i > 0) return i;
-    if (count > 0 && keys[0] == k) return 0;
-    return -1;
+    if (slots == null) {
+      for (int i = 0; i < count; i++) {
+        if (keys[i] == k) return i;
+      }
+      return -1;
+    }
+    int mask = slots.length - 1;
+    for (int s = slotOf(k, mask); ; s = (s + 1) & mask) {
+      int i = slots[s];
+      if (i == 0) return -1;
+      if (keys[i - 1] == k) return i - 1;
+    }
   }
 
   public double get(long k) {
@@ -103,8 +234,8 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
       if (v == 0.0) return;
       keys[count] = k;
       values[count] = v;
-      keyIndex.put(k, count);
-      count++;	
+      count++;
+      indexAppended();
     } else {
       if (v == 0.0) {
 	rawRemove(k);
@@ -119,8 +250,8 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
     if (i < 0) {
       keys[count] = k;
       values[count] = v;
-      keyIndex.put(k, count);
-      count++;	
+      count++;
+      indexAppended();
       return v;
     } else {
       double newVal = values[i] + v;
@@ -196,13 +327,13 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
   public boolean rawRemove(long k) {
     int i = indexOf(k);
     if (i < 0) return false;
-    keyIndex.remove(k);
+    if (slots != null) deleteSlot(findSlot(k, i));
     count--;
 
     if (count > i) {
       keys[i] = keys[count];
       values[i] = values[count];
-      keyIndex.put(keys[i], i);
+      if (slots != null) slots[findSlot(keys[i], count)] = i + 1;
     }
     return true;
   }
@@ -210,6 +341,7 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
   public boolean remove(long k) {
     if (!rawRemove(k)) return false;
     if (count < keys.length / (growthRate * growthRate)) resize((int) (count * growthRate)); 
+    if (slots != null && (count <= maxScanCount || 8 * count < slots.length)) reindex();
     return true;
   }
 
@@ -269,6 +401,46 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
     return new FVIterator();
   }
 
+  // Walks the entries without allocating: advance() moves to the next entry
+  // and returns false once there are none left.  A single Cursor can be
+  // pointed at many vectors in turn with reset().
+  //
+  //   for (Cursor c = fv.cursor(); c.advance();) use(c.key(), c.value());
+  public final static class Cursor {
+    private long[] keys;
+    private double[] values;
+    private int count;
+    private int i;
+
+    public Cursor(LongDoubleFeatureVector fv) {
+      reset(fv);
+    }
+
+    public Cursor reset(LongDoubleFeatureVector fv) {
+      keys = fv.keys;
+      values = fv.values;
+      count = fv.count;
+      i = -1;
+      return this;
+    }
+
+    public boolean advance() {
+      return ++i < count;
+    }
+
+    public long key() {
+      return keys[i];
+    }
+
+    public double value() {
+      return values[i];
+    }
+  }
+
+  public Cursor cursor() {
+    return new Cursor(this);
+  }
+
   public Iterator<Map.Entry<Long, Double> > iterator() {
     return new FVIterator();
   }
@@ -385,6 +557,14 @@ public final class LongDoubleFeatureVector implements Counted, Iterable<Map.Entr
     return r;
   }
 
+  public double dotProduct(java.nio.DoubleBuffer ds) {
+    double r = 0.0;
+    for(int i = 0 ; i < count; i++) {
+      r += values[i] * ds.get((int)keys[i]);
+    }
+    return r;
+  }
+
   public void forEachEntry(clojure.lang.IFn.LDO f) {
     int initCount = count;
     for(int i = 0; i < count; i++) {
@@ -0,0 +1,150 @@
+package flop;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import plumbing.BufferCodable;
+
+// An immutable map from long keys (e.g. hashed predicates) to dense ids
+// 0 ... size-1, laid out in one flat buffer so it can be written to a file
+// and memory-mapped back without being rebuilt or deserialized.  Lookups are
+// an open-addressing (linear probing) probe at load factor <= 1/2, with
+// absolute buffer reads only, so they don't allocate.
+//
+// Layout: a header of magic, version, size, and capacity (ints), then
+// capacity slot keys (longs), capacity slot ids (ints, -1 for empty), and
+// the keys again in id order (longs), for item().
+public final class LongIndex implements BufferCodable {
+  private final static int MAGIC = 0x4c494458;
+  private final static int VERSION = 1;
+  private final static int HEADER = 16;
+
+  private final ByteBuffer buf;
+  private final int size;
+  private final int mask;
+  private final int idsAt;
+  private final int itemsAt;
+
+  private LongIndex(ByteBuffer buf) {
+    if (buf.getInt(0) != MAGIC) throw new IllegalArgumentException("Not a LongIndex");
+    if (buf.getInt(4) != VERSION) throw new IllegalArgumentException("Unknown LongIndex version " + buf.getInt(4));
+    this.buf = buf;
+    size = buf.getInt(8);
+    int capacity = buf.getInt(12);
+    mask = capacity - 1;
+    idsAt = HEADER + 8 * capacity;
+    itemsAt = idsAt + 4 * capacity;
+  }
+
+  // Buffers are int-indexed, which caps an index at about 6.7e7 keys.
+  private static int bytes(long size, long capacity) {
+    long n = HEADER + 12 * capacity + 8 * size;
+    if (n > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("A LongIndex of " + size + " keys would take " + n
+                                         + " bytes, over the 2GB buffer limit");
+    }
+    return (int) n;
+  }
+
+  private static long mix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    return k ^ (k >>> 33);
+  }
+
+  // keys[i] gets id i.  Throws on duplicate keys.
+  public static LongIndex build(long[] keys) {
+    int n = keys.length;
+    long longCapacity = Long.highestOneBit(Math.max(1L, 2L * n - 1) << 1);
+    ByteBuffer buf = ByteBuffer.allocate(bytes(n, longCapacity));
+    int capacity = (int) longCapacity;
+    buf.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, n).putInt(12, capacity);
+    int idsAt = HEADER + 8 * capacity, itemsAt = idsAt + 4 * capacity, mask = capacity - 1;
+    for (int s = 0; s < capacity; s++) buf.putInt(idsAt + 4 * s, -1);
+    for (int i = 0; i < n; i++) {
+      long k = keys[i];
+      int s = (int) mix(k) & mask;
+      while (buf.getInt(idsAt + 4 * s) >= 0) {
+        if (buf.getLong(HEADER + 8 * s) == k) throw new IllegalArgumentException("Duplicate key " + k);
+        s = (s + 1) & mask;
+      }
+      buf.putLong(HEADER + 8 * s, k);
+      buf.putInt(idsAt + 4 * s, i);
+      buf.putLong(itemsAt + 8 * i, k);
+    }
+    return new LongIndex(buf);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // The id of k, or -1 if it's missing.
+  public int getIndex(long k) {
+    int s = (int) mix(k) & mask;
+    while (true) {
+      int id = buf.getInt(idsAt + 4 * s);
+      if (id < 0 || buf.getLong(HEADER + 8 * s) == k) return id;
+      s = (s + 1) & mask;
+    }
+  }
+
+  public long item(int id) {
+    if (id < 0 || id >= size) throw new IndexOutOfBoundsException("Cannot unindex " + id + "; size " + size);
+    return buf.getLong(itemsAt + 8 * id);
+  }
+
+  public long[] items() {
+    long[] r = new long[size];
+    for (int i = 0; i < size; i++) r[i] = buf.getLong(itemsAt + 8 * i);
+    return r;
+  }
+
+  public int encodedSize() {
+    return buf.capacity();
+  }
+
+  public void encode(ByteBuffer out) {
+    ByteBuffer b = buf.duplicate();
+    b.clear();
+    out.put(b);
+  }
+
+  // Wraps (without copying) the index at buf's position, and advances past it.
+  public static LongIndex decode(ByteBuffer buf) {
+    int start = buf.position();
+    int n = bytes(buf.getInt(start + 8), buf.getInt(start + 12));
+    ByteBuffer b = buf.duplicate();
+    b.limit(start + n);
+    buf.position(start + n);
+    return new LongIndex(b.slice());
+  }
+
+  public void write(File f) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      ByteBuffer b = buf.duplicate();
+      b.clear();
+      FileChannel ch = out.getChannel();
+      while (b.hasRemaining()) ch.write(b);
+    } finally {
+      out.close();
+    }
+  }
+
+  // Memory-maps an index written by write().  The mapping outlives the file
+  // handle, and pages are loaded by the OS as lookups touch them.
+  public static LongIndex map(File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      return decode(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+    } finally {
+      raf.close();
+    }
+  }
+}
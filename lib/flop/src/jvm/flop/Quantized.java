@@ -0,0 +1,156 @@
+package flop;
+
+// Conversions and dot-product kernels for reduced-precision weight arrays,
+// used by the quantized weight vectors in flop.weight-vector.
+//
+// Three encodings are supported:
+//   float32 -- a plain float[]
+//   float16 -- IEEE 754 binary16 bits stored in a short[]
+//   int8    -- a byte[] of values in [-127, 127], plus one float scale per
+//              block of 2^int8BlockShift consecutive weights
+//
+// Kernels accumulate in double, so the only error is in the stored weights.
+public final class Quantized {
+  public final static int int8BlockShift = 6;
+  public final static int int8BlockSize = 1 << int8BlockShift;
+
+  private Quantized() {}
+
+  //////////////////////////////////////////////////////////////////////////////
+  // float16
+
+  // Round-to-nearest-even; overflows to infinity, underflows to (signed) zero.
+  public static short floatToHalf(float f) {
+    int bits = Float.floatToRawIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int abs = bits & 0x7fffffff;
+    if (abs >= 0x7f800000) {
+      return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+    }
+    if (abs >= 0x47800000) return (short) (sign | 0x7c00);
+    if (abs < 0x38800000) {
+      // subnormal half: a multiple of 2^-24, scaling by 2^24 is exact
+      return (short) (sign | (int) Math.rint(Float.intBitsToFloat(abs) * 0x1p24f));
+    }
+    int h = (((abs >>> 23) - 112) << 10) | ((abs & 0x7fffff) >>> 13);
+    int rem = abs & 0x1fff;
+    if (rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0)) h++;
+    return (short) (sign | h);
+  }
+
+  public static float halfToFloat(short h) {
+    int bits = h & 0xffff;
+    int sign = (bits & 0x8000) << 16;
+    int exp = (bits >>> 10) & 0x1f;
+    int mant = bits & 0x3ff;
+    if (exp == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+    if (exp == 0) {
+      float f = mant * 0x1p-24f;
+      return sign == 0 ? f : -f;
+    }
+    return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+  }
+
+  public static float[] toFloats(double[] xs) {
+    float[] r = new float[xs.length];
+    for (int i = 0; i < xs.length; i++) r[i] = (float) xs[i];
+    return r;
+  }
+
+  public static short[] toHalves(double[] xs) {
+    short[] r = new short[xs.length];
+    for (int i = 0; i < xs.length; i++) r[i] = floatToHalf((float) xs[i]);
+    return r;
+  }
+
+  public static double dotProduct(short[] w, double[] x) {
+    double r = 0.0;
+    for (int i = 0; i < w.length; i++) {
+      r += halfToFloat(w[i]) * x[i];
+    }
+    return r;
+  }
+
+  public static double dotProduct(short[] w, LongDoubleFeatureVector fv) {
+    double r = 0.0;
+    for (int i = 0; i < fv.count; i++) {
+      r += fv.values[i] * halfToFloat(w[(int) fv.keys[i]]);
+    }
+    return r;
+  }
+
+  public static double dotProduct(short[] w, SortedLongDoubleFeatureVector fv) {
+    double r = 0.0;
+    int n = fv.count();
+    for (int i = 0; i < n; i++) {
+      r += fv.valueAt(i) * halfToFloat(w[(int) fv.keyAt(i)]);
+    }
+    return r;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  // int8
+
+  public static int int8Blocks(int n) {
+    return (n + int8BlockSize - 1) >>> int8BlockShift;
+  }
+
+  // One scale per block, chosen so the largest magnitude in the block maps to 127.
+  public static float[] int8Scales(double[] xs) {
+    float[] scales = new float[int8Blocks(xs.length)];
+    for (int b = 0; b < scales.length; b++) {
+      int end = Math.min(xs.length, (b + 1) << int8BlockShift);
+      double max = 0.0;
+      for (int i = b << int8BlockShift; i < end; i++) max = Math.max(max, Math.abs(xs[i]));
+      scales[b] = (float) (max / 127.0);
+    }
+    return scales;
+  }
+
+  public static byte[] toInt8(double[] xs, float[] scales) {
+    byte[] r = new byte[xs.length];
+    for (int i = 0; i < xs.length; i++) {
+      float s = scales[i >>> int8BlockShift];
+      if (s != 0.0f) {
+        long q = Math.round(xs[i] / s);
+        r[i] = (byte) Math.max(-127, Math.min(127, q));
+      }
+    }
+    return r;
+  }
+
+  public static double int8At(byte[] w, float[] scales, int i) {
+    return w[i] * (double) scales[i >>> int8BlockShift];
+  }
+
+  // Sums each block in the quantized domain and scales once per block.
+  public static double dotProduct(byte[] w, float[] scales, double[] x) {
+    double r = 0.0;
+    for (int b = 0; b < scales.length; b++) {
+      int end = Math.min(w.length, (b + 1) << int8BlockShift);
+      double s = 0.0;
+      for (int i = b << int8BlockShift; i < end; i++) s += w[i] * x[i];
+      r += s * scales[b];
+    }
+    return r;
+  }
+
+  public static double dotProduct(byte[] w, float[] scales, LongDoubleFeatureVector fv) {
+    double r = 0.0;
+    for (int i = 0; i < fv.count; i++) {
+      int k = (int) fv.keys[i];
+      r += fv.values[i] * w[k] * scales[k >>> int8BlockShift];
+    }
+    return r;
+  }
+
+  public static double dotProduct(byte[] w, float[] scales, SortedLongDoubleFeatureVector fv) {
+    double r = 0.0;
+    int n = fv.count();
+    for (int i = 0; i < n; i++) {
+      int k = (int) fv.keyAt(i);
+      r += fv.valueAt(i) * w[k] * scales[k >>> int8BlockShift];
+    }
+    return r;
+  }
+}
@@ -0,0 +1,156 @@
+package flop;
+
+import java.nio.ByteBuffer;
+import plumbing.BufferCodable;
+
+// Single-pass, fixed-memory binary classification metrics: a histogram of
+// weighted positive and negative examples over equal-width score bins in
+// [lo, hi] (scores outside are clamped to the end bins), plus log-loss.
+// Histograms with the same bins merge by addition, so partial histograms can
+// be built per thread or machine and combined, and nothing is sorted.
+//
+// AUC from the histogram is exact except for positive/negative pairs that
+// share a bin, which are counted as half-ordered; auc() bounds the error by
+// counting them all one way or the other.  Log-loss and calibration assume
+// the scores are probabilities of the positive label.
+public final class ScoreHistogram implements BufferCodable {
+  private final static double EPS = 1e-15;
+
+  public final double lo;
+  public final double hi;
+  public final int bins;
+  private final double[] pos;
+  private final double[] neg;
+  private final double[] scoreSum;
+  private double logLoss;
+  private long count;
+
+  public ScoreHistogram(double lo, double hi, int bins) {
+    if (!(hi > lo) || bins < 1) throw new IllegalArgumentException("Bad bins " + lo + " " + hi + " " + bins);
+    this.lo = lo;
+    this.hi = hi;
+    this.bins = bins;
+    pos = new double[bins];
+    neg = new double[bins];
+    scoreSum = new double[bins];
+  }
+
+  public int bin(double score) {
+    int b = (int) ((score - lo) * bins / (hi - lo));
+    return b < 0 ? 0 : (b >= bins ? bins - 1 : b);
+  }
+
+  public void add(double score, boolean positive, double weight) {
+    int b = bin(score);
+    if (positive) {
+      pos[b] += weight;
+      logLoss -= weight * Math.log(Math.max(score, EPS));
+    } else {
+      neg[b] += weight;
+      logLoss -= weight * Math.log(Math.max(1 - score, EPS));
+    }
+    scoreSum[b] += weight * score;
+    count++;
+  }
+
+  public ScoreHistogram merge(ScoreHistogram o) {
+    if (o.lo != lo || o.hi != hi || o.bins != bins) {
+      throw new IllegalArgumentException("Can't merge histograms with different bins");
+    }
+    DArray.addInPlace(pos, o.pos);
+    DArray.addInPlace(neg, o.neg);
+    DArray.addInPlace(scoreSum, o.scoreSum);
+    logLoss += o.logLoss;
+    count += o.count;
+    return this;
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public double positiveWeight() {
+    return DArray.sum(pos);
+  }
+
+  public double negativeWeight() {
+    return DArray.sum(neg);
+  }
+
+  // Weighted mean log-loss.
+  public double logLoss() {
+    return logLoss / (positiveWeight() + negativeWeight());
+  }
+
+  // {estimate, lower bound, upper bound} on the AUC.
+  public double[] auc() {
+    double above = 0, sure = 0, tied = 0;
+    for (int b = bins - 1; b >= 0; b--) {
+      sure += neg[b] * above;
+      tied += neg[b] * pos[b];
+      above += pos[b];
+    }
+    double pairs = above * negativeWeight();
+    return new double[] {(sure + 0.5 * tied) / pairs, sure / pairs, (sure + tied) / pairs};
+  }
+
+  // {thresholds, precisions, recalls}, predicting positive for scores in or
+  // above the bin starting at each threshold, over bins with a prediction.
+  public double[][] prCurve() {
+    double p = positiveWeight();
+    double[][] r = new double[3][bins];
+    double tp = 0, fp = 0;
+    int n = 0;
+    for (int b = bins - 1; b >= 0; b--) {
+      tp += pos[b];
+      fp += neg[b];
+      if (tp + fp == 0) continue;
+      r[0][n] = lo + (hi - lo) * b / bins;
+      r[1][n] = tp / (tp + fp);
+      r[2][n] = tp / p;
+      n++;
+    }
+    for (int i = 0; i < 3; i++) r[i] = java.util.Arrays.copyOf(r[i], n);
+    return r;
+  }
+
+  // {mean score, positive rate, weight} in each of numGroups runs of
+  // adjacent bins (numGroups should divide bins); groups with no weight
+  // get NaN means.
+  public double[][] calibration(int numGroups) {
+    double[][] r = new double[3][numGroups];
+    for (int b = 0; b < bins; b++) {
+      int g = (int) ((long) b * numGroups / bins);
+      r[0][g] += scoreSum[b];
+      r[1][g] += pos[b];
+      r[2][g] += pos[b] + neg[b];
+    }
+    for (int g = 0; g < numGroups; g++) {
+      r[0][g] /= r[2][g];
+      r[1][g] /= r[2][g];
+    }
+    return r;
+  }
+
+  public int encodedSize() {
+    return 8 + 8 + 4 + 24 * bins + 8 + 8;
+  }
+
+  public void encode(ByteBuffer buf) {
+    buf.putDouble(lo).putDouble(hi).putInt(bins);
+    for (int b = 0; b < bins; b++) buf.putDouble(pos[b]).putDouble(neg[b]).putDouble(scoreSum[b]);
+    buf.putDouble(logLoss).putLong(count);
+  }
+
+  public static ScoreHistogram decode(ByteBuffer buf) {
+    ScoreHistogram h = new ScoreHistogram(buf.getDouble(), buf.getDouble(), buf.getInt());
+    for (int b = 0; b < h.bins; b++) {
+      h.pos[b] = buf.getDouble();
+      h.neg[b] = buf.getDouble();
+      h.scoreSum[b] = buf.getDouble();
+    }
+    h.logLoss = buf.getDouble();
+    h.count = buf.getLong();
+    return h;
+  }
+}
@@ -0,0 +1,56 @@
+package flop;
+
+// Batch scoring of feature vectors against several dense weight arrays at
+// once (one per label), in a single pass over each vector's features.
+// Scores are written row-major: out[offset + i * ws.length + l] is the score
+// of the i-th vector under ws[l].  Features outside a weight array (negative,
+// or past its end) score 0, as they do against a sparse weight vector, so
+// labels with empty weights (e.g. the implicit class of a binary max-ent
+// model) are allowed.
+public final class Scoring {
+  private Scoring() {}
+
+  public static void score(double[][] ws, LongDoubleFeatureVector fv, double[] out, int offset) {
+    int nl = ws.length;
+    for (int l = 0; l < nl; l++) out[offset + l] = 0.0;
+    for (int i = 0; i < fv.count; i++) {
+      long p = fv.keys[i];
+      double v = fv.values[i];
+      for (int l = 0; l < nl; l++) {
+        double[] w = ws[l];
+        if (p >= 0 && p < w.length) out[offset + l] += v * w[(int) p];
+      }
+    }
+  }
+
+  public static void score(double[][] ws, SortedLongDoubleFeatureVector fv, double[] out, int offset) {
+    int nl = ws.length;
+    for (int l = 0; l < nl; l++) out[offset + l] = 0.0;
+    int n = fv.count();
+    for (int i = 0; i < n; i++) {
+      long p = fv.keyAt(i);
+      double v = fv.valueAt(i);
+      for (int l = 0; l < nl; l++) {
+        double[] w = ws[l];
+        if (p >= 0 && p < w.length) out[offset + l] += v * w[(int) p];
+      }
+    }
+  }
+
+  // Scores rows [m.start, m.end), the first at out[offset].
+  public static void score(double[][] ws, FeatureMatrix m, double[] out, int offset) {
+    int nl = ws.length;
+    int o = offset;
+    for (int r = m.start; r < m.end; r++, o += nl) {
+      for (int l = 0; l < nl; l++) out[o + l] = 0.0;
+      for (int k = m.rowPtr[r]; k < m.rowPtr[r + 1]; k++) {
+        int p = m.cols[k];
+        double v = m.vals[k];
+        for (int l = 0; l < nl; l++) {
+          double[] w = ws[l];
+          if (p >= 0 && p < w.length) out[o + l] += v * w[p];
+        }
+      }
+    }
+  }
+}
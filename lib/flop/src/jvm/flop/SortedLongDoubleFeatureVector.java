@@ -0,0 +1,257 @@
+package flop;
+
+import clojure.lang.Counted;
+import java.io.*;
+import java.util.*;
+import gnu.trove.TLongDoubleHashMap;
+
+// An immutable sparse vector with keys sorted ascending and no hash index.
+// Meant for vectors that are frozen after construction and only used for
+// dot products and iteration, where it is about half the size of a
+// LongDoubleFeatureVector and sparse-sparse products are a merge-join.
+public final class SortedLongDoubleFeatureVector implements Counted, Externalizable, LDReducable {
+  public final static long serialVersionUID = 2416519683350470935L;
+
+  // When one side is this many times larger, dot products gallop through it
+  // instead of merging linearly.
+  public final static int gallopRatio = 8;
+
+  private long keys[];
+  private double values[];
+
+  // For Externalizable only.
+  public SortedLongDoubleFeatureVector() {
+    keys = new long[0];
+    values = new double[0];
+  }
+
+  // keys must be strictly ascending; the arrays are not copied.
+  public SortedLongDoubleFeatureVector(long[] keys, double[] values) {
+    if (keys.length != values.length) throw new IllegalArgumentException("keys and values must have the same length");
+    for (int i = 1; i < keys.length; i++) {
+      if (keys[i - 1] >= keys[i]) throw new IllegalArgumentException("keys must be strictly ascending");
+    }
+    this.keys = keys;
+    this.values = values;
+  }
+
+  // Entries with value 0.0 are dropped.
+  public SortedLongDoubleFeatureVector(LongDoubleFeatureVector fv) {
+    int n = 0;
+    long[] ks = new long[fv.count];
+    for (int i = 0; i < fv.count; i++) {
+      if (fv.values[i] != 0.0) ks[n++] = fv.keys[i];
+    }
+    keys = Arrays.copyOf(ks, n);
+    Arrays.sort(keys);
+    values = new double[n];
+    for (int i = 0; i < n; i++) values[i] = fv.get(keys[i]);
+  }
+
+  public int count() {
+    return keys.length;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  public long[] keys() {
+    return keys.clone();
+  }
+
+  public double[] values() {
+    return values.clone();
+  }
+
+  public long keyAt(int i) {
+    return keys[i];
+  }
+
+  public double valueAt(int i) {
+    return values[i];
+  }
+
+  public int indexOf(long k) {
+    int i = Arrays.binarySearch(keys, k);
+    return i < 0 ? -1 : i;
+  }
+
+  public double get(long k) {
+    int i = Arrays.binarySearch(keys, k);
+    return i < 0 ? 0.0 : values[i];
+  }
+
+  public LongDoubleFeatureVector toFeatureVector() {
+    LongDoubleFeatureVector fv = new LongDoubleFeatureVector(keys.length);
+    for (int i = 0; i < keys.length; i++) fv.put(keys[i], values[i]);
+    return fv;
+  }
+
+  public double norm() {
+    double norm = 0.0;
+    for (int i = 0; i < values.length; i++) {
+      norm += values[i] * values[i];
+    }
+    return Math.sqrt(norm);
+  }
+
+  public double dotProduct(double[] ds) {
+    double r = 0.0;
+    for (int i = 0; i < keys.length; i++) {
+      r += values[i] * ds[(int) keys[i]];
+    }
+    return r;
+  }
+
+  public double dotProduct(float[] ds) {
+    double r = 0.0;
+    for (int i = 0; i < keys.length; i++) {
+      r += values[i] * ds[(int) keys[i]];
+    }
+    return r;
+  }
+
+  public double dotProduct(java.nio.DoubleBuffer ds) {
+    double r = 0.0;
+    for (int i = 0; i < keys.length; i++) {
+      r += values[i] * ds.get((int) keys[i]);
+    }
+    return r;
+  }
+
+  public double dotProduct(TLongDoubleHashMap m) {
+    double r = 0.0;
+    if (m.size() > 0) {
+      for (int i = 0; i < keys.length; i++) {
+        r += values[i] * m.get(keys[i]);
+      }
+    }
+    return r;
+  }
+
+  public double dotProduct(LongDoubleFeatureVector m) {
+    double r = 0.0;
+    if (m.count < keys.length) {
+      for (int i = 0; i < m.count; i++) {
+        r += m.values[i] * get(m.keys[i]);
+      }
+    } else {
+      for (int i = 0; i < keys.length; i++) {
+        r += values[i] * m.get(keys[i]);
+      }
+    }
+    return r;
+  }
+
+  public double dotProduct(SortedLongDoubleFeatureVector o) {
+    if (keys.length > o.keys.length) return o.dotProduct(this);
+    if (keys.length == 0) return 0.0;
+    if (o.keys.length >= gallopRatio * keys.length) return gallopDotProduct(o);
+
+    long[] ak = keys, bk = o.keys;
+    double[] av = values, bv = o.values;
+    int i = 0, j = 0;
+    double r = 0.0;
+    while (i < ak.length && j < bk.length) {
+      long a = ak[i], b = bk[j];
+      if (a < b) {
+        i++;
+      } else if (a > b) {
+        j++;
+      } else {
+        r += av[i++] * bv[j++];
+      }
+    }
+    return r;
+  }
+
+  // For each of our keys, exponential search forward in the (much larger) o.
+  private double gallopDotProduct(SortedLongDoubleFeatureVector o) {
+    long[] bk = o.keys;
+    int n = bk.length;
+    int lo = 0;
+    double r = 0.0;
+    for (int i = 0; i < keys.length && lo < n; i++) {
+      long k = keys[i];
+      int step = 1;
+      int hi = lo;
+      while (hi < n && bk[hi] < k) {
+        lo = hi + 1;
+        hi += step;
+        step <<= 1;
+      }
+      int j = Arrays.binarySearch(bk, lo, Math.min(hi + 1, n), k);
+      if (j >= 0) {
+        r += values[i] * o.values[j];
+        lo = j + 1;
+      } else {
+        lo = -j - 1;
+      }
+    }
+    return r;
+  }
+
+  public void forEachEntry(clojure.lang.IFn.LDO f) {
+    for (int i = 0; i < keys.length; i++) {
+      f.invokePrim(keys[i], values[i]);
+    }
+  }
+
+  public Object reduce(clojure.lang.IFn.OLDO f, Object init) {
+    for (int i = 0; i < keys.length; i++) {
+      init = f.invokePrim(init, keys[i], values[i]);
+    }
+    return init;
+  }
+
+  // Serialized form: the first key zigzag-encoded, then the unsigned gap to
+  // each following key, all as varints; values are written raw.
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(1);
+    writeVarLong(out, keys.length);
+    long prev = 0;
+    for (int i = 0; i < keys.length; i++) {
+      long k = keys[i];
+      writeVarLong(out, i == 0 ? (k << 1) ^ (k >> 63) : k - prev);
+      prev = k;
+    }
+    for (int i = 0; i < values.length; i++) {
+      out.writeDouble(values[i]);
+    }
+  }
+
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    if (in.readByte() != 1) throw new IOException("Unknown object version");
+    int n = (int) readVarLong(in);
+    keys = new long[n];
+    values = new double[n];
+    long prev = 0;
+    for (int i = 0; i < n; i++) {
+      long d = readVarLong(in);
+      prev = i == 0 ? (d >>> 1) ^ -(d & 1) : prev + d;
+      keys[i] = prev;
+    }
+    for (int i = 0; i < n; i++) {
+      values[i] = in.readDouble();
+    }
+  }
+
+  private static void writeVarLong(DataOutput out, long v) throws IOException {
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  private static long readVarLong(DataInput in) throws IOException {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      v |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return v;
+    }
+    throw new IOException("Malformed varint");
+  }
+}
@@ -0,0 +1,104 @@
+package flop;
+
+import java.util.Random;
+import plumbing.MersenneTwisterFast;
+
+// A discrete distribution whose weights change one entry at a time, with
+// O(log K) draws and updates.  Partial sums are kept in a Fenwick tree; a draw
+// descends it for the first index whose prefix sum exceeds u * total.
+//
+// Weights must be finite and non-negative and need not be normalized; drawing
+// needs a positive total.  Since each update adds a delta to O(log K) partial
+// sums, rounding error can build up; the tree is rebuilt from the exact
+// weights every K updates, which keeps that error bounded at amortized O(1)
+// cost per update.
+public final class SumTreeSampler {
+  private final double[] weights;
+  private final double[] tree;
+  private final int topBit;
+  private int updatesSinceRebuild = 0;
+
+  public SumTreeSampler(double[] weights) {
+    this.weights = weights.clone();
+    for (int i = 0; i < weights.length; i++) checkWeight(i, weights[i]);
+    tree = new double[weights.length + 1];
+    topBit = weights.length == 0 ? 0 : Integer.highestOneBit(weights.length);
+    rebuild();
+  }
+
+  private static void checkWeight(int i, double w) {
+    if (!(w >= 0 && w < Double.POSITIVE_INFINITY)) {
+      throw new IllegalArgumentException("Bad weight " + w + " at " + i);
+    }
+  }
+
+  // O(K) construction: each node passes its sum on to its parent.
+  public void rebuild() {
+    int n = weights.length;
+    System.arraycopy(weights, 0, tree, 1, n);
+    tree[0] = 0.0;
+    for (int i = 1; i <= n; i++) {
+      int parent = i + (i & -i);
+      if (parent <= n) tree[parent] += tree[i];
+    }
+    updatesSinceRebuild = 0;
+  }
+
+  public int size() {
+    return weights.length;
+  }
+
+  public double weight(int i) {
+    return weights[i];
+  }
+
+  public double total() {
+    double r = 0.0;
+    for (int i = weights.length; i > 0; i -= i & -i) r += tree[i];
+    return r;
+  }
+
+  public void set(int i, double w) {
+    checkWeight(i, w);
+    double delta = w - weights[i];
+    weights[i] = w;
+    if (++updatesSinceRebuild >= weights.length) {
+      rebuild();
+    } else {
+      for (int j = i + 1; j <= weights.length; j += j & -j) tree[j] += delta;
+    }
+  }
+
+  public void add(int i, double delta) {
+    set(i, weights[i] + delta);
+  }
+
+  // Draws with a uniform u in [0, 1).
+  public int sample(double u) {
+    double total = total();
+    if (!(total > 0)) throw new IllegalArgumentException("Weights must have a positive finite sum, got " + total);
+    double target = u * total;
+    int pos = 0;
+    for (int step = topBit; step > 0; step >>= 1) {
+      int next = pos + step;
+      if (next <= weights.length && tree[next] <= target) {
+        pos = next;
+        target -= tree[next];
+      }
+    }
+    // pos is now the number of leading entries whose sum is <= target, so
+    // the draw is entry pos; rounding can push it past the last positive
+    // weight, so step back to one.
+    if (pos >= weights.length) pos = weights.length - 1;
+    while (pos > 0 && weights[pos] == 0.0) pos--;
+    return pos;
+  }
+
+  public int sample(Random r) {
+    return sample(r.nextDouble());
+  }
+
+  public int sample(MersenneTwisterFast r) {
+    return sample(r.nextDouble());
+  }
+}
@@ -0,0 +1,313 @@
+package flop;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Finds the K best-scoring labels of a multi-label linear model for a sparse
+// feature vector without scoring every label, by Fagin's threshold algorithm
+// over an inverted index from feature to its (label, weight) postings.
+//
+// Each query feature's postings are read in order of decreasing contribution
+// (value * weight), and every label seen for the first time is scored exactly
+// by random access (binary search in the same postings sorted by label).
+// After each round, the sum over features of the next contribution (or 0, for
+// labels missing from a posting list) bounds the score of any unseen label,
+// so the search stops once the K-th best score reaches it.  Labels with no
+// weight on any query feature score 0.
+//
+// Searches reuse per-thread scratch space, so a scorer can be shared.  The
+// scratch space is shared by all scorers and refers to none of them between
+// searches, so discarded scorers are not kept alive by long-lived threads.
+public final class TopKScorer {
+  public final int numLabels;
+  private final LongIndex features;
+  private final int[] start;
+  // postings of feature i are [start[i], start[i+1]), by decreasing weight ...
+  private final int[] byWeightLabels;
+  private final double[] byWeight;
+  // ... and by increasing label
+  private final int[] byLabelLabels;
+  private final double[] byLabel;
+
+  private static final ThreadLocal<Searcher> searchers = new ThreadLocal<Searcher>() {
+    protected Searcher initialValue() {
+      return new Searcher();
+    }
+  };
+
+  // The top labels for a query by decreasing score, and the number of labels
+  // scored exactly to find them.
+  public static final class Result {
+    public final int[] labels;
+    public final double[] scores;
+    public final int numScored;
+
+    Result(int[] labels, double[] scores, int numScored) {
+      this.labels = labels;
+      this.scores = scores;
+      this.numScored = numScored;
+    }
+  }
+
+  public static final class Builder {
+    private final int numLabels;
+    private int n = 0;
+    private int[] labels = new int[64];
+    private long[] feats = new long[64];
+    private double[] weights = new double[64];
+
+    public Builder(int numLabels) {
+      this.numLabels = numLabels;
+    }
+
+    // Each (label, feature) pair should be added at most once.
+    public Builder add(int label, long feature, double weight) {
+      if (label < 0 || label >= numLabels) throw new IndexOutOfBoundsException("Bad label " + label);
+      if (weight == 0.0) return this;
+      if (n == labels.length) {
+        labels = Arrays.copyOf(labels, 2 * n);
+        feats = Arrays.copyOf(feats, 2 * n);
+        weights = Arrays.copyOf(weights, 2 * n);
+      }
+      labels[n] = label;
+      feats[n] = feature;
+      weights[n] = weight;
+      n++;
+      return this;
+    }
+
+    public TopKScorer build() {
+      long[] sorted = Arrays.copyOf(feats, n);
+      Arrays.sort(sorted);
+      int distinct = 0;
+      for (int i = 0; i < n; i++) {
+        if (i == 0 || sorted[i] != sorted[i - 1]) sorted[distinct++] = sorted[i];
+      }
+      LongIndex index = LongIndex.build(Arrays.copyOf(sorted, distinct));
+      final int[] ids = new int[n];
+      int[] start = new int[distinct + 1];
+      for (int i = 0; i < n; i++) {
+        ids[i] = index.getIndex(feats[i]);
+        start[ids[i] + 1]++;
+      }
+      for (int f = 0; f < distinct; f++) start[f + 1] += start[f];
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) order[i] = i;
+      Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            if (ids[a] != ids[b]) return ids[a] < ids[b] ? -1 : 1;
+            return Double.compare(weights[b], weights[a]);
+          }
+        });
+      int[] byWeightLabels = new int[n];
+      double[] byWeight = new double[n];
+      for (int i = 0; i < n; i++) {
+        byWeightLabels[i] = labels[order[i]];
+        byWeight[i] = weights[order[i]];
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            if (ids[a] != ids[b]) return ids[a] < ids[b] ? -1 : 1;
+            return labels[a] < labels[b] ? -1 : (labels[a] == labels[b] ? 0 : 1);
+          }
+        });
+      int[] byLabelLabels = new int[n];
+      double[] byLabel = new double[n];
+      for (int i = 0; i < n; i++) {
+        byLabelLabels[i] = labels[order[i]];
+        byLabel[i] = weights[order[i]];
+      }
+      return new TopKScorer(numLabels, index, start, byWeightLabels, byWeight, byLabelLabels, byLabel);
+    }
+  }
+
+  private TopKScorer(int numLabels, LongIndex features, int[] start, int[] byWeightLabels,
+                     double[] byWeight, int[] byLabelLabels, double[] byLabel) {
+    this.numLabels = numLabels;
+    this.features = features;
+    this.start = start;
+    this.byWeightLabels = byWeightLabels;
+    this.byWeight = byWeight;
+    this.byLabelLabels = byLabelLabels;
+    this.byLabel = byLabel;
+  }
+
+  // The weight of label on posting list f, or 0.
+  private double weight(int f, int label) {
+    int i = Arrays.binarySearch(byLabelLabels, start[f], start[f + 1], label);
+    return i < 0 ? 0.0 : byLabel[i];
+  }
+
+  public Result topK(LongDoubleFeatureVector fv, int k) {
+    return searchers.get().topK(this, fv, k);
+  }
+
+  // The (up to) m features of fv contributing most to label's score, by
+  // decreasing absolute contribution, as {features, contributions}.
+  public Object[] contributions(LongDoubleFeatureVector fv, int label, int m) {
+    if (m <= 0) return new Object[] {new long[0], new double[0]};
+    long[] feats = new long[m];
+    double[] contribs = new double[m];
+    int n = 0;
+    for (int i = 0; i < fv.count; i++) {
+      int f = features.getIndex(fv.keys[i]);
+      if (f < 0) continue;
+      double c = fv.values[i] * weight(f, label);
+      if (c == 0.0 || (n == m && Math.abs(c) <= Math.abs(contribs[m - 1]))) continue;
+      int j = n < m ? n++ : m - 1;
+      while (j > 0 && Math.abs(contribs[j - 1]) < Math.abs(c)) {
+        feats[j] = feats[j - 1];
+        contribs[j] = contribs[j - 1];
+        j--;
+      }
+      feats[j] = fv.keys[i];
+      contribs[j] = c;
+    }
+    return new Object[] {Arrays.copyOf(feats, n), Arrays.copyOf(contribs, n)};
+  }
+
+  private static final class Searcher {
+    // the scorer being searched, only during topK
+    private TopKScorer s;
+    private int[] seen = new int[0];
+    private int stamp = 0;
+    private int[] lists = new int[16];
+    private double[] values = new double[16];
+    private int[] cursors = new int[16];
+    private int numLists;
+    // min-heap of the best k so far
+    private int[] heapLabels = new int[16];
+    private double[] heapScores = new double[16];
+    private int heapSize;
+
+    private double score(int label) {
+      double sum = 0.0;
+      for (int q = 0; q < numLists; q++) sum += values[q] * s.weight(lists[q], label);
+      return sum;
+    }
+
+    private boolean better(double s1, int l1, double s2, int l2) {
+      return s1 > s2 || (s1 == s2 && l1 < l2);
+    }
+
+    private void offer(int label, double s, int k) {
+      if (heapSize < k) {
+        int i = heapSize++;
+        while (i > 0 && better(heapScores[(i - 1) / 2], heapLabels[(i - 1) / 2], s, label)) {
+          heapScores[i] = heapScores[(i - 1) / 2];
+          heapLabels[i] = heapLabels[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+        heapScores[i] = s;
+        heapLabels[i] = label;
+      } else if (better(s, label, heapScores[0], heapLabels[0])) {
+        siftDown(label, s);
+      }
+    }
+
+    // Puts (label, s) at the root and restores the heap order below it.
+    private void siftDown(int label, double s) {
+      int i = 0;
+      while (true) {
+        int c = 2 * i + 1;
+        if (c >= heapSize) break;
+        if (c + 1 < heapSize && better(heapScores[c], heapLabels[c], heapScores[c + 1], heapLabels[c + 1])) c++;
+        if (!better(s, label, heapScores[c], heapLabels[c])) break;
+        heapScores[i] = heapScores[c];
+        heapLabels[i] = heapLabels[c];
+        i = c;
+      }
+      heapScores[i] = s;
+      heapLabels[i] = label;
+    }
+
+    // Offers the entry under list q's cursor, if its label is new, and advances.
+    private int visit(int q, int k) {
+      int p = cursors[q];
+      int label = s.byWeightLabels[p];
+      cursors[q] = values[q] > 0 ? p + 1 : p - 1;
+      if (seen[label] == stamp) return 0;
+      seen[label] = stamp;
+      offer(label, score(label), k);
+      return 1;
+    }
+
+    private boolean exhausted(int q) {
+      int f = lists[q];
+      return cursors[q] < s.start[f] || cursors[q] >= s.start[f + 1];
+    }
+
+    Result topK(TopKScorer scorer, LongDoubleFeatureVector fv, int k) {
+      s = scorer;
+      try {
+        return search(fv, k);
+      } finally {
+        s = null;
+      }
+    }
+
+    private Result search(LongDoubleFeatureVector fv, int k) {
+      int numLabels = s.numLabels;
+      int[] start = s.start;
+      k = Math.min(k, numLabels);
+      if (seen.length < numLabels) seen = new int[numLabels];
+      if (++stamp == 0) {
+        Arrays.fill(seen, 0);
+        stamp = 1;
+      }
+      if (heapLabels.length < k) {
+        heapLabels = new int[k];
+        heapScores = new double[k];
+      }
+      heapSize = 0;
+      numLists = 0;
+      for (int i = 0; i < fv.count; i++) {
+        int f = s.features.getIndex(fv.keys[i]);
+        double v = fv.values[i];
+        if (f < 0 || v == 0.0) continue;
+        if (numLists == lists.length) {
+          lists = Arrays.copyOf(lists, 2 * numLists);
+          values = Arrays.copyOf(values, 2 * numLists);
+          cursors = Arrays.copyOf(cursors, 2 * numLists);
+        }
+        lists[numLists] = f;
+        values[numLists] = v;
+        cursors[numLists] = v > 0 ? start[f] : start[f + 1] - 1;
+        numLists++;
+      }
+      int scored = 0;
+      boolean allExhausted = numLists == 0;
+      while (!allExhausted && k > 0) {
+        allExhausted = true;
+        double threshold = 0.0;
+        for (int q = 0; q < numLists; q++) {
+          if (!exhausted(q)) scored += visit(q, k);
+          int f = lists[q];
+          double bound = 0.0;
+          if (!exhausted(q)) {
+            allExhausted = false;
+            bound = values[q] * s.byWeight[cursors[q]];
+            if (start[f + 1] - start[f] < numLabels) bound = Math.max(bound, 0.0);
+          }
+          threshold += bound;
+        }
+        if (heapSize == k && heapScores[0] >= threshold) break;
+      }
+      if (allExhausted && (heapSize < k || heapScores[0] < 0.0)) {
+        for (int label = 0; label < numLabels; label++) {
+          if (seen[label] != stamp) offer(label, 0.0, k);
+        }
+      }
+      int n = heapSize;
+      int[] labels = new int[n];
+      double[] scores = new double[n];
+      for (int i = n - 1; i >= 0; i--) {
+        labels[i] = heapLabels[0];
+        scores[i] = heapScores[0];
+        heapSize--;
+        siftDown(heapLabels[heapSize], heapScores[heapSize]);
+      }
+      return new Result(labels, scores, scored);
+    }
+  }
+}
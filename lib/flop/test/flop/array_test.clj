@@ -3,10 +3,12 @@
   (:require
    [hiphip.double :as dbl]
    [plumbing.repl :as repl-utils]
+   [plumbing.timing :as timing]
    [flop.array :as fa]
    [flop.math :as fm])
   (:import
-   java.util.Random))
+   java.util.Random
+   flop.DArray))
 
 ;; some of this stuff tests hiphip since we moved code from here to there,
 ;; should clean up / move tests eventually.
@@ -133,6 +135,57 @@
   (= 2 (fa/sample-discrete (Random. 0) (double-array [0 0 1 0])))
   (= 73 (fa/sample-discrete (Random. 0) (double-array 100 0.01))))
 
+(defn- draw-frequencies [n sample]
+  (let [counts (frequencies (repeatedly n sample))]
+    (fn [i] (/ (double (get counts i 0)) n))))
+
+(deftest discrete-samplers-test
+  (let [weights (double-array [0 1 2 0 3 4 0])
+        r (Random. 0)
+        n 100000]
+    (doseq [s [(fa/alias-sampler weights) (fa/sum-tree-sampler weights)]]
+      (let [freq (draw-frequencies n #(.sample s r))]
+        (doseq [i (range 7)]
+          (is (< (Math/abs (- (freq i) (/ (aget weights i) 10.0))) 0.01)))
+        (doseq [i [0 3 6]]
+          (is (zero? (freq i))))))
+    (testing "sum tree updates"
+      (let [s (fa/sum-tree-sampler weights)]
+        (.set s 4 0.0)
+        (.add s 0 3.0)
+        (is (= 10.0 (.total s)))
+        (let [freq (draw-frequencies n #(.sample s r))]
+          (is (zero? (freq 4)))
+          (doseq [[i p] {0 0.3 1 0.1 2 0.2 5 0.4}]
+            (is (< (Math/abs (- (freq i) p)) 0.01))))))
+    (testing "sum tree stays exact through many updates"
+      (let [ws (double-array 100 1.0)
+            s (fa/sum-tree-sampler ws)]
+        (dotimes [i 10000]
+          (let [j (.nextInt r 100) w (.nextDouble r)]
+            (aset ws j w)
+            (.set s j w)))
+        (is (< (Math/abs (- (.total s) (areduce ws i t 0.0 (+ t (aget ws i))))) 1e-9))))
+    (is (thrown? IllegalArgumentException (fa/alias-sampler (double-array [0 0]))))
+    (is (thrown? IllegalArgumentException (fa/sum-tree-sampler (double-array [1 -1]))))
+    (is (thrown? IllegalArgumentException (fa/sum-tree-sampler (double-array [1 Double/NaN]))))
+    (is (thrown? IllegalArgumentException (.set (fa/sum-tree-sampler weights) 1 Double/NaN)))
+    (is (thrown? IllegalArgumentException (.sample (fa/sum-tree-sampler (double-array [0 0])) 0.5)))))
+
+(deftest ^:bench discrete-samplers-bench
+  (doseq [k [10 1000 100000 1000000]]
+    (let [r (Random. 0)
+          weights (fa/normalize! (double-array (repeatedly k #(.nextDouble r))))
+          alias (fa/alias-sampler weights)
+          tree (fa/sum-tree-sampler weights)]
+      (println "K =" k)
+      (timing/microbenchmark
+       {:consume-output `identity}
+       (fa/sample-discrete r weights)
+       (.sample alias r)
+       (.sample tree r)
+       (.set tree (.nextInt r k) (.nextDouble r))))))
+
 (deftest log-add []
   (is-double-= (fa/log-add (double-array 2 (Math/log 0.5))) 0.0))
 
@@ -199,3 +252,33 @@
     (is (= 4 (fa/discretize a 27)))
     (is (= 5 (fa/discretize a 1000))))
   (is (= 0 (fa/discretize (double-array []) 10.0))))
+
+(deftest dense-kernels-test
+  (doseq [n [0 1 3 4 7 1001]]
+    (let [r (Random. n)
+          xs (double-array (repeatedly n #(.nextGaussian r)))
+          ys (double-array (repeatedly n #(.nextGaussian r)))
+          close? (fa/approx-equal?-fn 1e-9)]
+      (is (fm/within 1e-9 (dbl/asum xs) (DArray/sum xs)))
+      (is (fm/within 1e-9 (dbl/dot-product xs ys) (DArray/dotProduct xs ys)))
+      (is (close? (dbl/amap [x xs] (* 3 x)) (fa/scale xs 3.0)))
+      (is (close? (dbl/amap [x xs y ys] (+ x y)) (fa/add-in-place! (dbl/aclone xs) ys 1.0 0.0)))
+      (is (close? (dbl/amap [x xs y ys] (+ x (* 2 y) 0.5)) (fa/add-in-place! (dbl/aclone xs) ys 2.0 0.5)))
+      (is (close? (dbl/amap [x xs y ys] (* x y)) (fa/multiply-in-place! (dbl/aclone xs) ys))))))
+
+(deftest ^:bench dense-kernels-bench
+  (doseq [n [100000 1000000 10000000]]
+    (let [r (Random. 0)
+          xs (double-array (repeatedly n #(.nextGaussian r)))
+          ys (double-array (repeatedly n #(.nextGaussian r)))]
+      (println "dense kernels, hiphip vs. flop.DArray, at" n "doubles")
+      (timing/microbenchmark
+       {:consume-output `identity}
+       (dbl/afill! [x xs y ys] (+ x y))
+       (fa/add-in-place! xs ys 1.0 0.0)
+       (dbl/afill! [x xs] (* x 0.99))
+       (fa/scale-in-place! xs 0.99)
+       (dbl/asum xs)
+       (DArray/sum xs)
+       (dbl/dot-product xs ys)
+       (DArray/dotProduct xs ys)))))
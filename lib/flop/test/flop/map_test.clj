@@ -1,7 +1,12 @@
 (ns flop.map-test
   (:use clojure.test plumbing.core plumbing.test flop.map)
   (:require
-   [plumbing.serialize :as serialize]))
+   [plumbing.serialize :as serialize]
+   [plumbing.timing :as timing])
+  (:import
+   [flop FeatureMatrix FeatureMatrix$Builder LongDoubleFeatureVector LongDoubleFeatureVector$Cursor
+    SortedLongDoubleFeatureVector]
+   [gnu.trove TLongDoubleHashMap TLongIntHashMap]))
 
 
 (deftest ld-conversion-test
@@ -134,4 +139,220 @@
             (map->trove {42 1.0 43 2.0 44 3.0})
             [42 43])))
 
+(deftest fv-index-test
+  ;; crosses back and forth over the small-vector linear scan threshold
+  (let [r (java.util.Random. 1)
+        fv (feature-vector)
+        m (java.util.HashMap.)]
+    (dotimes [_ 20000]
+      (let [k (long (* (.nextInt r 100) (if (.nextBoolean r) 1 1000000007)))]
+        (if (< (.nextDouble r) 0.6)
+          (let [v (double (inc (.nextInt r 3)))]
+            (.put fv k v)
+            (.put m k v))
+          (do (is (= (boolean (.remove m k)) (.remove fv k)))))
+        (is (= (.size m) (count fv)))))
+    (is (= (into {} m) (fv->map fv)))
+    (doseq [[k v] m]
+      (is (= v (.get fv (long k)))))
+    (is (= 0.0 (.get fv -1)))))
+
+;; keys spread over the full long range, including negative keys
+(defn- random-fv [^java.util.Random r n]
+  (map->fv (into {} (repeatedly n #(vector (.nextLong r) (double (- (.nextInt r 5) 2)))))))
+
+(deftest sorted-fv-test
+  (let [r (java.util.Random. 2)]
+    (doseq [[n1 n2] [[0 10] [5 5] [30 40] [3 1000] [200 10]]]
+      (let [shared (random-fv r 20)
+            fv1 (doto ^LongDoubleFeatureVector (random-fv r n1) (.incrementAll shared 1.0))
+            fv2 (doto ^LongDoubleFeatureVector (random-fv r n2) (.incrementAll shared 2.0))
+            s1 (fv->sorted fv1)
+            s2 (fv->sorted fv2)
+            expected (.dotProduct fv1 fv2)]
+        (is (= (into {} (remove (comp zero? val) (fv->map fv1))) (fv->map (sorted->fv s1))))
+        (is (= (seq (.keys s1)) (sort (.keys s1))))
+        (is (== expected (.dotProduct s1 s2) (.dotProduct s2 s1)))
+        (is (== expected (.dotProduct s1 fv2) (.dotProduct s2 fv1)))
+        (is (== expected (.dotProduct s1 (fv->trove fv2))))
+        (doseq [[k v] (fv->map fv1)]
+          (is (= v (.get s1 (long k)))))
+        (let [s3 (serialize/deserialize (serialize/serialize serialize/+java+ s1))]
+          (is (= (seq (.keys s1)) (seq (.keys ^SortedLongDoubleFeatureVector s3))))
+          (is (= (seq (.values s1)) (seq (.values ^SortedLongDoubleFeatureVector s3)))))))))
+
+(deftest feature-matrix-test
+  (let [rows [[{0 1.0 3 2.0} 1 1.0] [{} 0 0.5] [{2 -1.0} 2 2.0] [{1 1.0 2 1.0 3 1.0} 0 1.0]]
+        b (FeatureMatrix$Builder.)
+        _ (doseq [[m l w] rows] (.add b (map->fv m) (int l) (double w)))
+        fm (.build b)
+        ws (double-array [1 10 100 1000])]
+    (is (= 4 (.numRows fm)))
+    (is (= 6 (.numEntries fm)))
+    (is (= 4 (.numCols fm)))
+    (is (= [1 0 2 0] (seq (.labels fm))))
+    (is (= [1.0 0.0 2.0 0.0] (seq (.targets fm))))
+    (is (= [2001.0 0.0 -100.0 1110.0] (for [r (range 4)] (.dotProduct fm (int r) ws))))
+    (is (= (map first rows) (for [r (range 4)] (into {} (.asMap (.row fm (int r)))))))
+
+    (let [v (.rows fm 1 3)]
+      (is (= 2 (.numRows v)))
+      (is (= 1 (.numEntries v)))
+      (is (= [1 3] [(.start v) (.end v)]))
+      (is (thrown? IndexOutOfBoundsException (.rows v 0 2))))
+
+    (doseq [n [1 2 3 4 10]]
+      (let [blocks (.blocks fm (int n))]
+        (is (= (min n 4) (count blocks)))
+        (is (= (range 4) (mapcat #(range (.start ^FeatureMatrix %) (.end ^FeatureMatrix %)) blocks)))))
+
+    (let [rm (.build (.addTarget (FeatureMatrix$Builder.) (map->fv {0 1.0}) 3.5 1.0))]
+      (is (= [-1] (seq (.labels rm))))
+      (is (= [3.5] (seq (.targets rm)))))))
+
+(deftest ^:bench sorted-fv-dot-product-bench
+  (let [r (java.util.Random. 0)]
+    (doseq [[n1 n2] [[20 20] [20 2000] [200 200]]]
+      (let [shared (random-fv r 10)
+            fv1 (doto ^LongDoubleFeatureVector (random-fv r n1) (.incrementAll shared 1.0))
+            fv2 (doto ^LongDoubleFeatureVector (random-fv r n2) (.incrementAll shared 1.0))
+            t2 (fv->trove fv2)
+            s1 (fv->sorted fv1)
+            s2 (fv->sorted fv2)]
+        (println "sparse-sparse dot product" n1 "x" n2 "features")
+        (timing/microbenchmark
+         (.dotProduct ^LongDoubleFeatureVector fv1 ^LongDoubleFeatureVector fv2)
+         (.dotProduct ^LongDoubleFeatureVector fv1 ^gnu.trove.TLongDoubleHashMap t2)
+         (.dotProduct ^SortedLongDoubleFeatureVector s1 ^SortedLongDoubleFeatureVector s2))))))
+
+;; Iteration and binary codec
+
+(defn- cursor->map [^LongDoubleFeatureVector fv]
+  (loop [c (.cursor fv) m {}]
+    (if (.advance c)
+      (recur c (assoc m (.key c) (.value c)))
+      m)))
+
+(deftest fv-cursor-codec-test
+  (let [r (java.util.Random. 3)]
+    (doseq [n [0 1 8 9 100]]
+      (let [^LongDoubleFeatureVector fv (random-fv r n)
+            m (fv->map fv)]
+        (is (= m (cursor->map fv)))
+        (is (= m (into {} (for [e fv] [(key e) (val e)]))))
+        (let [c (.cursor (LongDoubleFeatureVector.))]
+          (is (not (.advance c)))
+          (.reset c fv)
+          (is (= (count m) (count (take-while identity (repeatedly #(.advance c)))))))
+        (let [buf (java.nio.ByteBuffer/allocate (+ 3 (.encodedSize fv)))]
+          (.put buf (byte 7))
+          (.encode fv buf)
+          (is (= (+ 1 (.encodedSize fv)) (.position buf)))
+          (.flip buf)
+          (.get buf)
+          (let [decoded (LongDoubleFeatureVector/decode buf)]
+            (is (= m (fv->map decoded)))
+            (is (not (.hasRemaining buf)))
+            (doseq [[k v] m] (is (= v (.get decoded (long k)))))))
+        (doseq [new-formats? [false true]
+                method [serialize/+java+ serialize/+default+ serialize/+default-uncompressed+]]
+          (set! LongDoubleFeatureVector/writeVersion2 new-formats?)
+          (set! plumbing.Serializer/writeCodables new-formats?)
+          (try
+            (let [rt (serialize/deserialize (serialize/serialize method {:doc fv}))]
+              (is (= m (fv->map (:doc rt))))
+              (is (= (.get ^LongDoubleFeatureVector (:doc rt) (long (or (first (keys m)) 0)))
+                     (.get fv (long (or (first (keys m)) 0))))))
+            (finally
+              (set! LongDoubleFeatureVector/writeVersion2 false)
+              (set! plumbing.Serializer/writeCodables false))))))))
+
+(defn- thread-allocated-bytes ^long []
+  (.getThreadAllocatedBytes
+   ^com.sun.management.ThreadMXBean (java.lang.management.ManagementFactory/getThreadMXBean)
+   (.getId (Thread/currentThread))))
+
+(defn- bytes-allocated-per [n f]
+  (let [before (thread-allocated-bytes)]
+    (dotimes [_ n] (f))
+    (/ (double (- (thread-allocated-bytes) before)) n)))
+
+(deftest ^:bench fv-iteration-alloc-bench
+  (let [^LongDoubleFeatureVector fv (random-fv (java.util.Random. 0) 200)
+        c (.cursor fv)
+        buf (java.nio.ByteBuffer/allocate (.encodedSize fv))]
+    (println "bytes allocated per pass over a 200-feature vector"
+             {:iterator (bytes-allocated-per 10000 #(loop [^java.util.Iterator it (.iterator fv) s 0.0]
+                                                      (if (.hasNext it)
+                                                        (recur it (+ s (double (val (.next it)))))
+                                                        s)))
+              :cursor (bytes-allocated-per 10000 #(loop [c (.reset c fv) s 0.0]
+                                                    (if (.advance c)
+                                                      (recur c (+ s (.value c)))
+                                                      s)))})
+    (println "bytes allocated per serialization of a 200-feature vector"
+             {:java (bytes-allocated-per 1000 #(serialize/serialize serialize/+java+ fv))
+              :default (bytes-allocated-per 1000 #(serialize/serialize serialize/+default-uncompressed+ fv))
+              :encode (bytes-allocated-per 1000 #(.encode fv (doto buf .clear)))})
+    (timing/microbenchmark
+     {:consume-output `identity}
+     (loop [^java.util.Iterator it (.iterator fv) s 0.0]
+       (if (.hasNext it) (recur it (+ s (double (val (.next it))))) s))
+     (loop [c (.reset c fv) s 0.0]
+       (if (.advance c) (recur c (+ s (.value c))) s))
+     (serialize/deserialize (serialize/serialize serialize/+java+ fv))
+     (serialize/deserialize (serialize/serialize serialize/+default-uncompressed+ fv)))))
+
+
+;; Footprint of n 20-feature vectors, vs. the old layout with a trove key index
+(defn- used-heap ^long []
+  (dotimes [_ 3] (System/gc))
+  (let [rt (Runtime/getRuntime)] (- (.totalMemory rt) (.freeMemory rt))))
+
+(defn- bytes-per [n make]
+  (let [before (used-heap)
+        held (doall (repeatedly n make))
+        after (used-heap)]
+    (is (= n (count held)))
+    (/ (double (- after before)) n)))
+
+(defn- random-keys ^longs [^java.util.Random r n]
+  (long-array (repeatedly n #(.nextInt r 1000000))))
+
+(deftest ^:bench fv-footprint-bench
+  (let [r (java.util.Random. 0)
+        n 100000]
+    (println "bytes per 20-feature vector"
+             {:fv (bytes-per n #(let [fv (LongDoubleFeatureVector. 20)]
+                                  (doseq [k (random-keys r 20)] (.increment fv k 1.0))
+                                  (doto fv .compact)))
+              :fv-with-trove-index (bytes-per n #(let [ks (random-keys r 20)
+                                                       idx (TLongIntHashMap.)]
+                                                   (dotimes [i 20] (.put idx (aget ks i) i))
+                                                   [ks (double-array 20) idx]))
+              :trove (bytes-per n #(let [t (TLongDoubleHashMap.)]
+                                     (doseq [k (random-keys r 20)] (.put t k 1.0))
+                                     t))})))
+
+(deftest ^:bench fv-increment-bench
+  (let [r (java.util.Random. 0)]
+    (doseq [size [4 20 200]]
+      (let [ks (random-keys r size)
+            n (alength ks)]
+        (println "increment throughput for" size "features")
+        (timing/microbenchmark
+         (let [fv (LongDoubleFeatureVector.)]
+           (dotimes [_ 10] (dotimes [i n] (.increment fv (aget ks i) 1.0)))
+           fv)
+         (let [ks2 (long-array n) vs (double-array n) idx (TLongIntHashMap.)]
+           (dotimes [_ 10]
+             (dotimes [i n]
+               (let [k (aget ks i)
+                     j (if (.containsKey idx k) (.get idx k) (let [j (.size idx)] (.put idx k j) (aset ks2 j k) j))]
+                 (aset vs j (+ (aget vs j) 1.0)))))
+           vs)
+         (let [t (TLongDoubleHashMap.)]
+           (dotimes [_ 10] (dotimes [i n] (.adjustOrPutValue t (aget ks i) 1.0 1.0)))
+           t))))))
+
 (set! *warn-on-reflection* false)
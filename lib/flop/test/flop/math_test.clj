@@ -1,8 +1,10 @@
 (ns flop.math-test
   (:use clojure.test)
   (:require [flop.math :as dm]
-            [plumbing.repl :as ru])
-  (:import java.util.Random))
+            [flop.array :as fa]
+            [plumbing.repl :as ru]
+            [plumbing.timing :as timing])
+  (:import java.util.Random flop.DMath flop.BulkSample plumbing.MersenneTwisterFast))
 
 (defmacro is-double-approx-= [expr val rel-err abs-err]
   `(do (is (= ~(ru/expression-info expr) {:class Double/TYPE :primitive? true}))
@@ -26,6 +28,80 @@
   (doseq [x [-1000 -10 -1.0e-9 1.0e-10 1.0e-5 1.0e-2 0.9999 100]]
     (is-double-approx-= (dm/sloppy-exp (double x)) (Math/exp x) 1.0e-4 1.0e-4)))
 
+(deftest fast-exp-log-test
+  (let [r (Random. 0)]
+    (dotimes [_ 100000]
+      (let [x (- (* 1400 (.nextDouble r)) 700)
+            y (Math/exp (- (* 1400 (.nextDouble r)) 700))]
+        (is (< (Math/abs (- (dm/fast-exp x) (Math/exp x))) (* 1e-15 (Math/exp x))))
+        (is (< (Math/abs (- (dm/fast-log y) (Math/log y))) 2e-15)))))
+  (is (= 1.0 (dm/fast-exp 0.0)))
+  (is (= 0.0 (dm/fast-log 1.0)))
+  (is (= 0.0 (dm/fast-exp -1000.0)))
+  (is (Double/isInfinite (dm/fast-exp 1000.0)))
+  (is (Double/isNaN (dm/fast-exp Double/NaN)))
+  (is (Double/isNaN (dm/fast-log -1.0)))
+  (is (= Double/NEGATIVE_INFINITY (dm/fast-log 0.0)))
+  (is ((fa/approx-equal?-fn 1e-15)
+       (double-array (map #(Math/log %) [0.5 1.0 2.0]))
+       (fa/log-in-place! (double-array [0.5 1.0 2.0]))))
+  (is ((fa/approx-equal?-fn 1e-15)
+       (double-array (map #(Math/exp %) [-1.0 0.0 1.0]))
+       (fa/exp-in-place! (double-array [-1.0 0.0 1.0])))))
+
+(deftest ^:bench fast-exp-log-bench
+  (let [r (Random. 0)
+        xs (double-array (repeatedly 10000 #(- (* 30 (.nextDouble r)))))
+        ys (double-array (repeatedly 10000 #(* 100 (.nextDouble r))))]
+    (timing/microbenchmark
+     {:consume-output `identity}
+     (let [^doubles xs xs] (loop [i 0 s 0.0] (if (< i 10000) (recur (inc i) (+ s (Math/exp (aget xs i)))) s)))
+     (let [^doubles xs xs] (loop [i 0 s 0.0] (if (< i 10000) (recur (inc i) (+ s (DMath/fastExp (aget xs i)))) s)))
+     (let [^doubles ys ys] (loop [i 0 s 0.0] (if (< i 10000) (recur (inc i) (+ s (Math/log (aget ys i)))) s)))
+     (let [^doubles ys ys] (loop [i 0 s 0.0] (if (< i 10000) (recur (inc i) (+ s (DMath/fastLog (aget ys i)))) s)))
+     (fa/exp-in-place! (aclone xs))
+     (fa/log-in-place! (aclone ys)))))
+
+(defn- moments [^doubles xs]
+  (let [n (alength xs)
+        mean (/ (areduce xs i s 0.0 (+ s (aget xs i))) n)]
+    [mean (/ (areduce xs i s 0.0 (+ s (Math/pow (- (aget xs i) mean) 2))) n)]))
+
+(deftest bulk-sample-test
+  (let [n 200000
+        check (fn [xs mean var]
+                (let [[m v] (moments xs)]
+                  (is (< (Math/abs (- m mean)) (* 5 (Math/sqrt (/ var n)))))
+                  (is (< (Math/abs (- v var)) (* 0.03 var)))))]
+    (doseq [r [(MersenneTwisterFast. 1) (java.util.SplittableRandom. 1) (Random. 1)]]
+      (check (dm/fill-uniform! r (double-array n)) 0.5 (/ 1.0 12))
+      (check (dm/fill-gaussian! r (double-array n)) 0.0 1.0)
+      (check (dm/fill-gamma! r 0.5 2.0 (double-array n)) 0.25 0.125)
+      (check (dm/fill-gamma! r 3.0 1.0 (double-array n)) 3.0 3.0)
+      (check (dm/fill-beta! r (double-array n 2.0) (double-array n 5.0) (double-array n))
+             (/ 2.0 7) (/ 10.0 392))
+      (check (dm/fill-student-t! r 5 (double-array n)) 0.0 (/ 5.0 3))))
+  (testing "parallel fills depend only on the seed"
+    (let [fill #(dm/parallel-fill! (fn [src out from to] (BulkSample/fillGaussian src out from to))
+                                   42 1000 % (double-array 10500))]
+      (is (= (seq (fill 1)) (seq (fill 4)) (seq (fill 8))))
+      (is (not= (seq (fill 1))
+                (seq (dm/parallel-fill! (fn [src out from to] (BulkSample/fillGaussian src out from to))
+                                        43 1000 1 (double-array 10500))))))))
+
+(deftest ^:bench bulk-sample-bench
+  (let [r (MersenneTwisterFast. 0)
+        mt (plumbing.MersenneTwister. 0)
+        out (double-array 10000)
+        alphas (double-array 10000 3.0)
+        betas (double-array 10000 20.0)]
+    (timing/microbenchmark
+     {:consume-output `identity}
+     (dotimes [i 10000] (aset out i (DMath/sampleGaussian mt)))
+     (dm/fill-gaussian! r out)
+     (dotimes [i 10000] (aset out i (dm/sample-beta mt 3.0 20.0)))
+     (dm/fill-beta! r alphas betas out))))
+
 (deftest sloppy-exp-negative-test []
   (is (= (dm/sloppy-exp-negative 0) 1.0))
   (doseq [x (range -29.9 -0.1 0.1)]
@@ -1,6 +1,6 @@
 (ns flop.weight-vector-test
   (:use clojure.test plumbing.core flop.weight-vector)
-  (:require [flop.map :as fm] [plumbing.io :as io])
+  (:require [flop.map :as fm] [plumbing.io :as io] [plumbing.parallel :as parallel])
   (:import [flop LongDoubleFeatureVector IWeightVector]))
 
 (def io-roundtrip (comp io/from-data io/to-data))
@@ -14,6 +14,7 @@
 
   ;; Test dot product against indexed and unindexed
   (is (= 4.0 (.dot-product v (fm/map->fv {0 1.0 1 1.0}))))
+  (is (= 4.0 (.dot-product v (fm/fv->sorted (fm/map->fv {0 1.0 1 1.0})))))
 
   (is (= [[0 2.0] [1 2.0] [2 3.0]]
          (sort-by first
@@ -27,8 +28,86 @@
 
   )
 
+(deftest mapped-dense-test
+  (let [f (doto (java.io.File/createTempFile "weights" ".bin") .deleteOnExit)
+        path (.getPath f)
+        _ (write-mapped! path (new-dense (double-array [1 2 3])))
+        ^IWeightVector v (map-dense path)]
+    (is (= 3 (.dimension v)))
+    (is (= 14.0 (.dot-product v (double-array [1 2 3]))))
+    (is (= 2.0 (.val-at v 1)))
+    (is (= 5.0 (.dot-product v (fm/map->fv {0 1.0 1 2.0}))))
+    (is (= 5.0 (.dot-product v (fm/fv->sorted (fm/map->fv {0 1.0 1 2.0})))))
+    (is (thrown? UnsupportedOperationException (.inc! v 0 1.0)))
+    (is (= {0 1.0 1 2.0 2 3.0} (->map v)))
+    (is (= [1.0 2.0 3.0] (vals (sort (->map (io-roundtrip v))))))
+
+    (testing "larger than one write chunk"
+      (let [xs (double-array (range 100000))]
+        (write-mapped! path xs)
+        (testing "an earlier mapping of the replaced file still reads its weights"
+          (is (= {0 1.0 1 2.0 2 3.0} (->map v))))
+        (let [^IWeightVector v (map-dense path)]
+          (is (= 100000 (.dimension v)))
+          (is (= 99999.0 (.val-at v 99999)))
+          (is (= (reduce + (range 100000)) (long (.dot-product v (double-array 100000 1.0))))))))))
+
 (deftest weight-vec-test
   (simple-weight-vec-test (new-dense (double-array [1 2 3])))
   (simple-weight-vec-test (map->sparse {0 1 1 2 2 3}))
   (simple-weight-vec-test (io-roundtrip (new-dense (double-array [1 2 3]))))
   (simple-weight-vec-test (io-roundtrip (map->sparse {0 1 1 2 2 3}))))
+
+(deftest quantized-weight-vec-test
+  (doseq [kind [:float :half]]
+    (simple-weight-vec-test (quantize (new-dense (double-array [1 2 3])) kind))
+    (simple-weight-vec-test (quantize (map->sparse {0 1 1 2 2 3}) kind))
+    (simple-weight-vec-test (io-roundtrip (quantize (new-dense (double-array [1 2 3])) kind))))
+
+  (testing "int8 is close and read-only"
+    (let [xs (double-array (for [i (range 1000)] (Math/sin i)))
+          ^IWeightVector v (quantize (new-dense xs) :int8)
+          fv (fm/map->fv {0 1.0 10 2.0 999 -1.0})
+          exact (+ (aget xs 0) (* 2 (aget xs 10)) (- (aget xs 999)))]
+      (is (= 1000 (.dimension v)))
+      (is (< (Math/abs (- (.dot-product v fv) exact)) 0.02))
+      (is (= (.dot-product v fv) (.dot-product v (fm/fv->sorted fv))))
+      (is (< (Math/abs (- (.dot-product v xs) (.dot-product (new-dense xs) xs))) 1.0))
+      (is (< (Math/abs (- (.val-at v 10) (aget xs 10))) 0.01))
+      (is (thrown? UnsupportedOperationException (.inc! v 0 1.0)))
+      (is (= (->map v) (->map (io-roundtrip v))))))
+
+  (testing "memory"
+    (let [wv (new-dense (double-array 1000))]
+      (is (= [8000 4000 2000 1064]
+             (map resident-bytes [wv (quantize wv :float) (quantize wv :half) (quantize wv :int8)]))))))
+
+(deftest atomic-weight-vec-test
+  (simple-weight-vec-test (atomic-dense (double-array [1 2 3])))
+  (simple-weight-vec-test (atomic-sparse {0 1 1 2 2 3}))
+  (simple-weight-vec-test (io-roundtrip (atomic-dense (double-array [1 2 3]))))
+  (simple-weight-vec-test (io-roundtrip (atomic-sparse {0 1 1 2 2 3})))
+
+  (testing "concurrent increments are not lost"
+    (doseq [^IWeightVector v [(atomic-dense 100) (atomic-sparse)]]
+      (dorun (parallel/map-work 8 (fn [t] (dotimes [i 10000] (.inc! v (rem (* i (inc t)) 100) 1.0))) (range 8)))
+      (is (= 80000.0 (sum (vals (->map v)))))
+      (is (= 100 (count (->map v)))))))
+
+(defn- hogwild-updates-per-ms [^IWeightVector v n-threads dim]
+  (let [n 200000
+        start (System/nanoTime)]
+    (dorun (parallel/map-work
+            n-threads
+            (fn [t]
+              (let [r (java.util.Random. t)]
+                (dotimes [_ n] (.inc! v (.nextInt r dim) 0.01))))
+            (range n-threads)))
+    (/ (* n n-threads) (/ (- (System/nanoTime) start) 1e6))))
+
+(deftest ^:bench hogwild-throughput-bench
+  (doseq [[name make] [["dense" #(atomic-dense 100000)] ["sparse" atomic-sparse]]
+          n-threads [1 2 4 8 16]]
+    (hogwild-updates-per-ms (make) n-threads 100000) ;; warmup
+    (println name "inc!/ms with" n-threads "threads:"
+             (long (hogwild-updates-per-ms (make) n-threads 100000)))))
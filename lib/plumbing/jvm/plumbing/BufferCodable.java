@@ -0,0 +1,15 @@
+package plumbing;
+
+import java.nio.ByteBuffer;
+
+// An object that writes itself straight into a ByteBuffer.  Serializer stores
+// these with their own codec instead of Java serialization.
+//
+// Implementing classes must also have a public static decode(ByteBuffer)
+// method that reads back what encode() wrote, advancing the buffer's position.
+public interface BufferCodable {
+  // The exact number of bytes encode() will write.
+  int encodedSize();
+
+  void encode(ByteBuffer buf);
+}
@@ -27,8 +27,11 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Serializer {
   private static final byte KEYWORD_TYPE =      0;
@@ -49,6 +52,13 @@ public class Serializer {
   private static final byte SERIALIZABLE_TYPE = 15;
   private static final byte BIG_INT_TYPE =      16;
   private static final byte RECORD_TYPE =       17;
+  private static final byte CODABLE_TYPE =      18;
+
+  // Readers older than CODABLE_TYPE can't read it, so until every reader is
+  // upgraded, BufferCodables that are also Serializable keep being written
+  // through Java serialization.  Set -Dplumbing.Serializer.writeCodables=true
+  // (or this field) once they are.
+  public static volatile boolean writeCodables = Boolean.getBoolean("plumbing.Serializer.writeCodables");
 
   public static byte [] objectToBytes(Object o) throws IOException {
     ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -194,6 +204,14 @@ public class Serializer {
         serialize(dos, seq.first());
         seq = seq.next();
       }
+    } else if (obj instanceof BufferCodable && (writeCodables || !(obj instanceof java.io.Serializable))) {
+      BufferCodable c = (BufferCodable) obj;
+      ByteBuffer buf = ByteBuffer.allocate(c.encodedSize());
+      c.encode(buf);
+      dos.writeByte(CODABLE_TYPE);
+      serialize(dos, obj.getClass().getName());
+      dos.writeInt(buf.capacity());
+      dos.write(buf.array());
     } else if (obj instanceof java.io.Serializable) {
       byte [] bytes = objectToBytes(obj);
       dos.writeByte(SERIALIZABLE_TYPE);
@@ -204,6 +222,22 @@ public class Serializer {
     }
   }
 
+  private static final ConcurrentHashMap<String, Method> decoders = new ConcurrentHashMap<String, Method>();
+
+  /* lookup the static decode(ByteBuffer) method of a BufferCodable class. */
+  private static Method lookupDecoder(String className) throws Exception {
+    Method m = decoders.get(className);
+    if (m == null) {
+      Class<?> c = RT.classForName(className);
+      if (!BufferCodable.class.isAssignableFrom(c)) {
+        throw new IOException("Not a BufferCodable: " + className);
+      }
+      m = c.getMethod("decode", ByteBuffer.class);
+      decoders.put(className, m);
+    }
+    return m;
+  }
+
   /* lookup the map->Record constructor method. Throw RuntimeException if it is unbound. */
   private static IFn lookupMapConstructor(String pkg, String recordClassName) {
     String recordCTor = "map->" + recordClassName;
@@ -307,6 +341,12 @@ public class Serializer {
         dis.readFully(data);
         return bytesToObject(data);
 
+      case CODABLE_TYPE:
+        String className = (String)deserialize(dis);
+        byte [] encoded = new byte[dis.readInt()];
+        dis.readFully(encoded);
+        return lookupDecoder(className).invoke(null, ByteBuffer.wrap(encoded));
+
       default:
         throw new IOException("Cannot deserialize " + typeByte);
     }
@@ -61,8 +61,8 @@
     {:date (millis)
      :model-info model-info
      :train-info train-result
-     :auto-tags (for-map [[id fv] all-fvs]
-                  id (classify/posteriors (:model train-result) fv))
+     :auto-tags (zipmap (keys all-fvs)
+                        (classify/batch-posteriors (:model train-result) (vals all-fvs)))
      :feature-index feature-index}))
 
 (defnk datum->auto-labels-fn [model->train-info :as model-graph]